@@ -0,0 +1,117 @@
+/*
+ * Sample logs for the benchmarks.
+ */
+package com.mattheys;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The sample logs bundled with the benchmarks, in src/jmh/resources/corpus:
+ *
+ * gps.nmea - 25 minutes of a boat under way at 1Hz: RMC, GGA and VTG every
+ * second, GLL and a set of GSVs every five, ZDA every ten
+ * ais.nmea - busy harbour AIS traffic, position reports and two part static
+ * data messages
+ *
+ * mixed() interleaves the two the way a real capture off a multiplexer looks,
+ * two AIS sentences to every GPS sentence.
+ *
+ * @author tony
+ */
+public class Corpus {
+
+    /**
+     *
+     * @param name - "gps" or "ais"
+     * @return the sentences, without CR/LF
+     */
+    public static List<String> lines(String name) {
+        String text = new String(read(name), StandardCharsets.ISO_8859_1);
+        List<String> lines = new ArrayList<>();
+        for (String line : text.split("\r?\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return GPS and AIS sentences interleaved
+     */
+    public static List<String> mixed() {
+        List<String> gps = lines("gps");
+        List<String> ais = lines("ais");
+        List<String> mixed = new ArrayList<>(gps.size() + ais.size());
+        int a = 0;
+        for (String g : gps) {
+            mixed.add(g);
+            for (int k = 0; k < 2 && a < ais.size(); k++) {
+                mixed.add(ais.get(a++));
+            }
+        }
+        while (a < ais.size()) {
+            mixed.add(ais.get(a++));
+        }
+        return mixed;
+    }
+
+    /**
+     *
+     * @param lines - sentences
+     * @return the same sentences as byte arrays
+     */
+    public static byte[][] bytes(List<String> lines) {
+        byte[][] b = new byte[lines.size()][];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = lines.get(i).getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return b;
+    }
+
+    /**
+     *
+     * @param lines - sentences
+     * @param repeat - how many times to write them out, to make a file big
+     * enough that reading it is mostly reading and not opening
+     * @return a temporary log file, deleted when the JVM exits
+     */
+    public static File file(List<String> lines, int repeat) {
+        try {
+            File f = File.createTempFile("corpus", ".nmea");
+            f.deleteOnExit();
+            StringBuilder sb = new StringBuilder();
+            for (String line : lines) {
+                sb.append(line).append("\r\n");
+            }
+            byte[] b = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(b.length * repeat);
+            for (int i = 0; i < repeat; i++) {
+                out.write(b);
+            }
+            Files.write(f.toPath(), out.toByteArray());
+            return f;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static byte[] read(String name) {
+        try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name + ".nmea")) {
+            if (in == null) {
+                throw new IllegalArgumentException("No corpus called " + name);
+            }
+            return in.readAllBytes();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
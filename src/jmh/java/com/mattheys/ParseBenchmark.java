@@ -0,0 +1,105 @@
+/*
+ * Benchmarks for getting time and position out of sentences.
+ */
+package com.mattheys;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost per sentence of the ways we turn sentences into time and position:
+ * the old String based GPStoDecimal, the NMEASentence parser, and
+ * updateTimeAndPosition() as the GUI calls it, and for the AIS sentences the
+ * AisDecoder. Each invocation goes through the whole corpus, so divide by the sentence count printed at setup (or look
+ * at gc.alloc.rate.norm for bytes per pass).
+ *
+ * @author tony
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    private List<String> lines;
+    private byte[][] sentences;
+    private String[][] coordinates; // RMC latitude, N/S, longitude, E/W
+    private byte[][] aisSentences;
+    private final AisDecoder ais = new AisDecoder();
+    private final NMEASentence parser = new NMEASentence();
+    private final ReplayPosition.Fix fix = new ReplayPosition.Fix();
+
+    @Setup
+    public void setup() {
+        lines = Corpus.mixed();
+        sentences = Corpus.bytes(lines);
+        List<String[]> c = new ArrayList<>();
+        for (String line : Corpus.lines("gps")) {
+            if (line.startsWith("$GPRMC")) {
+                String[] f = line.split(",");
+                c.add(new String[]{f[3], f[4], f[5], f[6]});
+            }
+        }
+        coordinates = c.toArray(new String[0][]);
+        aisSentences = Corpus.bytes(Corpus.lines("ais"));
+        System.out.println("\n" + lines.size() + " sentences, " + coordinates.length + " RMC fixes, " + aisSentences.length + " AIS");
+    }
+
+    @Benchmark
+    public void gpsToDecimal(Blackhole bh) {
+        for (String[] c : coordinates) {
+            bh.consume(NMEAPlayer.GPStoDecimal(c[0], c[1]));
+            bh.consume(NMEAPlayer.GPStoDecimal(c[2], c[3]));
+        }
+    }
+
+    @Benchmark
+    public void parserCoordinates(Blackhole bh) {
+        for (byte[] b : sentences) {
+            if (parser.parse(b, 0, b.length) && parser.isType("RMC")) {
+                bh.consume(parser.coordinate(3, 4));
+                bh.consume(parser.coordinate(5, 6));
+            }
+        }
+    }
+
+    @Benchmark
+    public void parseAndExtract(Blackhole bh) {
+        for (byte[] b : sentences) {
+            parser.parse(b, 0, b.length);
+            bh.consume(fix.extract(parser));
+        }
+    }
+
+    @Benchmark
+    public void updateTimeAndPositionString(Blackhole bh) {
+        for (String line : lines) {
+            NMEALogReplayerController.updateTimeAndPosition(line);
+        }
+        bh.consume(NMEALogReplayerController.latitude);
+    }
+
+    @Benchmark
+    public void aisDecode(Blackhole bh) {
+        for (byte[] b : aisSentences) {
+            if (parser.parse(b, 0, b.length) && ais.decode(parser)) {
+                bh.consume(ais.mmsi());
+                bh.consume(ais.latitude());
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Benchmarks for reading logs.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to read a whole log, RandomAccessFile.readLine() against
+ * SentenceReader against BinaryLogReader. The "timed" pair read the times
+ * that pacing needs as well, parsed from the text or straight from the binary
+ * log. The mixed corpus is written out REPEAT times, about 10MB,
+ * so the file stays in the page cache and this measures the readers rather
+ * than the disk.
+ *
+ * @author tony
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+    static final int REPEAT = 20;
+
+    @Param({"mixed"})
+    public String corpus;
+
+    private File file;
+    private File binary;
+    private final NMEASentence parser = new NMEASentence();
+
+    @Setup
+    public void setup() {
+        file = Corpus.file("mixed".equals(corpus) ? Corpus.mixed() : Corpus.lines(corpus), REPEAT);
+        System.out.println("\n" + file + " is " + file.length() + " bytes");
+        try {
+            binary = File.createTempFile("bench", ".nmeabin");
+            binary.deleteOnExit();
+            BinaryLog.convert(file, binary);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Benchmark
+    public long randomAccessFileReadLine() throws IOException {
+        long chars = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            String line;
+            while ((line = raf.readLine()) != null) {
+                chars += line.length();
+            }
+        }
+        return chars;
+    }
+
+    @Benchmark
+    public long sentenceReader() throws IOException {
+        long chars = 0;
+        try (SentenceReader reader = new SentenceReader(file)) {
+            int length;
+            while ((length = reader.next()) >= 0) {
+                chars += length;
+            }
+        }
+        return chars;
+    }
+
+    @Benchmark
+    public long sentenceReaderTimed() throws IOException {
+        long times = 0;
+        try (SentenceReader reader = new SentenceReader(file)) {
+            int length;
+            while ((length = reader.next()) >= 0) {
+                byte[] b = reader.sentence();
+                long t = ReplayScheduler.captureTime(b, 0, length);
+                if (t < 0 && parser.parse(b, 0, length)) {
+                    t = parser.sentenceTime();
+                }
+                times += t;
+            }
+        }
+        return times;
+    }
+
+    @Benchmark
+    public long binaryLogReader() throws IOException {
+        long chars = 0;
+        try (BinaryLogReader reader = new BinaryLogReader(binary)) {
+            int length;
+            while ((length = reader.next()) >= 0) {
+                chars += length;
+            }
+        }
+        return chars;
+    }
+
+    @Benchmark
+    public long binaryLogReaderTimed() throws IOException {
+        long times = 0;
+        try (BinaryLogReader reader = new BinaryLogReader(binary)) {
+            while (reader.next() >= 0) {
+                times += reader.time();
+            }
+        }
+        return times;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Benchmark for the cost of sending a sentence.
+ */
+package com.mattheys;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost per packet of NMEAPlayer's send path, sending the mixed corpus over
+ * loopback to a socket that never reads. The kernel drops what doesn't fit in
+ * the receive buffer, which doesn't matter; what is measured is the time and
+ * the allocation (should be none) on the sending side.
+ *
+ * @author tony
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendBenchmark {
+
+    private byte[][] sentences;
+    private int i = 0;
+    private DatagramChannel receiver;
+    private DatagramChannel channel;
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(SentenceReader.MAX_SENTENCE + 2);
+
+    @Setup
+    public void setup() throws IOException {
+        sentences = Corpus.bytes(Corpus.mixed());
+        receiver = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        channel = DatagramChannel.open();
+        channel.connect(receiver.getLocalAddress());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    public void send() throws IOException {
+        byte[] b = sentences[i];
+        i = (i + 1 == sentences.length) ? 0 : i + 1;
+        NMEAPlayer.send(channel, sendBuffer, b, b.length);
+    }
+}
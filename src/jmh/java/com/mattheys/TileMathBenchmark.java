@@ -0,0 +1,82 @@
+/*
+ * Benchmarks for the map tile arithmetic.
+ */
+package com.mattheys;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of working out which tile a fix is on and where that tile is, per fix
+ * along the track in the GPS corpus.
+ *
+ * @author tony
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TileMathBenchmark {
+
+    private double[] lat;
+    private double[] lon;
+    private int i = 0;
+    private NMEALogReplayerController controller;
+
+    @Setup
+    public void setup() {
+        NMEASentence parser = new NMEASentence();
+        ReplayPosition.Fix fix = new ReplayPosition.Fix();
+        List<String> lines = Corpus.lines("gps");
+        lat = new double[lines.size()];
+        lon = new double[lines.size()];
+        int n = 0;
+        for (String line : lines) {
+            parser.parse(line);
+            if (fix.extract(parser)) {
+                lat[n] = fix.latitude;
+                lon[n] = fix.longitude;
+                n++;
+            }
+        }
+        lat = Arrays.copyOf(lat, n);
+        lon = Arrays.copyOf(lon, n);
+        controller = new NMEALogReplayerController();
+    }
+
+    private int next() {
+        i = (i + 1 == lat.length) ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public String getTileNumber() {
+        int k = next();
+        return NMEALogReplayerController.getTileNumber(lat[k], lon[k], 15);
+    }
+
+    @Benchmark
+    public long tileXY() {
+        int k = next();
+        return ((long) NMEALogReplayerController.tileX(lon[k], 15) << 32) | NMEALogReplayerController.tileY(lat[k], 15);
+    }
+
+    @Benchmark
+    public BoundingBox tile2boundingBox() {
+        int k = next();
+        return controller.tile2boundingBox(NMEALogReplayerController.tileX(lon[k], 15), NMEALogReplayerController.tileY(lat[k], 15), 15);
+    }
+}
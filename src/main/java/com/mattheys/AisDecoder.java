@@ -0,0 +1,457 @@
+/*
+ * Decodes AIS messages out of !AIVDM and !AIVDO sentences.
+ */
+package com.mattheys;
+
+/**
+ * AisDecoder turns the 6-bit armored payload of AIS sentences into the fields
+ * we care about: who sent it (MMSI), where they are, how fast and which way
+ * they are going, and for the static messages their name, call sign, type and
+ * destination. Message types 1, 2 and 3 (class A position), 4 (base station),
+ * 5 (class A static and voyage data), 18 and 19 (class B position), 24 (class
+ * B static data) and 27 (long range position) are decoded; anything else just
+ * gets its type and MMSI.
+ *
+ * Nothing is allocated per sentence. A single sentence message is read in
+ * place by a Bits reader pointed at the payload field of the sentence. The
+ * fragments of a multi-sentence message (type 5, mostly) are copied into one
+ * of SLOTS fixed payload buffers, keyed on the sequential message ID and the
+ * radio channel, and decoded from there once the last fragment is in. If all
+ * the slots are taken by messages that never finished, the oldest is reused.
+ *
+ * The fields are only good until the next call to decode(). The strings are
+ * made when they are asked for, so they are the one thing that allocates,
+ * and only then.
+ *
+ * Only one thread may use a decoder.
+ *
+ * @author tony
+ */
+public class AisDecoder {
+
+    static final int SLOTS = 8;
+    static final int MAX_PAYLOAD = 512; // armored characters, several sentences' worth
+
+    /**
+     * Reads bits out of an armored payload, six to a character, without
+     * unpacking it first.
+     */
+    public static class Bits {
+
+        private byte[] b;
+        private int start;
+        private int chars;
+
+        /**
+         *
+         * @param b - buffer holding the payload characters
+         * @param start - index of the first one
+         * @param chars - how many there are
+         */
+        public void set(byte[] b, int start, int chars) {
+            this.b = b;
+            this.start = start;
+            this.chars = chars;
+        }
+
+        /**
+         * @return number of bits in the payload
+         */
+        public int size() {
+            return chars * 6;
+        }
+
+        /**
+         *
+         * @param from - first bit wanted, 0 being the top bit of the payload
+         * @param n - how many bits, at most 63
+         * @return the bits as an unsigned number, or -1 if the payload is too
+         * short
+         */
+        public long get(int from, int n) {
+            int end = from + n;
+            if (end > chars * 6) {
+                return -1;
+            }
+            long v = 0;
+            int i = from;
+            while (i < end) {
+                int c = b[start + i / 6] - 48;
+                if (c > 40) {
+                    c -= 8;
+                }
+                int used = i % 6;
+                int take = Math.min(6 - used, end - i);
+                v = (v << take) | ((c >> (6 - used - take)) & ((1 << take) - 1));
+                i += take;
+            }
+            return v;
+        }
+
+        /**
+         *
+         * @param from - first bit
+         * @param n - how many bits, at most 63
+         * @return the bits as a two's complement number, or Long.MIN_VALUE if
+         * the payload is too short
+         */
+        public long signed(int from, int n) {
+            long v = get(from, n);
+            return (v < 0) ? Long.MIN_VALUE : (v << (64 - n)) >> (64 - n);
+        }
+
+        /**
+         *
+         * @param from - first bit
+         * @param count - number of 6-bit characters
+         * @return the text, with the @ padding and trailing spaces taken off.
+         * Whatever part of it is in the payload.
+         */
+        public String text(int from, int count) {
+            StringBuilder s = new StringBuilder(count);
+            for (int k = 0; k < count; k++) {
+                long v = get(from + 6 * k, 6);
+                if (v < 0 || v == 0) {
+                    break; // end of the payload, or @ padding
+                }
+                s.append((char) (v < 32 ? v + 64 : v));
+            }
+            int n = s.length();
+            while (n > 0 && s.charAt(n - 1) == ' ') {
+                n--;
+            }
+            s.setLength(n);
+            return s.toString();
+        }
+    }
+
+    /**
+     * A multi-sentence message being put back together.
+     */
+    private static class Slot {
+
+        int key = -1; // sequential message ID and channel, -1 when free
+        int total;
+        int next; // the fragment number expected next
+        int chars;
+        long used; // when it was last added to, for picking one to reuse
+        final byte[] payload = new byte[MAX_PAYLOAD];
+    }
+
+    private final Bits bits = new Bits();
+    private final Slot[] slots = new Slot[SLOTS];
+    private long clock = 0;
+
+    private int type;
+    private boolean ownShip;
+    private long mmsi;
+    private boolean hasPosition;
+    private double latitude;
+    private double longitude;
+    private double speed;
+    private double course;
+    private int heading;
+    private int status;
+    private int second;
+    private int shipType;
+    private int part;
+    private int nameAt, callsignAt, destinationAt; // bit offsets, -1 if none
+
+    public AisDecoder() {
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     *
+     * @param f - a parsed !AIVDM or !AIVDO sentence
+     * @return true if a whole message has been decoded, which for a
+     * multi-sentence message is when its last fragment comes in. False for
+     * anything that isn't AIS, has a bad checksum, or is a fragment of a message
+     * that isn't finished yet.
+     */
+    public boolean decode(NMEASentence f) {
+        if (f.fieldCount() < 6 || !(f.isType("VDM") || f.isType("VDO"))
+                || (f.hasChecksum() && !f.checksumOK())) {
+            return false;
+        }
+        ownShip = f.isType("VDO");
+        int total = f.intField(1);
+        int number = f.intField(2);
+        if (total <= 1) {
+            bits.set(f.buffer(), f.fieldStart(5), f.fieldLength(5));
+            return read();
+        }
+        if (number < 1 || number > total) {
+            return false;
+        }
+        int id = f.isEmpty(3) ? 10 : Math.floorMod(f.intField(3), 10);
+        int key = (id << 8) | (f.isEmpty(4) ? 0 : (f.charAt(4) & 0xff));
+        Slot slot = null;
+        for (Slot s : slots) {
+            if (s.key == key) {
+                slot = s;
+                break;
+            }
+        }
+        if (number == 1) {
+            if (slot == null) {
+                slot = slots[0];
+                for (Slot s : slots) {
+                    if (s.key < 0) {
+                        slot = s;
+                        break;
+                    }
+                    if (s.used < slot.used) {
+                        slot = s;
+                    }
+                }
+            }
+            slot.key = key;
+            slot.total = total;
+            slot.next = 1;
+            slot.chars = 0;
+        } else if (slot == null || slot.next != number || slot.total != total) {
+            if (slot != null) {
+                slot.key = -1; // a fragment went missing
+            }
+            return false;
+        }
+        int len = f.fieldLength(5);
+        if (slot.chars + len > MAX_PAYLOAD) {
+            slot.key = -1;
+            return false;
+        }
+        System.arraycopy(f.buffer(), f.fieldStart(5), slot.payload, slot.chars, len);
+        slot.chars += len;
+        slot.next++;
+        slot.used = ++clock;
+        if (number < total) {
+            return false;
+        }
+        slot.key = -1;
+        bits.set(slot.payload, 0, slot.chars);
+        return read();
+    }
+
+    /**
+     * Picks the fields out of the message in bits.
+     */
+    private boolean read() {
+        type = (int) bits.get(0, 6);
+        mmsi = bits.get(8, 30);
+        if (type < 0 || mmsi < 0) {
+            return false;
+        }
+        hasPosition = false;
+        latitude = Double.NaN;
+        longitude = Double.NaN;
+        speed = Double.NaN;
+        course = Double.NaN;
+        heading = -1;
+        status = -1;
+        second = -1;
+        shipType = -1;
+        part = -1;
+        nameAt = -1;
+        callsignAt = -1;
+        destinationAt = -1;
+        switch (type) {
+            case 1, 2, 3 -> {
+                status = (int) bits.get(38, 4);
+                motion(50, 116, 128);
+                position(61, 28, 89, 27, 600000.0d);
+                second = (int) bits.get(137, 6);
+            }
+            case 4 -> {
+                position(79, 28, 107, 27, 600000.0d);
+                second = (int) bits.get(72, 6);
+            }
+            case 5 -> {
+                callsignAt = 70;
+                nameAt = 112;
+                shipType = (int) bits.get(232, 8);
+                destinationAt = 302;
+            }
+            case 18, 19 -> {
+                motion(46, 112, 124);
+                position(57, 28, 85, 27, 600000.0d);
+                second = (int) bits.get(133, 6);
+                if (type == 19) {
+                    nameAt = 143;
+                    shipType = (int) bits.get(263, 8);
+                }
+            }
+            case 24 -> {
+                part = (int) bits.get(38, 2);
+                if (part == 0) {
+                    nameAt = 40;
+                } else if (part == 1) {
+                    shipType = (int) bits.get(40, 8);
+                    callsignAt = 90;
+                }
+            }
+            case 27 -> {
+                status = (int) bits.get(40, 4);
+                position(44, 18, 62, 17, 600.0d);
+                long sog = bits.get(79, 6);
+                long cog = bits.get(85, 9);
+                speed = (sog < 0 || sog == 63) ? Double.NaN : sog;
+                course = (cog < 0 || cog == 511) ? Double.NaN : cog;
+            }
+            default -> {
+                // type and MMSI only
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Speed in tenths of a knot, course in tenths of a degree and heading in
+     * degrees, each with its own "not available" value.
+     */
+    private void motion(int sogAt, int cogAt, int headingAt) {
+        long sog = bits.get(sogAt, 10);
+        long cog = bits.get(cogAt, 12);
+        long hdg = bits.get(headingAt, 9);
+        speed = (sog < 0 || sog == 1023) ? Double.NaN : sog / 10.0d;
+        course = (cog < 0 || cog >= 3600) ? Double.NaN : cog / 10.0d;
+        heading = (hdg < 0 || hdg >= 360) ? -1 : (int) hdg;
+    }
+
+    /**
+     * Longitude and latitude in units of 1/scale degree, 181 and 91 degrees
+     * meaning not available.
+     */
+    private void position(int lonAt, int lonBits, int latAt, int latBits, double scale) {
+        long x = bits.signed(lonAt, lonBits);
+        long y = bits.signed(latAt, latBits);
+        if (x == Long.MIN_VALUE || y == Long.MIN_VALUE) {
+            return;
+        }
+        double lon = x / scale;
+        double lat = y / scale;
+        if (Math.abs(lon) > 180.0d || Math.abs(lat) > 90.0d) {
+            return;
+        }
+        longitude = lon;
+        latitude = lat;
+        hasPosition = true;
+    }
+
+    /**
+     * @return message type, 1 to 27
+     */
+    public int type() {
+        return type;
+    }
+
+    /**
+     * @return true if it came in a !AIVDO sentence, our own vessel's report
+     */
+    public boolean ownShip() {
+        return ownShip;
+    }
+
+    /**
+     * @return who sent it
+     */
+    public long mmsi() {
+        return mmsi;
+    }
+
+    /**
+     * @return true if the message carries a position that is available
+     */
+    public boolean hasPosition() {
+        return hasPosition;
+    }
+
+    /**
+     * @return latitude in degrees, NaN if there is no position
+     */
+    public double latitude() {
+        return latitude;
+    }
+
+    /**
+     * @return longitude in degrees, NaN if there is no position
+     */
+    public double longitude() {
+        return longitude;
+    }
+
+    /**
+     * @return speed over ground in knots, NaN if not available
+     */
+    public double speed() {
+        return speed;
+    }
+
+    /**
+     * @return course over ground in degrees, NaN if not available
+     */
+    public double course() {
+        return course;
+    }
+
+    /**
+     * @return true heading in degrees, -1 if not available
+     */
+    public int heading() {
+        return heading;
+    }
+
+    /**
+     * @return navigational status (0 under way using engine, 1 at anchor, 5
+     * moored...), -1 if the message doesn't have one
+     */
+    public int status() {
+        return status;
+    }
+
+    /**
+     * @return UTC second the position was taken, 60 and up meaning not
+     * available, -1 if the message doesn't have one
+     */
+    public int second() {
+        return second;
+    }
+
+    /**
+     * @return ship and cargo type, -1 if the message doesn't have one
+     */
+    public int shipType() {
+        return shipType;
+    }
+
+    /**
+     * @return for type 24, which part it is: 0 for A (the name), 1 for B (the
+     * rest). Otherwise -1.
+     */
+    public int part() {
+        return part;
+    }
+
+    /**
+     * @return vessel name from types 5, 19 and 24A, or null
+     */
+    public String name() {
+        return nameAt < 0 ? null : bits.text(nameAt, 20);
+    }
+
+    /**
+     * @return call sign from types 5 and 24B, or null
+     */
+    public String callsign() {
+        return callsignAt < 0 ? null : bits.text(callsignAt, 7);
+    }
+
+    /**
+     * @return destination from type 5, or null
+     */
+    public String destination() {
+        return destinationAt < 0 ? null : bits.text(destinationAt, 20);
+    }
+}
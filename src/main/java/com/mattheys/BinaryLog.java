@@ -0,0 +1,269 @@
+/*
+ * Pre-parsed binary replay log format.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * BinaryLog describes the binary log format and converts text logs into it.
+ * A binary log holds the same sentences as the text log it came from, with the
+ * work a replay would otherwise repeat every time (finding the line breaks,
+ * parsing the time, parsing the position) done once, up front.
+ *
+ * The file is a HEADER_SIZE byte header, the records, and a block index.
+ *
+ * Header, all big endian:
+ *
+ * 0   MAGIC                 8 bytes, the last one being the version
+ * 8   record count          long
+ * 16  index offset          long, which is also where the records end
+ * 24  index entries         int
+ * 28  records per block     int
+ * 32  first time            long, -1 if no sentence has a time
+ * 40  last time             long
+ * 48  unused
+ *
+ * Record:
+ *
+ * length                    unsigned short, bytes of sentence
+ * type                      byte, index into TYPES, 0 for anything else
+ * flags                     byte, HAS_TIME, ABS_TIME, HAS_FIX
+ * time delta                int, if HAS_TIME: milliseconds since the last
+ *                           record that had a time
+ * time                      long, if ABS_TIME: for the first time, and
+ *                           jumps too big for a delta
+ * latitude, longitude       int, int, if HAS_FIX: degrees times 10^7
+ * sentence                  the raw bytes, tag block and all, without CR/LF
+ *
+ * Times are what ReplayScheduler would pace by: the \c: capture time if the
+ * log has tag blocks, otherwise the time of day from RMC, GGA, GLL and ZDA
+ * unwrapped across midnight (see TimeIndex). Once a capture time has been
+ * seen, sentence times are ignored, as the scheduler does.
+ *
+ * Index entry, one per BLOCK_RECORDS records:
+ *
+ * offset                    long, file offset of the block's first record
+ * time                      long, the time its deltas count from
+ *
+ * so a seek reads the index, jumps to the block and steps over at most
+ * BLOCK_RECORDS records to land on the first record at or after the offset.
+ *
+ * @author tony
+ */
+public class BinaryLog {
+
+    static final byte[] MAGIC = {'N', 'M', 'E', 'A', 'B', 'I', 'N', 1};
+    static final int HEADER_SIZE = 64;
+    static final int BLOCK_RECORDS = 256;
+    static final int HAS_TIME = 1;
+    static final int ABS_TIME = 2;
+    static final int HAS_FIX = 4;
+    static final double FIX_SCALE = 1e7;
+    static final String[] TYPES = {"", "RMC", "GGA", "GLL", "ZDA", "VTG", "GSA", "GSV", "HDT", "HDG",
+        "MWV", "DBT", "DPT", "VHW", "XDR", "VDM", "VDO"};
+    private static final int OUT_BUFFER = 1024 * 1024;
+
+    private static final Logger logger = LogManager.getLogger(BinaryLog.class);
+
+    /**
+     * The header, as read back from a file.
+     */
+    public static class Header {
+
+        public long records;
+        public long indexOffset;
+        public int indexEntries;
+        public int blockRecords;
+        public long firstTime;
+        public long lastTime;
+    }
+
+    /**
+     *
+     * @param file - any log
+     * @return true if it starts with MAGIC
+     * @throws IOException if it can't be read
+     */
+    public static boolean isBinary(File file) throws IOException {
+        try (LogChannel channel = LogChannel.open(file)) {
+            ByteBuffer b = ByteBuffer.allocate(MAGIC.length);
+            while (b.hasRemaining() && channel.read(b, b.position()) > 0) {
+                // keep going
+            }
+            return !b.hasRemaining() && Arrays.equals(b.array(), MAGIC);
+        }
+    }
+
+    /**
+     *
+     * @param b - buffer holding a header
+     * @return the header
+     * @throws IOException if it isn't one
+     */
+    static Header readHeader(ByteBuffer b) throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (b.get(i) != MAGIC[i]) {
+                throw new IOException("Not a binary NMEA log, or a version we don't know");
+            }
+        }
+        Header h = new Header();
+        h.records = b.getLong(8);
+        h.indexOffset = b.getLong(16);
+        h.indexEntries = b.getInt(24);
+        h.blockRecords = b.getInt(28);
+        h.firstTime = b.getLong(32);
+        h.lastTime = b.getLong(40);
+        return h;
+    }
+
+    /**
+     *
+     * @param b - the sentence
+     * @param length - its length
+     * @return its index in TYPES, going by the last three letters of the
+     * address field, or 0
+     */
+    static int typeOf(byte[] b, int length) {
+        int p = NMEASentence.addressStart(b, 0, length);
+        if (p < 0 || p + 6 > length || (p + 6 < length && b[p + 6] != ',')) {
+            return 0;
+        }
+        for (int t = 1; t < TYPES.length; t++) {
+            String s = TYPES[t];
+            if (b[p + 3] == s.charAt(0) && b[p + 4] == s.charAt(1) && b[p + 5] == s.charAt(2)) {
+                return t;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     *
+     * @param in - text log, plain or gzipped
+     * @param out - binary log to write, replaced if it exists
+     * @return the header written
+     * @throws IOException if either file can't be read or written
+     */
+    public static Header convert(File in, File out) throws IOException {
+        NMEASentence parser = new NMEASentence();
+        ReplayPosition.Fix fix = new ReplayPosition.Fix();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(OUT_BUFFER);
+        long[] index = new long[1024];
+        Header h = new Header();
+        h.blockRecords = BLOCK_RECORDS;
+        h.firstTime = -1;
+        h.lastTime = -1;
+        long position = HEADER_SIZE;
+        long lastSentenceTime = -1;
+        boolean capture = false;
+
+        try (SentenceReader reader = new SentenceReader(in);
+                FileChannel channel = FileChannel.open(out.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int length;
+            while ((length = reader.next()) >= 0) {
+                byte[] b = reader.sentence();
+                if (h.records % BLOCK_RECORDS == 0) {
+                    if (2 * h.indexEntries + 2 > index.length) {
+                        index = Arrays.copyOf(index, index.length * 2);
+                    }
+                    index[2 * h.indexEntries] = position;
+                    index[2 * h.indexEntries + 1] = h.lastTime;
+                    h.indexEntries++;
+                }
+                boolean parsed = parser.parse(b, 0, length);
+                long t = ReplayScheduler.captureTime(b, 0, length);
+                if (t >= 0) {
+                    capture = true;
+                } else if (!capture && parsed) {
+                    int tod = parser.sentenceTime();
+                    if (tod >= 0) {
+                        t = TimeIndex.unwrap(lastSentenceTime, tod);
+                        lastSentenceTime = t;
+                    }
+                }
+                int flags = 0;
+                long delta = t - h.lastTime;
+                if (t >= 0) {
+                    flags |= (h.lastTime >= 0 && delta == (int) delta) ? HAS_TIME : ABS_TIME;
+                }
+                if (parsed && fix.extract(parser)) {
+                    flags |= HAS_FIX;
+                }
+
+                if (buffer.remaining() < 32 + length) {
+                    write(channel, buffer);
+                }
+                int start = buffer.position();
+                buffer.putShort((short) length);
+                buffer.put((byte) typeOf(b, length));
+                buffer.put((byte) flags);
+                if ((flags & HAS_TIME) != 0) {
+                    buffer.putInt((int) delta);
+                } else if ((flags & ABS_TIME) != 0) {
+                    buffer.putLong(t);
+                }
+                if ((flags & HAS_FIX) != 0) {
+                    buffer.putInt((int) Math.round(fix.latitude * FIX_SCALE));
+                    buffer.putInt((int) Math.round(fix.longitude * FIX_SCALE));
+                }
+                buffer.put(b, 0, length);
+                position += buffer.position() - start;
+                if (t >= 0) {
+                    if (h.firstTime < 0) {
+                        h.firstTime = t;
+                    }
+                    h.lastTime = t;
+                }
+                h.records++;
+            }
+
+            h.indexOffset = position;
+            for (int i = 0; i < 2 * h.indexEntries; i++) {
+                if (buffer.remaining() < 8) {
+                    write(channel, buffer);
+                }
+                buffer.putLong(index[i]);
+            }
+            write(channel, buffer);
+
+            buffer.put(MAGIC);
+            buffer.putLong(h.records);
+            buffer.putLong(h.indexOffset);
+            buffer.putInt(h.indexEntries);
+            buffer.putInt(h.blockRecords);
+            buffer.putLong(h.firstTime);
+            buffer.putLong(h.lastTime);
+            while (buffer.position() < HEADER_SIZE) {
+                buffer.put((byte) 0);
+            }
+            buffer.flip();
+            channel.write(buffer, 0);
+        }
+        logger.debug("Converted {} records from {} to {}", h.records, in, out);
+        return h;
+    }
+
+    /**
+     * Writes out the buffer at the channel's position and empties it. The
+     * header space is skipped the first time.
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        if (channel.position() == 0) {
+            channel.position(HEADER_SIZE);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
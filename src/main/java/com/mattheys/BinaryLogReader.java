@@ -0,0 +1,242 @@
+/*
+ * Reads sentences back out of a binary log.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * BinaryLogReader reads a log written by BinaryLog.convert(). Each record
+ * says how long it is, so there are no line breaks to look for, and the time
+ * and position come ready made, so there is nothing to parse either. Reading
+ * a sentence is one copy out of a large direct buffer that is refilled a
+ * BUFFER_SIZE block at a time.
+ *
+ * Seeks land on record boundaries: the block index says where the block
+ * holding the offset starts, and the reader steps over records from there
+ * until it reaches the first one at or after the offset.
+ *
+ * @author tony
+ */
+public class BinaryLogReader implements SentenceSource {
+
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private final LogChannel channel;
+    private final BinaryLog.Header header;
+    private final long[] blockOffsets;
+    private final long[] blockTimes;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] sentence = new byte[SentenceReader.MAX_SENTENCE];
+    private int length = 0;
+    private long bufferOffset = 0; // file offset of buffer index 0
+    private long sentenceOffset = 0;
+    private long lastTime = -1; // time the next delta counts from
+    private long time = -1;
+    private int type = 0;
+    private boolean hasFix = false;
+    private double latitude = Double.NaN;
+    private double longitude = Double.NaN;
+
+    /**
+     *
+     * @param file - a binary NMEA log
+     * @throws IOException if it can't be read or isn't a binary log
+     */
+    public BinaryLogReader(File file) throws IOException {
+        channel = LogChannel.open(file);
+        try {
+            ByteBuffer b = ByteBuffer.allocate(BinaryLog.HEADER_SIZE);
+            readFully(b, 0);
+            header = BinaryLog.readHeader(b);
+            ByteBuffer index = ByteBuffer.allocate(header.indexEntries * 16);
+            readFully(index, header.indexOffset);
+            blockOffsets = new long[header.indexEntries];
+            blockTimes = new long[header.indexEntries];
+            for (int i = 0; i < header.indexEntries; i++) {
+                blockOffsets[i] = index.getLong(16 * i);
+                blockTimes[i] = index.getLong(16 * i + 8);
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        bufferOffset = BinaryLog.HEADER_SIZE;
+        buffer.limit(0);
+    }
+
+    private void readFully(ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b, position + b.position()) < 0) {
+                throw new IOException("Binary log is cut short");
+            }
+        }
+    }
+
+    /**
+     * @return the header of the file
+     */
+    public BinaryLog.Header header() {
+        return header;
+    }
+
+    @Override
+    public byte[] sentence() {
+        return sentence;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public long sentenceOffset() {
+        return sentenceOffset;
+    }
+
+    @Override
+    public long position() {
+        return bufferOffset + buffer.position();
+    }
+
+    /**
+     * @return where the records end
+     */
+    @Override
+    public long size() {
+        return header.indexOffset;
+    }
+
+    @Override
+    public boolean timed() {
+        return true;
+    }
+
+    @Override
+    public long time() {
+        return time;
+    }
+
+    /**
+     * @return the type of the current sentence, an index into
+     * BinaryLog.TYPES, 0 if it isn't one of those
+     */
+    public int type() {
+        return type;
+    }
+
+    /**
+     * @return true if the current sentence carries a position
+     */
+    public boolean hasFix() {
+        return hasFix;
+    }
+
+    /**
+     * @return latitude of the current sentence, if hasFix()
+     */
+    public double latitude() {
+        return latitude;
+    }
+
+    /**
+     * @return longitude of the current sentence, if hasFix()
+     */
+    public double longitude() {
+        return longitude;
+    }
+
+    /**
+     *
+     * @param offset - file offset to read from next. Reading carries on from
+     * the first record at or after it.
+     * @throws IOException if the file can't be read
+     */
+    @Override
+    public void seek(long offset) throws IOException {
+        int i = Arrays.binarySearch(blockOffsets, offset);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        if (i < 0) {
+            bufferOffset = BinaryLog.HEADER_SIZE;
+            lastTime = -1;
+        } else {
+            bufferOffset = blockOffsets[i];
+            lastTime = blockTimes[i];
+        }
+        buffer.clear().limit(0);
+        while (position() < offset && next() >= 0) {
+            // step over records before the offset
+        }
+    }
+
+    @Override
+    public int next() throws IOException {
+        if (position() >= header.indexOffset || !fill(4)) {
+            return -1;
+        }
+        int p = buffer.position();
+        int len = buffer.getShort(p) & 0xffff;
+        int flags = buffer.get(p + 3);
+        int size = 4 + len + ((flags & BinaryLog.HAS_TIME) != 0 ? 4 : 0)
+                + ((flags & BinaryLog.ABS_TIME) != 0 ? 8 : 0) + ((flags & BinaryLog.HAS_FIX) != 0 ? 8 : 0);
+        if (!fill(size)) {
+            throw new IOException("Binary log is cut short at " + position());
+        }
+        p = buffer.position();
+        sentenceOffset = bufferOffset + p;
+        type = buffer.get(p + 2);
+        p += 4;
+        time = -1;
+        if ((flags & BinaryLog.HAS_TIME) != 0) {
+            time = lastTime + buffer.getInt(p);
+            lastTime = time;
+            p += 4;
+        } else if ((flags & BinaryLog.ABS_TIME) != 0) {
+            time = buffer.getLong(p);
+            lastTime = time;
+            p += 8;
+        }
+        hasFix = (flags & BinaryLog.HAS_FIX) != 0;
+        if (hasFix) {
+            latitude = buffer.getInt(p) / BinaryLog.FIX_SCALE;
+            longitude = buffer.getInt(p + 4) / BinaryLog.FIX_SCALE;
+            p += 8;
+        }
+        length = Math.min(len, sentence.length);
+        buffer.get(p, sentence, 0, length);
+        buffer.position(p + len);
+        return length;
+    }
+
+    /**
+     * Makes sure there are at least n bytes in the buffer after the position,
+     * reading more of the file if need be.
+     *
+     * @return false if the file ends first
+     */
+    private boolean fill(int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return true;
+        }
+        bufferOffset += buffer.position();
+        buffer.compact();
+        while (buffer.position() < n) {
+            if (channel.read(buffer, bufferOffset + buffer.position()) <= 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() >= n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
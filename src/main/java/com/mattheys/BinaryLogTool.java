@@ -0,0 +1,81 @@
+/*
+ * Command line tool for converting logs to the binary format.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts text NMEA logs to binary logs (see BinaryLog) and looks inside
+ * them. A binary log plays in the GUI and NMEAReplayerCLI exactly like the
+ * text log it came from, without the parsing.
+ *
+ * convert in out       convert a text log (plain or gzipped) to a binary one
+ * info file            print the header of a binary log
+ * dump file [count]    print the first count records (default 20) with their
+ *                      type, time and position
+ *
+ * @author tony
+ */
+public class BinaryLogTool {
+
+    static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: BinaryLogTool convert in out");
+        System.err.println("       BinaryLogTool info file");
+        System.err.println("       BinaryLogTool dump file [count]");
+        System.exit(2);
+    }
+
+    /**
+     * @param args the command line arguments
+     * @throws IOException if a log can't be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            usage("Not enough arguments");
+        }
+        switch (args[0]) {
+            case "convert" -> {
+                if (args.length != 3) {
+                    usage("convert needs a text log and a binary log");
+                }
+                File in = new File(args[1]);
+                File out = new File(args[2]);
+                long started = System.currentTimeMillis();
+                BinaryLog.Header h = BinaryLog.convert(in, out);
+                System.out.printf("Converted %d sentences in %d ms, %d bytes to %d bytes%n", h.records,
+                        System.currentTimeMillis() - started, in.length(), out.length());
+            }
+            case "info" -> {
+                try (BinaryLogReader reader = new BinaryLogReader(new File(args[1]))) {
+                    BinaryLog.Header h = reader.header();
+                    System.out.printf("%d records in %d blocks of %d%n", h.records, h.indexEntries, h.blockRecords);
+                    System.out.printf("records end at %d%n", h.indexOffset);
+                    System.out.printf("times %d to %d (%.1f s)%n", h.firstTime, h.lastTime,
+                            h.firstTime < 0 ? 0.0d : (h.lastTime - h.firstTime) / 1000.0d);
+                }
+            }
+            case "dump" -> {
+                int count = 20;
+                try {
+                    if (args.length > 2) {
+                        count = Integer.parseInt(args[2]);
+                    }
+                } catch (NumberFormatException ex) {
+                    usage("Bad count " + args[2]);
+                }
+                try (BinaryLogReader reader = new BinaryLogReader(new File(args[1]))) {
+                    int length;
+                    for (int i = 0; i < count && (length = reader.next()) >= 0; i++) {
+                        String fix = reader.hasFix() ? String.format("%.6f,%.6f", reader.latitude(), reader.longitude()) : "-";
+                        System.out.printf("%10d %-3s %13d %-22s %s%n", reader.sentenceOffset(), BinaryLog.TYPES[reader.type()],
+                                reader.time(), fix, new String(reader.sentence(), 0, length, "ISO-8859-1"));
+                    }
+                }
+            }
+            default -> usage("Unknown command " + args[0]);
+        }
+    }
+}
@@ -14,4 +14,21 @@ public class BoundingBox {
     double south;
     double east;
     double west;
+
+    /**
+     *
+     * @param latitude - degrees, north positive
+     * @param longitude - degrees, east positive
+     * @return true if the point is inside the box (or on its edge). A box
+     * whose west is further east than its east crosses the 180th meridian.
+     */
+    public boolean contains(double latitude, double longitude) {
+        if (latitude < south || latitude > north) {
+            return false;
+        }
+        if (west <= east) {
+            return longitude >= west && longitude <= east;
+        }
+        return longitude >= west || longitude <= east;
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * Hands received packets from the capture thread to the writer thread.
+ */
+package com.mattheys;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CaptureRing is a fixed size ring buffer of records, with exactly one thread
+ * putting records in (the NMEARecorder receive thread) and exactly one taking
+ * them out (the writer). Neither side ever takes a lock or allocates, and the
+ * receiver never waits for the writer: if the ring is full the record is
+ * thrown away and counted, which only happens if the disk can't keep up for
+ * longer than the ring can cover.
+ *
+ * Each record is a header of length, source and capture time followed by the
+ * bytes as received, padded to a multiple of 8. A record never wraps round the
+ * end of the ring; if it doesn't fit in what's left, a padding record (length
+ * -1) fills the rest and the record goes at the start.
+ *
+ * @author tony
+ */
+public class CaptureRing {
+
+    static final int HEADER = 16; // int length, int source, long time
+    static final int PADDING = -1;
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    private volatile long head = 0; // written by the producer
+    private volatile long tail = 0; // written by the consumer
+    private final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * Where take() leaves the record it found.
+     */
+    public static class Record {
+
+        public int source;
+        public long time;
+        public int length;
+        /**
+         * view of the ring holding the record's bytes between position and
+         * limit; only good until release()
+         */
+        public ByteBuffer data;
+        long next;
+    }
+
+    /**
+     *
+     * @param capacity - size of the ring in bytes, rounded down to a multiple
+     * of 8
+     */
+    public CaptureRing(int capacity) {
+        this.capacity = capacity & ~7;
+        ring = ByteBuffer.allocateDirect(this.capacity);
+    }
+
+    /**
+     * @return records thrown away because the ring was full
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /**
+     * @return bytes in the ring waiting for the writer
+     */
+    public long used() {
+        return head - tail;
+    }
+
+    private static int align(int n) {
+        return (n + 7) & ~7;
+    }
+
+    /**
+     *
+     * @param source - where the bytes came from, passed through to the writer
+     * @param time - capture time, milliseconds since the epoch
+     * @param src - the bytes, between position and limit. The position is
+     * moved to the limit.
+     * @return false if there was no room and the record was dropped
+     *
+     * Producer side only.
+     */
+    public boolean put(int source, long time, ByteBuffer src) {
+        int length = src.remaining();
+        int size = HEADER + align(length);
+        long h = head;
+        int index = (int) (h % capacity);
+        int pad = (index + size > capacity) ? capacity - index : 0;
+        if (size + pad > capacity - (h - tail)) {
+            overflows.incrementAndGet();
+            src.position(src.limit());
+            return false;
+        }
+        if (pad > 0) {
+            ring.putInt(index, PADDING);
+            h += pad;
+            index = 0;
+        }
+        ring.putInt(index, length);
+        ring.putInt(index + 4, source);
+        ring.putLong(index + 8, time);
+        ring.put(index + HEADER, src, src.position(), length);
+        src.position(src.limit());
+        head = h + size; // volatile write publishes the record
+        return true;
+    }
+
+    /**
+     *
+     * @param into - filled in with the oldest record
+     * @return false if the ring is empty
+     *
+     * Consumer side only. The record stays in the ring, and into.data keeps
+     * pointing at it, until release(into) is called.
+     */
+    public boolean take(Record into) {
+        long t = tail;
+        if (t == head) {
+            return false;
+        }
+        int index = (int) (t % capacity);
+        int length = ring.getInt(index);
+        if (length == PADDING) {
+            t += capacity - index;
+            index = 0;
+            length = ring.getInt(0);
+        }
+        into.length = length;
+        into.source = ring.getInt(index + 4);
+        into.time = ring.getLong(index + 8);
+        if (into.data == null) {
+            into.data = ring.duplicate();
+        }
+        into.data.limit(index + HEADER + length).position(index + HEADER);
+        into.next = t + HEADER + align(length);
+        return true;
+    }
+
+    /**
+     *
+     * @param r - record returned by take(), now finished with
+     *
+     * Consumer side only. Gives the record's space back to the producer.
+     */
+    public void release(Record r) {
+        tail = r.next;
+    }
+}
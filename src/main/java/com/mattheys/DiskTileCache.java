@@ -0,0 +1,224 @@
+/*
+ * Size-bounded on-disk cache of map tiles.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * DiskTileCache keeps the raw PNG bytes of tiles we have downloaded in a
+ * directory of their own, one file per tile named z.x.y.png. The directory is
+ * nmea.tile.cache.dir if that is set and .nmea-replayer/tiles in the user's
+ * home directory if not.
+ *
+ * The total size of the files is capped at nmea.tile.disk.mb megabytes (512
+ * by default). When a new tile takes us over the limit the least recently used
+ * tiles are deleted. Use is tracked through the file modification time, which
+ * is bumped on every hit, so the order survives a restart.
+ *
+ * Tiles left in the working directory as .cache.z.x.y.png by older versions
+ * are moved into the cache the first time they are asked for.
+ *
+ * The lock is only held for the bookkeeping (the LRU order, the sizes and the
+ * counters), never while reading or writing a file, so one slow disk read
+ * doesn't hold up the other loader threads and the prefetcher. A tile is
+ * written to a temporary file and moved into place, so a reader never sees
+ * half of one. A tile file that has gone by the time it is read (evicted in
+ * the meantime, or tidied up behind our back) is just a miss.
+ *
+ * @author tony
+ */
+public class DiskTileCache {
+
+    static final long DEFAULT_MB = 512;
+
+    private final File dir;
+    private final long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(1024, 0.75f, true);
+
+    private static final Logger logger = LogManager.getLogger(DiskTileCache.class);
+
+    public DiskTileCache() {
+        this(new File(System.getProperty("nmea.tile.cache.dir",
+                System.getProperty("user.home") + File.separator + ".nmea-replayer" + File.separator + "tiles")),
+                Long.getLong("nmea.tile.disk.mb", DEFAULT_MB) * 1024L * 1024L);
+    }
+
+    /**
+     *
+     * @param dir - directory for the tile files
+     * @param maxBytes - total size the tile files may take up
+     *
+     * Creates the directory if need be and notes the size of every tile already
+     * there, oldest first, so we know what to evict.
+     */
+    public DiskTileCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            logger.error("Can't create tile cache directory {}", dir);
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".png"));
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File f : files) {
+                sizes.put(f.getName(), f.length());
+                bytes += f.length();
+            }
+        }
+        logger.debug("Tile cache {} holds {} tiles, {} bytes", dir, sizes.size(), bytes);
+        delete(evict());
+    }
+
+    private static String fileName(String tile) {
+        return tile.replace("/", ".");
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     * @return the PNG bytes, or null if we don't have the tile
+     */
+    public byte[] get(String tile) {
+        String name = fileName(tile);
+        File f = new File(dir, name);
+        boolean known;
+        synchronized (this) {
+            known = sizes.get(name) != null; // get() moves it to the young end
+        }
+        if (!known) {
+            File legacy = new File(".cache." + name);
+            if (!legacy.exists()) {
+                miss();
+                return null;
+            }
+            try {
+                Files.move(legacy.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                logger.error("Can't move {} into the tile cache: {}", legacy, ex.toString());
+                miss();
+                return null;
+            }
+            added(name, f.length());
+        }
+        try {
+            byte[] data = Files.readAllBytes(f.toPath());
+            f.setLastModified(System.currentTimeMillis());
+            synchronized (this) {
+                hits++;
+            }
+            return data;
+        } catch (IOException ex) {
+            synchronized (this) {
+                if (!f.exists()) {
+                    // evicted since, or somebody tidied up behind our back
+                    Long size = sizes.remove(name);
+                    bytes -= (size == null) ? 0 : size;
+                }
+                misses++;
+            }
+            return null;
+        }
+    }
+
+    private synchronized void miss() {
+        misses++;
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     * @param data - the PNG bytes
+     */
+    public void put(String tile, byte[] data) {
+        String name = fileName(tile);
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(dir.toPath(), ".", ".tmp");
+            Files.write(tmp, data);
+            Files.move(tmp, new File(dir, name).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.error("Can't write tile {} to the cache: {}", tile, ex.toString());
+            if (tmp != null) {
+                tmp.toFile().delete();
+            }
+            return;
+        }
+        added(name, data.length);
+    }
+
+    /**
+     * Notes a tile file that is now in the directory and deletes whatever
+     * that pushes out.
+     */
+    private void added(String name, long size) {
+        List<String> evicted;
+        synchronized (this) {
+            Long old = sizes.put(name, size);
+            bytes += size - ((old == null) ? 0 : old);
+            evicted = evict();
+        }
+        delete(evicted);
+    }
+
+    /**
+     * Takes least recently used tiles off the books until we are under the
+     * limit. Must be called holding the lock.
+     *
+     * @return the names of the files to delete, once the lock is let go
+     */
+    private List<String> evict() {
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            evicted.add(eldest.getKey());
+            bytes -= eldest.getValue();
+            it.remove();
+        }
+        return evicted;
+    }
+
+    private void delete(List<String> names) {
+        for (String name : names) {
+            new File(dir, name).delete();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return total size of the tile files
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "disk tiles=" + sizes.size() + " bytes=" + bytes + " hits=" + hits + " misses=" + misses;
+    }
+}
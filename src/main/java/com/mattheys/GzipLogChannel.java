@@ -0,0 +1,759 @@
+/*
+ * Random access into gzip compressed logs.
+ */
+package com.mattheys;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * GzipLogChannel plays a .gz log without decompressing it to disk first.
+ *
+ * Reading forward just decompresses as it goes. To seek without starting again
+ * from the front of the file every time, the channel notes a checkpoint at the
+ * first deflate block boundary after every SPACING bytes of output: where in
+ * the compressed file (to the bit) the block starts and the 32K of output
+ * before it, which is all the state a deflate decoder carries from one block
+ * to the next. A seek then only has to decompress from the nearest checkpoint
+ * before the target, at most SPACING bytes. The windows are kept deflated
+ * so the checkpoints for a 10GB log take a few MB.
+ *
+ * java.util.zip.Inflater can't say where its blocks start or be restarted in
+ * the middle of a stream, so there is a decoder here as well, a plain table
+ * driven one after RFC 1950 and 1951. It is several times slower than
+ * Inflater, so it is only used where it has to be: from a checkpoint up to
+ * the next byte aligned block boundary, and over stretches of the file that
+ * nobody has laid checkpoints through yet. Everywhere else, and from the start
+ * of every member, the channel hands the rest of the member to Inflater,
+ * giving it the window as a dictionary when it takes over part way through.
+ * Files made of several members, as written by bgzip or by appending to a
+ * .gz, are handled. The CRC in each member trailer is not checked.
+ *
+ * The checkpoints are shared by every channel open on the same file, so once
+ * the TimeIndex has read the whole log in the background the player, the
+ * scrubber and the tile prefetcher can all seek anywhere in it cheaply, and
+ * the exact uncompressed length is known. They are kept for the last
+ * MAX_FILES files opened.
+ *
+ * @author tony
+ */
+public class GzipLogChannel implements LogChannel {
+
+    static final long SPACING = 4L * 1024L * 1024L;
+    static final int WINDOW = 32 * 1024;
+    static final int IN_SIZE = 64 * 1024;
+    static final int MAX_FILES = 8;
+    private static final int MASK = WINDOW - 1;
+
+    private static final int MEMBER = 0, BLOCK = 1, STORED = 2, HUFFMAN = 3, TRAILER = 4, END = 5;
+
+    private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+        35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+    private static final int[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+        3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+    private static final int[] DIST_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+        257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+    private static final int[] DIST_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+        7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+    private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    private static final Huffman FIXED_LIT;
+    private static final Huffman FIXED_DIST;
+
+    static {
+        byte[] lengths = new byte[288];
+        Arrays.fill(lengths, 0, 144, (byte) 8);
+        Arrays.fill(lengths, 144, 256, (byte) 9);
+        Arrays.fill(lengths, 256, 280, (byte) 7);
+        Arrays.fill(lengths, 280, 288, (byte) 8);
+        FIXED_LIT = new Huffman();
+        FIXED_LIT.build(lengths, 0, 288);
+        Arrays.fill(lengths, 0, 32, (byte) 5);
+        FIXED_DIST = new Huffman();
+        FIXED_DIST.build(lengths, 0, 32);
+    }
+
+    // least recently opened first
+    private static final Map<String, Checkpoints> CHECKPOINTS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Checkpoints> eldest) {
+            return size() > MAX_FILES;
+        }
+    };
+
+    private final File file;
+    private final FileChannel channel;
+    private final Checkpoints checkpoints;
+
+    // where we are in the compressed file
+    private final byte[] in = new byte[IN_SIZE];
+    private final ByteBuffer inBuffer = ByteBuffer.wrap(in);
+    private int inPos = 0;
+    private int inLimit = 0;
+    private long inBase = 0; // file offset of in[0]
+    private long bitBuf = 0;
+    private int bitCount = 0;
+
+    // where we are in the output
+    private final byte[] window = new byte[WINDOW];
+    private final byte[] scratch = new byte[IN_SIZE];
+    private long out = 0;
+    private int mode = MEMBER;
+    private boolean lastBlock = false;
+    private int storedRemaining = 0;
+    private int copyLength = 0;
+    private int copyDistance = 0;
+    private Huffman lit;
+    private Huffman dist;
+    private final Huffman dynamicLit = new Huffman();
+    private final Huffman dynamicDist = new Huffman();
+    private final Huffman codeLengths = new Huffman();
+    private final byte[] lengths = new byte[288 + 32];
+
+    // Inflater has the rest of the member when fast is set
+    private final Inflater inflater = new Inflater(true);
+    private boolean fast = false;
+    private boolean memberStart = false;
+    private boolean bgzipMember = false; // at most 64K, so its start is checkpoint enough
+
+    private static final Logger logger = LogManager.getLogger(GzipLogChannel.class);
+
+    /**
+     *
+     * @param file - the compressed log
+     * @param channel - the file, already open
+     */
+    GzipLogChannel(File file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        String key = file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+        synchronized (CHECKPOINTS) {
+            checkpoints = CHECKPOINTS.computeIfAbsent(key, k -> new Checkpoints());
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        long total = checkpoints.total;
+        if (total >= 0 && position >= total) {
+            return -1;
+        }
+        if (position < out || position - out > SPACING) {
+            restore(position);
+        }
+        while (out < position) {
+            if (inflate(scratch, 0, (int) Math.min(scratch.length, position - out)) == 0) {
+                return -1;
+            }
+        }
+        int n = inflate(scratch, 0, Math.min(scratch.length, dst.remaining()));
+        if (n == 0) {
+            return -1;
+        }
+        dst.put(scratch, 0, n);
+        return n;
+    }
+
+    /**
+     * The exact length once some channel on this file has read to the end of
+     * it. Before that it is only known for a bgzip file, whose members say
+     * how long they are compressed so their trailers can all be added up
+     * without decompressing anything. Any other file may be one member or
+     * several, and the trailers can't be found without decompressing, so its
+     * length is unknown.
+     *
+     * @return the length, or -1 if it isn't known yet
+     */
+    @Override
+    public long size() throws IOException {
+        long total = checkpoints.total;
+        if (total < 0 && !checkpoints.notBgzip) {
+            total = bgzipSize();
+            if (total >= 0) {
+                checkpoints.end(total);
+            } else {
+                checkpoints.notBgzip = true;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the sum of the ISIZE of every member, or -1 if any member isn't
+     * a bgzip member with a BC field giving its size
+     */
+    private long bgzipSize() throws IOException {
+        long compressed = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(18);
+        ByteBuffer trailer = ByteBuffer.allocate(4);
+        long offset = 0;
+        long total = 0;
+        while (offset < compressed) {
+            header.clear();
+            if (channel.read(header, offset) < 18 || (header.get(0) & 0xff) != 0x1f || (header.get(1) & 0xff) != 0x8b
+                    || header.get(2) != 8 || (header.get(3) & 4) == 0 || header.get(10) != 6 || header.get(11) != 0
+                    || header.get(12) != 'B' || header.get(13) != 'C' || header.get(14) != 2 || header.get(15) != 0) {
+                return -1;
+            }
+            long next = offset + ((header.get(16) & 0xff) | (header.get(17) & 0xff) << 8) + 1;
+            trailer.clear();
+            if (next > compressed || channel.read(trailer, next - 4) < 4) {
+                return -1;
+            }
+            total += (trailer.get(0) & 0xffL) | (trailer.get(1) & 0xffL) << 8
+                    | (trailer.get(2) & 0xffL) << 16 | (trailer.get(3) & 0xffL) << 24;
+            offset = next;
+        }
+        return total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    /**
+     * Puts the decoder at the last checkpoint before the position, or back at
+     * the start of the file if there isn't one.
+     */
+    private void restore(long position) throws IOException {
+        Checkpoints.Checkpoint cp = checkpoints.before(position);
+        if (position >= out && (cp == null || cp.out <= out)) {
+            return; // we are nearer already
+        }
+        bitBuf = 0;
+        bitCount = 0;
+        copyLength = 0;
+        lastBlock = false;
+        fast = false;
+        memberStart = false;
+        if (cp == null) {
+            seekInput(0);
+            out = 0;
+            mode = MEMBER;
+            return;
+        }
+        seekInput(cp.bit >>> 3);
+        need((int) (cp.bit & 7));
+        drop((int) (cp.bit & 7));
+        cp.window(window);
+        out = cp.out;
+        mode = BLOCK;
+    }
+
+    private void seekInput(long offset) {
+        inBase = offset;
+        inPos = 0;
+        inLimit = 0;
+    }
+
+    /**
+     * @return false at the end of the file
+     */
+    private boolean fill() throws IOException {
+        inBase += inLimit;
+        inPos = 0;
+        inLimit = 0;
+        inBuffer.clear();
+        int n = channel.read(inBuffer, inBase);
+        if (n <= 0) {
+            return false;
+        }
+        inLimit = n;
+        return true;
+    }
+
+    private boolean haveInput() throws IOException {
+        return bitCount >= 8 || inPos < inLimit || fill();
+    }
+
+    private void need(int n) throws IOException {
+        while (bitCount < n) {
+            if (inPos == inLimit && !fill()) {
+                throw new EOFException(file + " is cut short");
+            }
+            bitBuf |= (long) (in[inPos++] & 0xff) << bitCount;
+            bitCount += 8;
+        }
+    }
+
+    private void drop(int n) {
+        bitBuf >>>= n;
+        bitCount -= n;
+    }
+
+    private int bits(int n) throws IOException {
+        need(n);
+        int v = (int) (bitBuf & ((1L << n) - 1));
+        drop(n);
+        return v;
+    }
+
+    /**
+     * @return bit offset in the file of the next unread bit
+     */
+    private long bitPosition() {
+        return (inBase + inPos) * 8L - bitCount;
+    }
+
+    private int decode(Huffman h) throws IOException {
+        // near the end of the file there may not be maxBits left, which is fine
+        // as long as the code itself is there
+        while (bitCount < h.maxBits) {
+            if (inPos == inLimit && !fill()) {
+                break;
+            }
+            bitBuf |= (long) (in[inPos++] & 0xff) << bitCount;
+            bitCount += 8;
+        }
+        int entry = h.table[(int) (bitBuf & h.mask)];
+        int len = entry & 15;
+        if (len == 0 || len > bitCount) {
+            throw new ZipException(file + ": bad Huffman code at bit " + bitPosition());
+        }
+        drop(len);
+        return entry >>> 4;
+    }
+
+    /**
+     * Hands the rest of the member to Inflater. The decoder must be at a block
+     * boundary on a byte boundary.
+     */
+    private void startInflater() {
+        int buffered = bitCount >>> 3;
+        if (inPos >= buffered) {
+            inPos -= buffered;
+        } else {
+            seekInput(bitPosition() >>> 3);
+        }
+        bitBuf = 0;
+        bitCount = 0;
+        inflater.reset();
+        if (!memberStart) {
+            int n = (int) Math.min(out, WINDOW);
+            byte[] dictionary = new byte[n];
+            int start = (int) ((out - n) & MASK);
+            int first = Math.min(n, WINDOW - start);
+            System.arraycopy(window, start, dictionary, 0, first);
+            System.arraycopy(window, 0, dictionary, first, n - first);
+            inflater.setDictionary(dictionary);
+        }
+        inflater.setInput(in, inPos, inLimit - inPos);
+        fast = true;
+    }
+
+    /**
+     * Decompresses up to len bytes into b with Inflater.
+     *
+     * @return how many bytes were produced, which is only 0 at the end of the
+     * member, when the decoder takes over again to read the trailer
+     */
+    private int inflateFast(byte[] b, int off, int len) throws IOException {
+        try {
+            while (true) {
+                int n = inflater.inflate(b, off, len);
+                if (n > 0) {
+                    out += n;
+                    return n;
+                }
+                if (inflater.finished()) {
+                    inPos = inLimit - inflater.getRemaining();
+                    fast = false;
+                    mode = TRAILER;
+                    return 0;
+                }
+                if (inflater.needsDictionary()) {
+                    throw new ZipException(file + ": unexpected dictionary");
+                }
+                if (!fill()) {
+                    throw new EOFException(file + " is cut short");
+                }
+                inflater.setInput(in, 0, inLimit);
+            }
+        } catch (DataFormatException ex) {
+            throw new ZipException(file + ": " + ex.getMessage());
+        }
+    }
+
+    private void emit(byte[] b, int i, byte c) {
+        window[(int) (out & MASK)] = c;
+        b[i] = c;
+        out++;
+    }
+
+    /**
+     * Decompresses up to len bytes into b.
+     *
+     * @return how many bytes were produced, which is only 0 at the end of the
+     * file
+     */
+    private int inflate(byte[] b, int off, int len) throws IOException {
+        int produced = 0;
+        while (produced < len) {
+            if (fast) {
+                produced += inflateFast(b, off + produced, len - produced);
+                continue;
+            }
+            if (copyLength > 0) {
+                int n = Math.min(copyLength, len - produced);
+                for (int k = 0; k < n; k++) {
+                    emit(b, off + produced++, window[(int) ((out - copyDistance) & MASK)]);
+                }
+                copyLength -= n;
+                continue;
+            }
+            switch (mode) {
+                case MEMBER -> {
+                    if (!haveInput() || !member()) {
+                        mode = END;
+                    } else {
+                        mode = BLOCK;
+                        memberStart = true;
+                    }
+                }
+                case BLOCK -> {
+                    if (lastBlock) {
+                        mode = TRAILER;
+                    } else {
+                        long bit = bitPosition();
+                        checkpoints.offer(out, bit, window);
+                        if ((bit & 7) == 0 && (checkpoints.covers(out) || (memberStart && bgzipMember))) {
+                            startInflater();
+                        } else {
+                            block();
+                        }
+                        memberStart = false;
+                    }
+                }
+                case STORED -> {
+                    if (storedRemaining == 0) {
+                        mode = BLOCK;
+                    } else {
+                        emit(b, off + produced++, (byte) bits(8));
+                        storedRemaining--;
+                    }
+                }
+                case HUFFMAN -> {
+                    int sym = decode(lit);
+                    if (sym < 256) {
+                        emit(b, off + produced++, (byte) sym);
+                    } else if (sym == 256) {
+                        mode = BLOCK;
+                    } else {
+                        sym -= 257;
+                        if (sym >= LENGTH_BASE.length) {
+                            throw new ZipException(file + ": bad length code");
+                        }
+                        copyLength = LENGTH_BASE[sym] + bits(LENGTH_EXTRA[sym]);
+                        int d = decode(dist);
+                        if (d >= DIST_BASE.length) {
+                            throw new ZipException(file + ": bad distance code");
+                        }
+                        copyDistance = DIST_BASE[d] + bits(DIST_EXTRA[d]);
+                        if (copyDistance > out) {
+                            throw new ZipException(file + ": distance too far back");
+                        }
+                    }
+                }
+                case TRAILER -> {
+                    drop(bitCount & 7);
+                    bits(16);
+                    bits(16); // CRC32
+                    bits(16);
+                    bits(16); // ISIZE
+                    lastBlock = false;
+                    mode = MEMBER;
+                }
+                default -> {
+                    checkpoints.end(out);
+                    return produced;
+                }
+            }
+        }
+        return produced;
+    }
+
+    /**
+     * Reads a gzip member header.
+     *
+     * @return false if there isn't one, which is an error at the start of the
+     * file but only trailing rubbish after the last member
+     */
+    private boolean member() throws IOException {
+        boolean first = bitPosition() == 0;
+        try {
+            if (bits(8) != 0x1f || bits(8) != 0x8b || bits(8) != 8) {
+                if (first) {
+                    throw new ZipException(file + " is not a gzip file");
+                }
+                logger.debug("Ignoring rubbish after the last member of {}", file);
+                return false;
+            }
+        } catch (EOFException ex) {
+            if (first) {
+                throw ex;
+            }
+            return false;
+        }
+        int flags = bits(8);
+        bits(16);
+        bits(16); // MTIME
+        bits(8); // XFL
+        bits(8); // OS
+        bgzipMember = false;
+        if ((flags & 4) != 0) { // FEXTRA
+            int n = bits(16);
+            while (n >= 4) {
+                int id = bits(16);
+                int len = bits(16);
+                n -= 4;
+                bgzipMember |= id == ('B' | 'C' << 8) && len == 2;
+                for (; len > 0 && n > 0; len--, n--) {
+                    bits(8);
+                }
+            }
+            for (; n > 0; n--) {
+                bits(8);
+            }
+        }
+        if ((flags & 8) != 0) { // FNAME
+            while (bits(8) != 0) {
+            }
+        }
+        if ((flags & 16) != 0) { // FCOMMENT
+            while (bits(8) != 0) {
+            }
+        }
+        if ((flags & 2) != 0) { // FHCRC
+            bits(16);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a deflate block header and gets ready to decode the block.
+     */
+    private void block() throws IOException {
+        lastBlock = bits(1) == 1;
+        int type = bits(2);
+        switch (type) {
+            case 0 -> {
+                drop(bitCount & 7);
+                int len = bits(16);
+                int nlen = bits(16);
+                if (len != (~nlen & 0xffff)) {
+                    throw new ZipException(file + ": bad stored block length");
+                }
+                storedRemaining = len;
+                mode = STORED;
+            }
+            case 1 -> {
+                lit = FIXED_LIT;
+                dist = FIXED_DIST;
+                mode = HUFFMAN;
+            }
+            case 2 -> {
+                dynamic();
+                mode = HUFFMAN;
+            }
+            default -> throw new ZipException(file + ": bad block type");
+        }
+    }
+
+    private void dynamic() throws IOException {
+        int nlit = bits(5) + 257;
+        int ndist = bits(5) + 1;
+        int ncode = bits(4) + 4;
+        Arrays.fill(lengths, 0, 19, (byte) 0);
+        for (int i = 0; i < ncode; i++) {
+            lengths[CODE_LENGTH_ORDER[i]] = (byte) bits(3);
+        }
+        codeLengths.build(lengths, 0, 19);
+        int i = 0;
+        while (i < nlit + ndist) {
+            int sym = decode(codeLengths);
+            if (sym < 16) {
+                lengths[i++] = (byte) sym;
+                continue;
+            }
+            byte value = 0;
+            int repeat;
+            if (sym == 16) {
+                if (i == 0) {
+                    throw new ZipException(file + ": repeat with nothing to repeat");
+                }
+                value = lengths[i - 1];
+                repeat = 3 + bits(2);
+            } else if (sym == 17) {
+                repeat = 3 + bits(3);
+            } else {
+                repeat = 11 + bits(7);
+            }
+            if (i + repeat > nlit + ndist) {
+                throw new ZipException(file + ": too many code lengths");
+            }
+            while (repeat-- > 0) {
+                lengths[i++] = value;
+            }
+        }
+        dynamicLit.build(lengths, 0, nlit);
+        dynamicDist.build(lengths, nlit, ndist);
+        lit = dynamicLit;
+        dist = dynamicDist;
+    }
+
+    /**
+     * A canonical Huffman code as one lookup table indexed by the next maxBits
+     * bits of input. Each entry is the symbol shifted left four bits plus the
+     * length of its code, or 0 where there is no code. The table is reused
+     * for every block.
+     */
+    private static class Huffman {
+
+        final int[] table = new int[1 << 15];
+        final int[] count = new int[16];
+        final int[] next = new int[16];
+        int maxBits;
+        long mask;
+
+        void build(byte[] lengths, int start, int n) {
+            Arrays.fill(count, 0);
+            int max = 1;
+            for (int i = 0; i < n; i++) {
+                count[lengths[start + i]]++;
+                max = Math.max(max, lengths[start + i]);
+            }
+            count[0] = 0;
+            int code = 0;
+            for (int len = 1; len < 16; len++) {
+                code = (code + count[len - 1]) << 1;
+                next[len] = code;
+            }
+            maxBits = max;
+            mask = (1L << max) - 1;
+            int size = 1 << max;
+            Arrays.fill(table, 0, size, 0);
+            for (int sym = 0; sym < n; sym++) {
+                int len = lengths[start + sym];
+                if (len == 0) {
+                    continue;
+                }
+                int reversed = Integer.reverse(next[len]++) >>> (32 - len);
+                for (int k = reversed; k < size; k += 1 << len) {
+                    table[k] = (sym << 4) | len;
+                }
+            }
+        }
+    }
+
+    /**
+     * The checkpoints for one file, in order of output offset.
+     */
+    static class Checkpoints {
+
+        static class Checkpoint {
+
+            final long out;
+            final long bit;
+            final byte[] packed;
+
+            Checkpoint(long out, long bit, byte[] packed) {
+                this.out = out;
+                this.bit = bit;
+                this.packed = packed;
+            }
+
+            void window(byte[] window) throws IOException {
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(packed);
+                    if (inflater.inflate(window) != WINDOW) {
+                        throw new ZipException("Checkpoint window is the wrong size");
+                    }
+                } catch (DataFormatException ex) {
+                    throw new ZipException(ex.getMessage());
+                } finally {
+                    inflater.end();
+                }
+            }
+        }
+
+        private Checkpoint[] list = new Checkpoint[64];
+        private int size = 0;
+        volatile long total = -1;
+        volatile boolean notBgzip = false;
+
+        /**
+         * Adds a checkpoint at a block boundary if it is far enough past the
+         * last one. Channels that are behind the last checkpoint pass by the
+         * same block boundaries again, so they never add anything.
+         */
+        synchronized void offer(long out, long bit, byte[] window) {
+            long last = (size == 0) ? 0 : list[size - 1].out;
+            if (out < last + SPACING) {
+                return;
+            }
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            byte[] packed;
+            try {
+                deflater.setInput(window);
+                deflater.finish();
+                byte[] buf = new byte[WINDOW + 64];
+                int n = deflater.deflate(buf);
+                packed = Arrays.copyOf(buf, n);
+            } finally {
+                deflater.end();
+            }
+            if (size == list.length) {
+                list = Arrays.copyOf(list, size * 2);
+            }
+            list[size++] = new Checkpoint(out, bit, packed);
+        }
+
+        /**
+         * @return true if there is no need to look for block boundaries at the
+         * offset, as there are already checkpoints past it
+         */
+        synchronized boolean covers(long offset) {
+            return total >= 0 || (size > 0 && list[size - 1].out > offset);
+        }
+
+        /**
+         * @return the last checkpoint at or before the offset, or null if
+         * there isn't one
+         */
+        synchronized Checkpoint before(long offset) {
+            int lo = 0, hi = size - 1, found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (list[mid].out <= offset) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return (found < 0) ? null : list[found];
+        }
+
+        void end(long length) {
+            if (total < 0) {
+                total = length;
+                logger.debug("Compressed log is {} bytes long, {} checkpoints", length, size);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Random access to a log, compressed or not.
+ */
+package com.mattheys;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * LogChannel is what everything that reads a log reads it through, so that a
+ * gzip compressed log can be played, indexed and scrubbed through just like a
+ * plain one. Offsets are always offsets into the uncompressed log.
+ *
+ * @author tony
+ */
+public interface LogChannel extends Closeable {
+
+    /**
+     *
+     * @param dst - buffer to read into
+     * @param position - offset in the log to read from
+     * @return the number of bytes read, or -1 if position is at or past the
+     * end of the log
+     * @throws IOException if the log can't be read
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * @return the length of the log. For a compressed log this may be -1
+     * until the whole log has been read once.
+     * @throws IOException if the length can't be found
+     */
+    long size() throws IOException;
+
+    /**
+     *
+     * @param file - the log, which is treated as gzip compressed if it starts
+     * with the gzip magic number whatever it is called
+     * @return a channel to read it through
+     * @throws IOException if the file can't be opened
+     */
+    static LogChannel open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            channel.read(magic, 0);
+            if (magic.position() == 2 && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b) {
+                return new GzipLogChannel(file, channel);
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new Plain(channel);
+    }
+
+    /**
+     * An uncompressed log, which is just the file.
+     */
+    class Plain implements LogChannel {
+
+        private final FileChannel channel;
+
+        Plain(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Replays several logs as one, in time order.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MergedSentenceSource reads several logs at once (GPS in one file, AIS in
+ * another, depth and wind in a third, say) and hands their sentences out as
+ * one stream in time order. It is a streaming k-way merge: each file is read
+ * through its own SentenceSource with its own read-ahead buffer, and a binary
+ * heap of the files, keyed on the time of each file's next sentence, says
+ * which one goes next. Memory is a buffer per file whatever the size of the
+ * files, and nothing is sorted or copied to disk first.
+ *
+ * Times are the \c: capture time from a tag block or the time of RMC, GGA,
+ * GLL and ZDA sentences, as for ReplayScheduler, or the stored time in a
+ * binary log. So that files with either kind of time can be merged, only the
+ * time of day is used, unwrapped across midnight per file starting from the
+ * day of a common reference time. That works as long as the files were logged
+ * over the same days. A sentence with no time of its own keeps its place
+ * after the sentence before it in its own file.
+ *
+ * Offsets for position() and seek() are the sum of the offsets in every file,
+ * so they run from 0 to size(), the total size of the files, and only ever go
+ * up as the merge goes on. The sum alone doesn't say where each file was, so
+ * every BOOKMARK_SPACING bytes of it the merge notes where it is in each file
+ * and the times it is unwrapping from. A seek goes back to the last bookmark
+ * before the offset and reads forward from there, so it comes to exactly the
+ * same place, and seeking to a position() carries on with the same sentence.
+ * A seek past the last bookmark reads forward from it, leaving bookmarks as
+ * it goes. The bookmarks are shared by every merge of the same files, so once
+ * the TrackIndex has read them through in the background any seek is cheap.
+ * They are kept for the last MAX_SETS sets of files opened.
+ *
+ * @author tony
+ */
+public class MergedSentenceSource implements SentenceSource {
+
+    static final long DAY = TimeIndex.DAY;
+    static final long BOOKMARK_SPACING = 256L * 1024L;
+    static final int MAX_SETS = 8;
+
+    // least recently opened first
+    private static final Map<String, Bookmarks> BOOKMARKS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bookmarks> eldest) {
+            return size() > MAX_SETS;
+        }
+    };
+
+    private final SentenceSource[] sources;
+    private final long[] key; // time of each file's next sentence
+    private final long[] last; // last time seen in each file
+    private final long[] lastBefore; // last before each file's next sentence was read
+    private final long[] time; // time of each file's next sentence, -1 if it has none
+    private final boolean[] ready; // the file's next sentence has been read
+    private final int[] heap;
+    private int heapSize = 0;
+    private final NMEASentence parser = new NMEASentence();
+    private final byte[] sentence = new byte[SentenceReader.MAX_SENTENCE];
+    private int length = 0;
+    private long currentTime = -1;
+    private long sentenceOffset = 0;
+    private long size = -1;
+    private long reference = -1; // the day every file's first time is put in
+    private final Bookmarks bookmarks;
+
+    /**
+     *
+     * @param files - the logs to merge, text or binary, plain or gzipped
+     * @throws IOException if any of them can't be opened
+     */
+    public MergedSentenceSource(List<File> files) throws IOException {
+        sources = new SentenceSource[files.size()];
+        StringBuilder names = new StringBuilder();
+        try {
+            for (int i = 0; i < sources.length; i++) {
+                File f = files.get(i);
+                sources[i] = SentenceSource.open(f);
+                names.append(f.getCanonicalPath()).append(':').append(f.length()).append(':')
+                        .append(f.lastModified()).append('\n');
+            }
+        } catch (IOException ex) {
+            closeAll(sources);
+            throw ex;
+        }
+        synchronized (BOOKMARKS) {
+            bookmarks = BOOKMARKS.computeIfAbsent(names.toString(), k -> new Bookmarks());
+        }
+        key = new long[sources.length];
+        last = new long[sources.length];
+        lastBefore = new long[sources.length];
+        time = new long[sources.length];
+        ready = new boolean[sources.length];
+        heap = new int[sources.length];
+        align();
+    }
+
+    /**
+     * @return number of files being merged
+     */
+    public int sourceCount() {
+        return sources.length;
+    }
+
+    @Override
+    public byte[] sentence() {
+        return sentence;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public long sentenceOffset() {
+        return sentenceOffset;
+    }
+
+    /**
+     * @return sum over the files of the offset of the next sentence in each
+     */
+    @Override
+    public long position() {
+        long p = 0;
+        for (int i = 0; i < sources.length; i++) {
+            p += ready[i] ? sources[i].sentenceOffset() : sources[i].position();
+        }
+        return p;
+    }
+
+    /**
+     * @return total size of the files, or -1 if the size of any of them isn't
+     * known yet
+     */
+    @Override
+    public long size() throws IOException {
+        if (size < 0) {
+            long s = 0;
+            for (SentenceSource source : sources) {
+                long n = source.size();
+                if (n < 0) {
+                    return -1;
+                }
+                s += n;
+            }
+            size = s;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean timed() {
+        return true;
+    }
+
+    @Override
+    public long time() {
+        return currentTime;
+    }
+
+    /**
+     *
+     * @param offset - a position() to carry on from, or anywhere in between,
+     * in which case reading carries on from the first sentence after it
+     * @throws IOException if a file can't be read
+     */
+    @Override
+    public void seek(long offset) throws IOException {
+        Bookmarks.Bookmark b = bookmarks.before(offset);
+        if (b == null) {
+            for (SentenceSource source : sources) {
+                source.seek(0);
+            }
+            align();
+        } else {
+            reference = b.reference;
+            heapSize = 0;
+            for (int i = 0; i < sources.length; i++) {
+                sources[i].seek(b.offsets[i]);
+                last[i] = b.last[i];
+                if (advance(i)) {
+                    heap[heapSize++] = i;
+                }
+            }
+            heapify();
+        }
+        while (heapSize > 0 && position() < offset) {
+            next();
+        }
+    }
+
+    @Override
+    public int next() throws IOException {
+        if (heapSize == 0) {
+            return -1;
+        }
+        sentenceOffset = position();
+        int i = heap[0];
+        SentenceSource s = sources[i];
+        length = s.length();
+        System.arraycopy(s.sentence(), 0, sentence, 0, length);
+        currentTime = time[i];
+        if (advance(i)) {
+            siftDown(0);
+        } else {
+            heap[0] = heap[--heapSize];
+            siftDown(0);
+        }
+        long p = position();
+        if (p >= bookmarks.next) {
+            bookmarks.offer(p, this);
+        }
+        return length;
+    }
+
+    /**
+     * Reads the first sentence of every file and builds the heap. All the
+     * files are unwrapped from the same day, the one nearest the first time
+     * in the biggest file, so that files that start either side of midnight
+     * still line up.
+     */
+    private void align() throws IOException {
+        heapSize = 0;
+        reference = -1;
+        int biggest = 0;
+        for (int i = 0; i < sources.length; i++) {
+            last[i] = -1;
+            ready[i] = false;
+            if (sources[i].size() > sources[biggest].size()) {
+                biggest = i;
+            }
+        }
+        // find a reference time of day, a day in so nothing goes below zero
+        for (int k = 0; k < sources.length && reference < 0; k++) {
+            int i = (biggest + k) % sources.length;
+            if (advance(i) && time[i] >= 0) {
+                reference = DAY + time[i];
+                key[i] = time[i] = last[i] = reference;
+            }
+        }
+        for (int i = 0; i < sources.length; i++) {
+            if (!ready[i]) {
+                advance(i);
+            } else if (last[i] < 0) {
+                key[i] = Math.max(reference, 0L);
+            }
+        }
+        for (int i = 0; i < sources.length; i++) {
+            if (ready[i]) {
+                heap[heapSize++] = i;
+            }
+        }
+        heapify();
+    }
+
+    private void heapify() {
+        for (int j = heapSize / 2 - 1; j >= 0; j--) {
+            siftDown(j);
+        }
+    }
+
+    /**
+     * Reads the next sentence of file i and works out its time.
+     *
+     * @return false at the end of the file
+     */
+    private boolean advance(int i) throws IOException {
+        SentenceSource s = sources[i];
+        lastBefore[i] = last[i];
+        int n = s.next();
+        if (n < 0) {
+            ready[i] = false;
+            return false;
+        }
+        ready[i] = true;
+        long t;
+        if (s.timed()) {
+            t = s.time();
+        } else {
+            byte[] b = s.sentence();
+            t = ReplayScheduler.captureTime(b, 0, n);
+            if (t < 0 && parser.parse(b, 0, n)) {
+                t = parser.sentenceTime();
+            }
+        }
+        if (t >= 0) {
+            int tod = (int) (t % DAY);
+            if (last[i] >= 0) {
+                t = Math.max(TimeIndex.unwrap(last[i], tod), last[i]);
+            } else if (reference >= 0) {
+                t = nearest(reference, tod);
+            } else {
+                t = tod;
+            }
+            last[i] = t;
+            key[i] = t;
+        } else {
+            key[i] = last[i] >= 0 ? last[i] : Math.max(reference, 0L);
+        }
+        time[i] = t;
+        return true;
+    }
+
+    /**
+     * @return the time with this time of day nearest to the reference
+     */
+    static long nearest(long reference, long tod) {
+        long t = (reference / DAY) * DAY + tod;
+        if (t < reference - DAY / 2) {
+            t += DAY;
+        } else if (t > reference + DAY / 2) {
+            t -= DAY;
+        }
+        return t;
+    }
+
+    private boolean less(int a, int b) {
+        return key[a] < key[b] || (key[a] == key[b] && a < b);
+    }
+
+    private void siftDown(int j) {
+        while (true) {
+            int l = 2 * j + 1;
+            if (l >= heapSize) {
+                return;
+            }
+            int m = (l + 1 < heapSize && less(heap[l + 1], heap[l])) ? l + 1 : l;
+            if (!less(heap[m], heap[j])) {
+                return;
+            }
+            int tmp = heap[m];
+            heap[m] = heap[j];
+            heap[j] = tmp;
+            j = m;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeAll(sources);
+    }
+
+    private static void closeAll(SentenceSource[] sources) throws IOException {
+        IOException first = null;
+        for (SentenceSource s : sources) {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException ex) {
+                    if (first == null) {
+                        first = ex;
+                    }
+                }
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    /**
+     * Where a merge of one set of files was at points BOOKMARK_SPACING apart,
+     * in order of position().
+     */
+    static class Bookmarks {
+
+        static class Bookmark {
+
+            final long position;
+            final long[] offsets; // of each file's next sentence, or its end
+            final long[] last; // last time in each file before that sentence
+            final long reference;
+
+            Bookmark(long position, long[] offsets, long[] last, long reference) {
+                this.position = position;
+                this.offsets = offsets;
+                this.last = last;
+                this.reference = reference;
+            }
+        }
+
+        private Bookmark[] list = new Bookmark[64];
+        private int size = 0;
+        volatile long next = BOOKMARK_SPACING;
+
+        /**
+         * Notes where the merge is if it is far enough past the last bookmark.
+         * Merges that are behind the last bookmark never get here.
+         */
+        synchronized void offer(long position, MergedSentenceSource m) {
+            if (position < next) {
+                return;
+            }
+            int n = m.sources.length;
+            long[] offsets = new long[n];
+            for (int i = 0; i < n; i++) {
+                offsets[i] = m.ready[i] ? m.sources[i].sentenceOffset() : m.sources[i].position();
+            }
+            if (size == list.length) {
+                list = Arrays.copyOf(list, size * 2);
+            }
+            list[size++] = new Bookmark(position, offsets, m.lastBefore.clone(), m.reference);
+            next = position + BOOKMARK_SPACING;
+        }
+
+        /**
+         * @return the last bookmark at or before the position, or null if
+         * there isn't one
+         */
+        synchronized Bookmark before(long position) {
+            int lo = 0, hi = size - 1, found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (list[mid].position <= position) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return (found < 0) ? null : list[found];
+        }
+    }
+}
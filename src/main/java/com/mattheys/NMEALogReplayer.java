@@ -19,7 +19,9 @@ import javafx.stage.WindowEvent;
 public class NMEALogReplayer extends Application {
 
     @Override public void start(Stage stage) throws Exception {
-        Parent root = FXMLLoader.load(getClass().getResource("NMEALogReplayer.fxml"));
+        FXMLLoader loader = new FXMLLoader(getClass().getResource("NMEALogReplayer.fxml"));
+        Parent root = loader.load();
+        NMEALogReplayerController controller = loader.getController();
 
         Scene scene = new Scene(root);
 
@@ -29,7 +31,7 @@ public class NMEALogReplayer extends Application {
             @Override
             public void handle(WindowEvent event
             ) {
-                NMEALogReplayerController.player.killThread();
+                controller.shutdown();
             }
         }
         );
@@ -4,33 +4,33 @@
  */
 package com.mattheys;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.ResourceBundle;
-import java.util.logging.Level;
+import java.util.stream.Collectors;
+import javafx.animation.AnimationTimer;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.Slider;
 import javafx.scene.control.TextArea;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.paint.Color;
 import javafx.scene.web.WebEngine;
 import javafx.stage.FileChooser;
-import javax.imageio.ImageIO;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -50,6 +50,7 @@ public class NMEALogReplayerController implements Initializable {
     @FXML private Label sliderLabel; // The time from the GPS sentences
     @FXML private TextArea NMEASentences;
     @FXML private Button playButton;
+    @FXML private Button stepButton;
     @FXML private ImageView image1;
     @FXML private ImageView image2;
     @FXML private ImageView image3;
@@ -60,17 +61,39 @@ public class NMEALogReplayerController implements Initializable {
     @FXML private ImageView image8;
     @FXML private ImageView image9;
     @FXML private ImageView circleImage;
+    @FXML private Canvas trackCanvas;
     @FXML private CheckBox sprayAndPray ;
+    @FXML private CheckBox logTiming;
+    @FXML private ChoiceBox<String> speedChoice;
+    @FXML private CheckBox showMetrics;
+    @FXML private Label metricsLabel;
 
-    RandomAccessFile randomAccessFile;
-    long rafLength = 0;
+    long logLength = 0; // -1 until a compressed log has been read through
+    List<File> logFiles = List.of();
+    TimeIndex timeIndex = null;
+    TrackIndex trackIndex = null;
+    boolean trackDrawn = false;
+    static final double CLICK_PIXELS = 20.0; // how near the track a click on the map has to be
     static WebEngine webEngine = null;
     static double latitude = 0.0;
     static double longitude = 0.0;
     static int zoom = 10;
     static int x, y = 0;
-    static NMEAPlayer player = new NMEAPlayer();
+    final NMEAPlayer player = new NMEAPlayer();
+    TcpNmeaServer tcpServer = null;
+    final TileLoader tileLoader = new TileLoader();
+    final TilePrefetcher prefetcher = new TilePrefetcher(tileLoader, player);
     static String timeString = "??:??:??";
+    static final NMEASentence fxParser = new NMEASentence();
+    static final ReplayPosition.Fix fxFix = new ReplayPosition.Fix();
+    final ReplayPosition replayPosition = new ReplayPosition();
+    final ReplayPosition.Fix frameFix = new ReplayPosition.Fix();
+    long shownVersion = -1;
+    boolean stepped = false; // show the next sentence sent even though paused
+    boolean following = false; // the slider is being moved to where the player is
+    long metricsShown = 0;
+    AnimationTimer frameTimer;
+    SliderScrubber scrubber; // made in initialize(), it calls back into us
     
     private static final Logger logger = LogManager.getLogger(NMEALogReplayer.class);
 
@@ -134,21 +157,41 @@ public class NMEALogReplayerController implements Initializable {
      * that contains that location at the selected zoom level.
      */
     public static String getTileNumber(final double lat, final double lon, final int zoom) {
+        return ("" + zoom + "/" + tileX(lon, zoom) + "/" + tileY(lat, zoom));
+    }
+
+    /**
+     *
+     * @param lon
+     * @param zoom
+     * @return x number of the tile containing that longitude, kept on the map
+     */
+    static int tileX(final double lon, final int zoom) {
         int xtile = (int) Math.floor((lon + 180) / 360 * (1 << zoom));
-        int ytile = (int) Math.floor((1 - Math.log(Math.tan(Math.toRadians(lat)) + 1 / Math.cos(Math.toRadians(lat))) / Math.PI) / 2 * (1 << zoom));
         if (xtile < 0) {
             xtile = 0;
         }
         if (xtile >= (1 << zoom)) {
             xtile = ((1 << zoom) - 1);
         }
+        return xtile;
+    }
+
+    /**
+     *
+     * @param lat
+     * @param zoom
+     * @return y number of the tile containing that latitude, kept on the map
+     */
+    static int tileY(final double lat, final int zoom) {
+        int ytile = (int) Math.floor((1 - Math.log(Math.tan(Math.toRadians(lat)) + 1 / Math.cos(Math.toRadians(lat))) / Math.PI) / 2 * (1 << zoom));
         if (ytile < 0) {
             ytile = 0;
         }
         if (ytile >= (1 << zoom)) {
             ytile = ((1 << zoom) - 1);
         }
-        return ("" + zoom + "/" + xtile + "/" + ytile);
+        return ytile;
     }
 
     /**
@@ -165,63 +208,22 @@ public class NMEALogReplayerController implements Initializable {
      *
      */
     public void updateMapPointer(double lat, double lon) {
-        logger.debug("Image properties X=" + image5.getLayoutX() + " Y=" + image5.getLayoutY());
-        logger.debug("Image properties width=" + image5.getFitWidth() + " height=" + image5.getFitHeight());
-        logger.debug("Current Position Latitude = " + String.format("%.4f", latitude) + " Longitude = " + String.format("%.4f", longitude));
-        logger.debug("image5 Bounding Box NORTH=" + tile2boundingBox(x, y, zoom).north);
-        logger.debug("image5 Bounding Box SOUTH=" + tile2boundingBox(x, y, zoom).south);
-        logger.debug("image5 Bounding Box  EAST=" + tile2boundingBox(x, y, zoom).east);
-        logger.debug("image5 Bounding Box  WEST=" + tile2boundingBox(x, y, zoom).west);
-        double dblx = image5.getLayoutX() + (Math.abs(longitude - tile2boundingBox(x, y, zoom).west) / Math.abs(tile2boundingBox(x, y, zoom).east - tile2boundingBox(x, y, zoom).west)) * image5.getFitWidth();
-        logger.debug("X location in screen pixels " + Math.rint(dblx));
-        double dbly = image5.getLayoutY() + (Math.abs(latitude - tile2boundingBox(x, y, zoom).north) / Math.abs(tile2boundingBox(x, y, zoom).south - tile2boundingBox(x, y, zoom).north)) * image5.getFitHeight();
-        logger.debug("Y location in screen pixels " + Math.rint(dbly));
+        // this runs every frame the vessel moves, so nothing is built for
+        // the log unless it is going to be written
+        BoundingBox box = tile2boundingBox(x, y, zoom);
+        double dblx = image5.getLayoutX() + (Math.abs(longitude - box.west) / Math.abs(box.east - box.west)) * image5.getFitWidth();
+        double dbly = image5.getLayoutY() + (Math.abs(latitude - box.north) / Math.abs(box.south - box.north)) * image5.getFitHeight();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Image properties X={} Y={}", image5.getLayoutX(), image5.getLayoutY());
+            logger.debug("Image properties width={} height={}", image5.getFitWidth(), image5.getFitHeight());
+            logger.debug("Current Position Latitude = {} Longitude = {}", String.format("%.4f", latitude), String.format("%.4f", longitude));
+            logger.debug("image5 Bounding Box NORTH={} SOUTH={} EAST={} WEST={}", box.north, box.south, box.east, box.west);
+            logger.debug("Location in screen pixels X={} Y={}", Math.rint(dblx), Math.rint(dbly));
+        }
         circleImage.setLayoutX(Math.rint(dblx) - circleImage.getFitWidth() / 2);
         circleImage.setLayoutY(Math.rint(dbly) - circleImage.getFitHeight() / 2);
     }
 
-    /**
-     * getMapTile - fetches a map tile either from cache or from a URL
-     *
-     * @param str
-     * @return
-     */
-    public Image getMapTile(String str) {
-        BufferedImage img = null;
-        URL url = null;
-
-        logger.debug("Getting map tile " + str);
-        // https://a.tile-cyclosm.openstreetmap.fr/cyclosm/10/511/511.png
-        try {
-            url = new URL("https://a.tile-cyclosm.openstreetmap.fr/cyclosm/" + str);
-//          url = new URL("https://pyrene.openstreetmap.org/" + str);
-        } catch (MalformedURLException ex) {
-            java.util.logging.Logger.getLogger(NMEALogReplayerController.class.getName()).log(Level.SEVERE, null, ex);
-        }
-
-        File f = new File(".cache." + str.replace("/", "."));
-        if (f.exists()) {
-            logger.debug("cache hit for .cache." + str.replace("/", "."));
-            try {
-                img = ImageIO.read(f);
-            } catch (IOException ex) {
-                java.util.logging.Logger.getLogger(NMEALogReplayerController.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        } else {
-            logger.debug("cache miss for .cache." + str.replace("/", "."));
-            try {
-                img = ImageIO.read(url);
-                logger.debug("Creating new cache file .cache." + str.replace("/", "."));
-                f.createNewFile();
-                ImageIO.write(img, "PNG", f);
-            } catch (IOException ex) {
-                java.util.logging.Logger.getLogger(NMEALogReplayerController.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
-        logger.debug("Returning map tile for " + str);
-        return SwingFXUtils.toFXImage(img, null);
-    }
-
     /**
      *
      * @param lat - latitude
@@ -229,30 +231,58 @@ public class NMEALogReplayerController implements Initializable {
      *
      * Just updates the map with a marker at the specified latitude and longitude
      * Scroll value is set from a variable but it basically stays static right now.
+     *
+     * The tiles are fetched by the TileLoader in the background so this returns
+     * straight away and the images fill in as the tiles arrive.
      */
     public void updateMap(int zoom, double lat, double lon) {
         String str = getTileNumber(lat, lon, zoom);
         x = Integer.parseInt(str.split("/")[1]);
         y = Integer.parseInt(str.split("/")[2]);
 
-        logger.debug("Update Map with : zoom=" + zoom + " lat=" + lat + " lon=" + lon);
-        logger.debug("Update Map tile number calculated as " + str + ".png");
+        logger.debug("Update Map with : zoom={} lat={} lon={}", zoom, lat, lon);
+        logger.debug("Update Map tile number calculated as {}.png", str);
 
-        image1.setImage(getMapTile(String.format("%d", zoom) + "/" + String.format("%d", x - 1) + "/" + String.format("%d", y - 1) + ".png"));
-        image2.setImage(getMapTile(String.format("%d", zoom) + "/" + String.format("%d", x) + "/" + String.format("%d", y - 1) + ".png"));
-        image3.setImage(getMapTile(String.format("%d", zoom) + "/" + String.format("%d", x + 1) + "/" + String.format("%d", y - 1) + ".png"));
-        image4.setImage(getMapTile(String.format("%d", zoom) + "/" + String.format("%d", x - 1) + "/" + String.format("%d", y) + ".png"));
-        image5.setImage(getMapTile(String.format("%d", zoom) + "/" + String.format("%d", x) + "/" + String.format("%d", y) + ".png"));
-        image6.setImage(getMapTile(String.format("%d", zoom) + "/" + String.format("%d", x + 1) + "/" + String.format("%d", y) + ".png"));
-        image7.setImage(getMapTile(String.format("%d", zoom) + "/" + String.format("%d", x - 1) + "/" + String.format("%d", y + 1) + ".png"));
-        image8.setImage(getMapTile(String.format("%d", zoom) + "/" + String.format("%d", x) + "/" + String.format("%d", y + 1) + ".png"));
-        image9.setImage(getMapTile(String.format("%d", zoom) + "/" + String.format("%d", x + 1) + "/" + String.format("%d", y + 1) + ".png"));
+        // Throw away anything still on its way for the last update and ask for
+        // the new tiles. They are painted as they arrive.
+        prefetcher.setZoom(zoom);
+        tileLoader.cancelAll();
+        ImageView[] views = {image1, image2, image3, image4, image5, image6, image7, image8, image9};
+        for (int i = 0; i < views.length; i++) {
+            ImageView view = views[i];
+            int tx = x + (i % 3) - 1;
+            int ty = y + (i / 3) - 1;
+            tileLoader.load(zoom + "/" + tx + "/" + ty + ".png", image -> view.setImage(image));
+        }
 
-        logger.debug("Map update is complete. Updating the pointer as well.");
+        logger.debug("Map update requested. Tile caches: {}", tileLoader.cacheStatistics());
 
+        drawTrack(zoom);
         updateMapPointer(lat, lon);
     }
 
+    /**
+     *
+     * @param zoom - zoom level of the tiles on show
+     *
+     * Draws the whole track (see TrackOverlay) on the canvas over the tiles,
+     * or just clears it if the track index isn't ready yet. Only needs doing
+     * when the tiles change; the pointer moves on its own.
+     */
+    void drawTrack(int zoom) {
+        GraphicsContext gc = trackCanvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, trackCanvas.getWidth(), trackCanvas.getHeight());
+        TrackIndex t = trackIndex;
+        if (t == null || !t.isComplete()) {
+            return;
+        }
+        gc.setStroke(Color.RED);
+        gc.setLineWidth(2.0);
+        int points = t.overlay().draw((xs, ys, n) -> gc.strokePolyline(xs, ys, n), zoom, x - 1, y - 1, 3);
+        trackDrawn = true;
+        logger.debug("Track drawn with {} points", points);
+    }
+
     /**
      *
      * @param ae
@@ -287,79 +317,235 @@ public class NMEALogReplayerController implements Initializable {
      *
      */
     @FXML private void sliderClicked(MouseEvent me) {
-        logger.debug("Slider mouse event just happened : " + me.getEventType().getName());
+        logger.debug("Slider mouse event just happened : {}", me.getEventType().getName());
         updateMap(zoom, latitude, longitude);
         sliderLabel.setText(timeString);
     }
 
     /**
      *
-     * @param fileLine - The NMEA sentence that we need to look at to grab any time
-     * and/or position information to update the GUI. Basically, we look to see if
-     * this is a $>__GLL, $__GGA or $__RMC record, and if so we extract time and
-     * position data from the relevant fields.
+     * @param me - Mouse Event
+     *
+     * Seeks to where the vessel went closest to the spot clicked on the map.
+     * The click is turned into a fractional tile number on the 3x3 grid of
+     * tiles (image1 is the top left one) and from there into latitude and
+     * longitude, and the TrackIndex finds the nearest fix within CLICK_PIXELS
+     * of it. Clicks before the index has been built, or nowhere near the
+     * track, are ignored.
+     */
+    @FXML private void mapClicked(MouseEvent me) {
+        if (trackIndex == null || !trackIndex.isComplete()) {
+            logger.debug("Map clicked before the track index is ready");
+            return;
+        }
+        double n = Math.pow(2.0, zoom);
+        double tx = x - 1 + (me.getX() - image1.getLayoutX()) / image1.getFitWidth();
+        double ty = y - 1 + (me.getY() - image1.getLayoutY()) / image1.getFitHeight();
+        double lon = tx / n * 360.0 - 180.0;
+        double lat = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1.0 - 2.0 * ty / n))));
+        double metresPerPixel = 40075016.686 * Math.cos(Math.toRadians(lat)) / (n * image1.getFitWidth());
+        int i = trackIndex.nearest(lat, lon, CLICK_PIXELS * metresPerPixel);
+        logger.debug("Map clicked at {},{}: fix {}", lat, lon, i);
+        if (i < 0) {
+            return;
+        }
+        long offset = trackIndex.offset(i);
+        if (player.isPlaying()) {
+            player.seek(offset);
+        } else {
+            // the preview points the player at the offset and moves the map
+            moveSlider(offsetToSlider(offset));
+            scrubber.request(offset, true, (int) NMEASentences.getHeight());
+        }
+    }
+
+    /**
      *
-     * We need to be careful here because some GPS units send out empty sentences for
-     * some reason so it's possible we might see null fields which will mess up the
-     * interpretation.
+     * @param fileLine - The NMEA sentence that we need to look at to grab any time
+     * and/or position information to update the GUI.
      *
+     * For the bits of the GUI that read the file as Strings. Only ever called on
+     * the FX thread, which is why a single parser will do.
      */
     public static void updateTimeAndPosition(String fileLine) {
-        logger.debug("Update Time and Position with : " + fileLine);
-        String[] gpsFields = fileLine.split(",");
-        logger.debug("Fields being considered : " + Arrays.toString(gpsFields));
-
-        Boolean fieldsOK = true;
-        int maxIndex = 6;
-        for (int i = 0; (i < gpsFields.length) && (i < maxIndex); i++) {
-            if (gpsFields[i].trim().isEmpty()) {
-                fieldsOK = false;
-                logger.debug("One or more fields are empty so we are skipping this record.");
-            }
+        fxParser.parse(fileLine);
+        updateTimeAndPosition(fxParser);
+    }
+
+    /**
+     *
+     * @param sentence - The parsed NMEA sentence that we need to look at to grab
+     * any time and/or position information to update the GUI. Basically, we look
+     * to see if this is a $__GLL, $__GGA or $__RMC record, and if so we extract
+     * time and position data from the relevant fields (see ReplayPosition.Fix).
+     *
+     * Only ever called on the FX thread. The player thread publishes to
+     * replayPosition instead and updateFromPlayer() picks it up.
+     */
+    public static void updateTimeAndPosition(NMEASentence sentence) {
+        if (!fxFix.extract(sentence)) {
+            return;
         }
+        latitude = fxFix.latitude;
+        longitude = fxFix.longitude;
+        timeString = NMEASentence.formatTimeOfDay(fxFix.timeOfDay);
+    }
 
-        if (fieldsOK) {
-            if (gpsFields[0].contains("GLL")) {
-                logger.debug(gpsFields[1] + gpsFields[2]);
-                logger.debug(gpsFields[3] + gpsFields[4]);
-                logger.debug("GPS Latitude  = " + player.GPStoDecimal(gpsFields[1], gpsFields[2]));
-                logger.debug("GPS Longitude = " + player.GPStoDecimal(gpsFields[3], gpsFields[4]));
-                latitude = player.GPStoDecimal(gpsFields[1], gpsFields[2]);
-                longitude = player.GPStoDecimal(gpsFields[3], gpsFields[4]);
-                logger.debug("Time = " + gpsFields[5]);
-                timeString = gpsFields[5].substring(0, 2) + ":" + gpsFields[5].substring(2, 4) + ":" + gpsFields[5].substring(4, 6);
-                logger.debug("Time String = " + timeString);
+    /**
+     * Called once a frame on the FX thread. If the player has sent anything
+     * since the last frame, move the slider, the time and the map pointer to
+     * where it has got to, and move the map along if it has gone off the
+     * middle tile. However many sentences went out during the frame this is
+     * only done once.
+     */
+    void updateFromPlayer() {
+        if (!trackDrawn && trackIndex != null && trackIndex.isComplete()) {
+            drawTrack(zoom);
+        }
+        if (logLength < 0 && trackIndex != null && trackIndex.isComplete()) {
+            // the index read every file to the end, so the length is known now
+            logLength = 0;
+            try (SentenceSource reader = SentenceSource.open(logFiles)) {
+                logLength = Math.max(0, reader.size());
+            } catch (IOException ex) {
+                logger.fatal(ex);
             }
-            if (gpsFields[0].contains("GGA")) {
-                logger.debug(gpsFields[2] + gpsFields[3]);
-                logger.debug(gpsFields[4] + gpsFields[5]);
-                logger.debug("GPS Latitude  = " + player.GPStoDecimal(gpsFields[2], gpsFields[3]));
-                logger.debug("GPS Longitude = " + player.GPStoDecimal(gpsFields[4], gpsFields[5]));
-                latitude = player.GPStoDecimal(gpsFields[2], gpsFields[3]);
-                longitude = player.GPStoDecimal(gpsFields[4], gpsFields[5]);
-                logger.debug("Time = " + gpsFields[1]);
-                timeString = gpsFields[1].substring(0, 2) + ":" + gpsFields[1].substring(2, 4) + ":" + gpsFields[1].substring(4, 6);
-                logger.debug("Time String = " + timeString);
+        }
+        if (showMetrics.isSelected() && System.nanoTime() - metricsShown > 1_000_000_000L) {
+            metricsLabel.setText(player.getMetrics().summary());
+            metricsShown = System.nanoTime();
+        }
+        long version = replayPosition.read(frameFix);
+        if (version == shownVersion) {
+            return;
+        }
+        shownVersion = version;
+        if (!player.isPlaying() && !stepped) {
+            return; // the slider and buttons are in charge
+        }
+        stepped = false;
+        if (frameFix.offset >= 0 && logLength > 0 && !slider.isPressed()) {
+            moveSlider(offsetToSlider(frameFix.offset));
+        }
+        if (frameFix.timeOfDay >= 0) {
+            timeString = NMEASentence.formatTimeOfDay(frameFix.timeOfDay);
+            sliderLabel.setText(timeString);
+        }
+        if (!Double.isNaN(frameFix.latitude) && (frameFix.latitude != latitude || frameFix.longitude != longitude)) {
+            latitude = frameFix.latitude;
+            longitude = frameFix.longitude;
+            if (tileX(longitude, zoom) != x || tileY(latitude, zoom) != y) {
+                updateMap(zoom, latitude, longitude);
+            } else {
+                updateMapPointer(latitude, longitude);
             }
-            if (gpsFields[0].contains("RMC")) {
-                logger.debug(gpsFields[3] + gpsFields[4]);
-                logger.debug(gpsFields[5] + gpsFields[6]);
-                logger.debug("GPS Latitude  = " + player.GPStoDecimal(gpsFields[3], gpsFields[4]));
-                logger.debug("GPS Longitude = " + player.GPStoDecimal(gpsFields[5], gpsFields[6]));
-                latitude = player.GPStoDecimal(gpsFields[3], gpsFields[4]);
-                longitude = player.GPStoDecimal(gpsFields[5], gpsFields[6]);
-                logger.debug("Time = " + gpsFields[1]);
-                timeString = gpsFields[1].substring(0, 2) + ":" + gpsFields[1].substring(2, 4) + ":" + gpsFields[1].substring(4, 6);
-                logger.debug("Time String = " + timeString);
+        }
+    }
+
+    /**
+     *
+     * @param preview - what the file looks like where the slider now is
+     *
+     * Called on the FX thread by the scrubber. Shows the sentences, picks up
+     * the time and position from them and points the player at the first one.
+     * The map is only moved once the slider has been let go of. While playing
+     * the player just carries on from the new place and updateFromPlayer()
+     * shows where it has got to.
+     */
+    void showPreview(SliderScrubber.Preview preview) {
+        if (player.isPlaying()) {
+            player.seek(preview.offset);
+            return;
+        }
+        NMEASentences.setText(preview.text);
+        if (preview.fix.timeOfDay >= 0) {
+            latitude = preview.fix.latitude;
+            longitude = preview.fix.longitude;
+            timeString = NMEASentence.formatTimeOfDay(preview.fix.timeOfDay);
+        }
+        if (timeIndex != null && timeIndex.size() > 0) {
+            // The index lands us on a sentence so we know the time already
+            sliderLabel.setText(TimeIndex.formatTime(timeIndex.timeAt(preview.offset)));
+        } else {
+            sliderLabel.setText(timeString);
+        }
+        player.seek(preview.offset);
+        if (!slider.isPressed()) {
+            logger.debug("Not pressing the slider button so we can update the map.");
+            updateMap(zoom, latitude, longitude);
+        }
+    }
+
+    /**
+     * Stops the player thread. Called when the window is closed.
+     */
+    public void shutdown() {
+        frameTimer.stop();
+        player.getMetrics().unregisterMBean();
+        scrubber.shutdown();
+        player.killThread();
+        prefetcher.shutdown();
+        tileLoader.shutdown();
+        if (tcpServer != null) {
+            try {
+                tcpServer.close();
+            } catch (IOException ex) {
+                logger.fatal(ex);
             }
         }
     }
 
+    /**
+     * If the nmea.tcp.port property is set, serves what the player sends to
+     * TCP clients on that port as well as broadcasting it.
+     */
+    private void startTcpServer() {
+        String port = System.getProperty("nmea.tcp.port");
+        if (port == null) {
+            return;
+        }
+        try {
+            tcpServer = new TcpNmeaServer(Integer.parseInt(port), TcpNmeaServer.DEFAULT_BACKLOG, false);
+            tcpServer.start();
+            player.addReplayListener(tcpServer);
+        } catch (IOException | IllegalArgumentException ex) {
+            logger.fatal(ex);
+        }
+    }
+
     @FXML private void sprayAndPraySelected(ActionEvent event) {
-        logger.debug("Spray and Pray : " + event.toString());
-        logger.debug("Checkbox isSelected??? : " + sprayAndPray.isSelected() );
+        logger.debug("Spray and Pray : {}", event);
+        logger.debug("Checkbox isSelected??? : {}", sprayAndPray.isSelected());
         player.setSprayAndPray(sprayAndPray.isSelected());
     }
+    /**
+     * @param event - the event that triggered this call
+     *
+     * Shows or hides the metrics panel over the map. It is refreshed once a
+     * second by updateFromPlayer() while it is showing.
+     */
+    @FXML private void showMetricsSelected(ActionEvent event) {
+        metricsLabel.setVisible(showMetrics.isSelected());
+        metricsShown = 0;
+    }
+
+    @FXML private void logTimingSelected(ActionEvent event) {
+        logger.debug("Log Timing : {}", logTiming.isSelected());
+        player.setTimestampPacing(logTiming.isSelected());
+    }
+
+    /**
+     * @param event - the event that triggered this call
+     *
+     * Sets the replay speed from the choice box. The choices look like "10x" so
+     * we just drop the "x" off the end.
+     */
+    @FXML private void speedSelected(ActionEvent event) {
+        String s = speedChoice.getValue();
+        logger.debug("Speed : {}", s);
+        player.setSpeed(Double.parseDouble(s.substring(0, s.length() - 1)));
+    }
+
     /**
      * @param event - the event that triggered this call
      *
@@ -368,57 +554,62 @@ public class NMEALogReplayerController implements Initializable {
      * The user will be prompted for the file to be opened and the program will go
      * ahead and open the file with the file pointer set to the first byte. Then
      * it will read the first few sentences and display them in the GUI so the
-     * user can see them and finally reset the file pointer back to the beginning
-     * of the file.
+     * user can see them. The file can be plain or gzip compressed.
+     *
+     * Several files can be picked at once (GPS, AIS and instruments logged
+     * separately, say) and they are played as one, merged by time. There is
+     * no time index for a merged replay, so the slider goes by bytes.
      *
      */
     @FXML private void fileOpenButtonPressed(ActionEvent event) {
         logger.debug("OPEN FILE");
         FileChooser chooser = new FileChooser();
         chooser.setTitle("Open NMEA File");
-        File file = chooser.showOpenDialog(fileNameLabel.getParent().getScene().getWindow());
-        fileNameLabel.setText(file.toString());
-        logger.debug("FILE = " + fileNameLabel);
+        List<File> files = chooser.showOpenMultipleDialog(fileNameLabel.getParent().getScene().getWindow());
+        if (files == null || files.isEmpty()) {
+            return;
+        }
+        fileNameLabel.setText(files.size() == 1 ? files.get(0).toString() : files.size() + " files merged: "
+                + files.stream().map(File::getName).collect(Collectors.joining(", ")));
+        logger.debug("FILE = {}", fileNameLabel.getText());
 
+        // paused first, so the new file doesn't start playing before the
+        // pause gets to the player
+        player.setPlaying(false);
+        logFiles = files;
         try {
-            randomAccessFile = new RandomAccessFile(file, "r");
-            rafLength = randomAccessFile.length();
+            timeIndex = (files.size() == 1) ? TimeIndex.buildInBackground(files.get(0)) : null;
+            trackIndex = TrackIndex.buildInBackground(files);
+            trackDrawn = false;
+            player.openFiles(files);
+            prefetcher.setFiles(files);
+            scrubber.setFiles(files);
         } catch (FileNotFoundException ex) {
             logger.fatal(ex);
         } catch (IOException ex) {
             logger.fatal(ex);
         }
 
-        player.setRandomAccessFile(randomAccessFile);
-        player.setPlaying(false);
-
-        try {
-            randomAccessFile.seek((long) 0.0);
-        } catch (IOException ex) {
-            logger.fatal(ex);
-        }
-        // Now fill up the TextArea with whatever we found in the file.
+        // Now fill up the TextArea with whatever we found in the file. The
+        // reader takes care of compressed logs.
         NMEASentences.clear();
         sliderLabel.setText(timeString);
-        for (int i = 0; i < NMEASentences.getHeight(); i++) {
-            String fileLine = null;
-            try {
-                fileLine = randomAccessFile.readLine();
-            } catch (IOException ex) {
-                logger.fatal(ex);
+        StringBuilder text = new StringBuilder();
+        try (SentenceSource reader = SentenceSource.open(files)) {
+            logLength = reader.size();
+            int length;
+            for (int i = 0; i < NMEASentences.getHeight() && (length = reader.next()) >= 0; i++) {
+                String fileLine = new String(reader.sentence(), 0, length, StandardCharsets.ISO_8859_1);
+                text.append(fileLine).append("\r\n");
+                updateTimeAndPosition(fileLine);
             }
-            NMEASentences.appendText(fileLine + "\r\n");
-            updateTimeAndPosition(fileLine);
-        }
-        try {
-            // Now go back to the beginning of the file again
-            randomAccessFile.seek((long) 0.0);
         } catch (IOException ex) {
             logger.fatal(ex);
         }
+        NMEASentences.setText(text.toString());
         updateMap(zoom, latitude, longitude);
         sliderLabel.setText(timeString);
-        slider.setValue(0.0d);
+        moveSlider(0.0d);
         if (player.isAlive()) {
             logger.debug("Player thread is already alive. No need to start it again.");
         } else {
@@ -455,17 +646,87 @@ public class NMEALogReplayerController implements Initializable {
         if (player.isPlaying()) {
             playButton.setText("Play");
             player.setPlaying(false);
-            try {
-                slider.setValue((randomAccessFile.getFilePointer() * slider.getMax()) / rafLength);
-            } catch (IOException ex) {
-                logger.fatal(ex);
-            }
+            moveSlider(offsetToSlider(player.getPosition()));
         } else {
             playButton.setText("Stop");
             player.setPlaying(true);
         }
     }
 
+    /**
+     * @param event - the event that triggered this call
+     *
+     * Sends the next sentence straight away and leaves the player paused, for
+     * going through a log one sentence at a time. The display is updated as
+     * if playing once the sentence has gone.
+     */
+    @FXML private void stepButtonPressed(ActionEvent event) {
+        if (player.isPlaying()) {
+            playButton.setText("Play");
+        }
+        stepped = true;
+        player.step();
+    }
+
+    /**
+     *
+     * @param value - where to put the slider
+     *
+     * Moves the slider to show where the player is, without the listener
+     * taking it for the user asking to go there. Otherwise the player would be
+     * sent back to the index entry before where it already is.
+     */
+    private void moveSlider(double value) {
+        following = true;
+        try {
+            slider.setValue(value);
+        } finally {
+            following = false;
+        }
+    }
+
+    /**
+     *
+     * @return the file offset the slider is pointing at, a fraction of the file
+     * length; the caller has to skip to the start of the next sentence itself.
+     * Only for when there's no time index.
+     */
+    private long sliderToOffset() {
+        return (long) (slider.getValue() / slider.getMax() * logLength);
+    }
+
+    /**
+     *
+     * @return the log time the slider is pointing at, once the time index has
+     * been built and the slider is a time scale
+     */
+    private long sliderToTime() {
+        long start = timeIndex.getStartTime();
+        return start + (long) (slider.getValue() / slider.getMax() * (timeIndex.getEndTime() - start));
+    }
+
+    /**
+     *
+     * @param offset - a file offset
+     * @return the slider value corresponding to that offset, using the time
+     * scale if the index is ready and the byte scale if not. If the length of
+     * the log isn't known yet there is no byte scale, so the slider stays
+     * where it is.
+     */
+    private double offsetToSlider(long offset) {
+        if (timeIndex != null && timeIndex.size() > 0) {
+            long start = timeIndex.getStartTime();
+            long span = timeIndex.getEndTime() - start;
+            if (span > 0) {
+                return ((timeIndex.timeAt(offset) - start) * slider.getMax()) / span;
+            }
+        }
+        if (logLength <= 0) {
+            return slider.getValue();
+        }
+        return (offset * slider.getMax()) / logLength;
+    }
+
     /**
      *
      * @param url
@@ -490,45 +751,83 @@ public class NMEALogReplayerController implements Initializable {
          * the file and the time value to some initial value ("??:??:??")
          *
          */
+        scrubber = new SliderScrubber(this::showPreview);
         updateMap(zoom, latitude, longitude);
         slider.setValue(0.0);
         sliderLabel.setText(timeString);
+        prefetcher.start();
+        player.getMetrics().registerMBean("gui");
+        startTcpServer();
+        String filter = System.getProperty("nmea.filter");
+        if (filter != null) {
+            try {
+                player.setFilter(SentencePipeline.compile(List.of(filter)));
+            } catch (IllegalArgumentException ex) {
+                logger.fatal(ex);
+            }
+        }
+        /**
+         * Follow along with the player so that time and position are kept up
+         * to date while the file is being played. This runs on the player
+         * thread so it only publishes what it finds; the frame timer shows it.
+         */
+        player.addReplayListener(new ReplayListener() {
+            private final NMEASentence parser = new NMEASentence();
+            private final ReplayPosition.Fix fix = new ReplayPosition.Fix();
+            private final AisDecoder ais = new AisDecoder();
+
+            @Override
+            public void sentenceSent(byte[] sentence, int length, long offset) {
+                int p = NMEASentence.addressStart(sentence, 0, length); // past any tag block
+                if (p >= 0 && sentence[p] == '$' // GPS Sentence
+                        && parser.parse(sentence, 0, length) && fix.extract(parser)) {
+                    fix.offset = offset;
+                    replayPosition.publish(fix);
+                } else if (p >= 0 && sentence[p] == '!' // AIS, of which only our own (VDO) has our position
+                        && parser.parse(sentence, 0, length) && ais.decode(parser) && ais.ownShip() && fix.extract(ais)) {
+                    fix.offset = offset;
+                    replayPosition.publish(fix);
+                } else {
+                    replayPosition.publishOffset(offset);
+                }
+            }
+
+            @Override
+            public void replayStopped(boolean endOfFile) {
+                logger.debug("Player stopped, end of file = {}", endOfFile);
+            }
+        });
+        frameTimer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                updateFromPlayer();
+            }
+        };
+        frameTimer.start();
         /**
          * Listen for changes on the slider position. If a change is detected we
-         * scan the next NMEASentences.getHeight() records and update time and
-         * position date on the GUI
+         * ask the scrubber for the next NMEASentences.getHeight() records from
+         * there; showPreview() updates the GUI when they have been read.
          */
         slider.valueProperty().addListener(new ChangeListener<Number>() {
             @Override
             public void changed(ObservableValue<? extends Number> ov, Number old_val, Number new_val) {
-                logger.debug("Change Listener method for the slider. Old Value is " + old_val + " and new value is " + new_val);
-                if (rafLength > 0 && !player.isPlaying()) {
-                    logger.debug("File length is fine and we are not busy playing so we can seek to a new location.");
-                    try {
-                        randomAccessFile.seek((long) ((slider.getValue() / slider.getMax()) * rafLength));
-                        randomAccessFile.readLine(); // to seek to the beginning of the next sentence
-                        // Now fill up the TextArea with whatever we found in the file.
-                        NMEASentences.clear();
-                        for (int i = 0; i < NMEASentences.getHeight(); i++) {
-                            String fileLine = randomAccessFile.readLine();
-                            NMEASentences.appendText(fileLine + "\r\n");
-                            if (!fileLine.isEmpty() && fileLine.startsWith("$")) { // GPS Sentence
-                                updateTimeAndPosition(fileLine);
-                            }
-                            sliderLabel.setText(timeString);
-                        }
-                        // Now go back to where we were when we started
-                        randomAccessFile.seek((long) ((slider.getValue() / slider.getMax()) * rafLength));
-                        randomAccessFile.readLine(); // to seek to the beginning of the next sentence
-                        if (!slider.isPressed()) {
-                            logger.debug("Not pressing the slider button so we can update the map.");
-                            updateMap(zoom, latitude, longitude);
-                        }
-                    } catch (IOException ex) {
-                        logger.fatal(ex);
+                logger.debug("Change Listener method for the slider. Old Value is {} and new value is {}", old_val, new_val);
+                // the player is only sent after the slider when it is the
+                // user moving it, playing or not
+                if (logLength > 0 && !following) {
+                    int lines = (int) NMEASentences.getHeight();
+                    if (timeIndex != null && timeIndex.size() > 0) {
+                        // the index gets us to within a stride, the scrubber
+                        // reads forward from there to the time itself
+                        long time = sliderToTime();
+                        long entry = timeIndex.offsetOf(time);
+                        scrubber.request(entry, timeIndex.timeAt(entry), time, lines);
+                    } else {
+                        long offset = sliderToOffset();
+                        scrubber.request(offset, offset == 0, lines);
                     }
                 }
-                logger.debug("Change Listener method EXITING");
             }
         });
     }
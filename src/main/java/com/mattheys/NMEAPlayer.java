@@ -3,34 +3,111 @@
  */
 package com.mattheys;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * NMEAPlayer thread reads NMEA0183 sentences from the file and broadcasts
- * onto the network via UDP port 11111. Based on the length of the sentence that
- * we send, a delay is introduced to limit the baud rate to 4,800 bps for basic
+ * onto the network via UDP port 10110 (or wherever setDestination says). Based
+ * on the length of the sentence that we send, a delay is introduced to limit the baud rate to 4,800 bps for basic
  * GPS sentences and 38,400 for AIS sentences. This is not quite perfect because
  * we make the decision based on the first character of the sentence. A "$" is
  * taken to be a normal GPS sentence and a "!" is taken to be an AIS sentence.
  * There are some AIS units that send out proprietary $whatever sentences at
  * 38,400 baud but we will send them at 4,800 (meh).
  *
+ * Alternatively, with timestampPacing switched on, the sentences are sent at
+ * the times recorded in the log (scaled by a speed factor) and the
+ * ReplayScheduler takes care of the waiting. A binary log (see BinaryLog)
+ * comes with the times already parsed, so nothing is parsed while playing it.
+ *
+ * The player knows nothing about JavaFX. Anybody who wants to follow along
+ * (the GUI controller, the headless NMEAReplayerCLI) registers a
+ * ReplayListener and hears about every sentence that goes out.
+ *
+ * All of the state is per player so any number of them can run side by side
+ * in one JVM, each with its own file, destination and pacing. start() runs the
+ * player on a platform thread of its own; ReplaySessions runs lots of them on
+ * virtual threads instead.
+ *
+ * Sending a sentence doesn't allocate anything. The SentenceSource copies it
+ * out of the file into a reused array, and from there it goes into a reused
+ * direct buffer and out through a connected DatagramChannel. That keeps the
+ * garbage collector out of the way of the timing, and in spray and pray mode
+ * (no pacing at all) lets us send as fast as the network will take it.
+ *
+ * Every sentence sent, and how close to its scheduled time it went, is
+ * counted in the player's ReplayMetrics, which can be registered with JMX. A
+ * packet that can't be sent is counted as a send error and skipped.
+ *
+ * A SentencePipeline set with setFilter() decides which sentences are sent.
+ * It is asked after the timestamp pacing (so rate limits go by the time the
+ * sentence would be sent) and before the length pacing (so dropping a
+ * sentence takes no time). Sentences it turns away go nowhere, not even to
+ * the listeners.
+ *
+ * Listeners hear about a sentence as soon as it has gone out, before any wait
+ * for the next one, so a TcpNmeaServer listening to the player sends it at the
+ * same moment as the UDP packet. UDP can be switched off altogether with
+ * setUdpEnabled(false) when TCP is all that's wanted.
+ *
+ * The player is controlled by commands (play, pause, step, seek, open) put on
+ * a queue that only the player thread takes off, so the state it plays from
+ * is only ever changed by that thread, between sentences. Putting a command
+ * on the queue unparks the player: when paused it is parked with nothing to
+ * do, and while waiting for a sentence to be due the wait is cut short (see
+ * ReplayScheduler.wake()), so play, pause and seek take effect in well under
+ * a millisecond, seeks included while playing. A sentence that was read but
+ * hadn't had its wait when a command came in is held and goes out first
+ * when playing carries on, unless a seek or a new file throws it away. When
+ * pacing by length the same goes for the gap after a sentence: what is left
+ * of it is waited out before the next one.
+ *
  */
-public class NMEAPlayer extends Thread {
+public class NMEAPlayer implements Runnable {
 
-    static Boolean playing = false;
-    static Boolean running = false;
-    static Boolean sprayandpray = false;
-    RandomAccessFile randomAccessFile;
-    static int PORT = 10110 ;
+    /**
+     * What the player thread can be told to do.
+     */
+    enum Command {
+        PLAY, PAUSE, STEP, SEEK, OPEN
+    }
+
+    volatile boolean playing = false; // what we have been told, the GUI goes by this
+    volatile boolean running = false;
+    volatile boolean sprayandpray = false;
+    volatile boolean loop = false;
+    volatile SentenceSource reader; // null until a file is opened
+    final AtomicLong seekRequest = new AtomicLong(-1L);
+    final AtomicReference<SentenceSource> openRequest = new AtomicReference<>();
+    final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<>();
+    // only touched by the player thread once it is running
+    private boolean paused = true;
+    private int steps = 0;
+    private volatile boolean held = false; // read but not sent yet
+    private long due = -1; // when the next sentence should go out when pacing by length
+    String destination = "255.255.255.255";
+    int port = 10110;
+    boolean udp = true;
+    volatile boolean timestampPacing = false;
+    final ReplayScheduler scheduler = new ReplayScheduler();
+    final List<ReplayListener> listeners = new CopyOnWriteArrayList<>();
+    final ReplayMetrics metrics = new ReplayMetrics();
+    volatile SentencePipeline filter = null;
+    private volatile Thread thread = null;
     
     private static final Logger logger = LogManager.getLogger(NMEAPlayer.class);
 
@@ -40,24 +117,174 @@ public class NMEAPlayer extends Thread {
 
     /**
      *
-     * @param rAF - the random access file containing the NMEA data stream
+     * @param file - the NMEA log to be played, text or binary (see
+     * BinaryLog)
+     * @throws IOException if the file can't be opened
+     *
+     * Opens the file and gets ready to play it from the beginning. Any file
+     * that was open before is closed, by the player thread once it has
+     * finished with it.
+     */
+    public void openFile(File file) throws IOException {
+        openFiles(List.of(file));
+    }
+
+    /**
+     *
+     * @param files - NMEA logs to be played together as one, merged by time
+     * (see MergedSentenceSource)
+     * @throws IOException if a file can't be opened
      *
-     * Simply notes where the file is located and that's it.
+     * As for openFile(), with the offsets running across all the files.
      */
-    public void setRandomAccessFile(RandomAccessFile rAF) {
-        logger.debug("Setting up randomAccessFile = " + rAF);
-        randomAccessFile = rAF;
-        logger.debug("And we are done, randomAccessFile = " + randomAccessFile);
+    public void openFiles(List<File> files) throws IOException {
+        logger.debug("Opening {}", files);
+        SentenceSource source = SentenceSource.open(files);
+        seekRequest.set(-1L);
+        if (thread == null) {
+            // not started yet, so nobody else is using the reader
+            SentenceSource old = reader;
+            reader = source;
+            if (old != null) {
+                old.close();
+            }
+            return;
+        }
+        SentenceSource unused = openRequest.getAndSet(source);
+        if (unused != null) {
+            unused.close(); // opened and replaced before the player got to it
+        }
+        post(Command.OPEN);
+    }
+
+    /**
+     *
+     * @param offset - file offset of the sentence to play next
+     *
+     * The seek is picked up by the player thread straight away, playing or
+     * not, so it is safe to call from any thread. Seeks that come in faster
+     * than that (from a slider being dragged) only go to the last offset.
+     */
+    public void seek(long offset) {
+        logger.debug("Seek requested to {}", offset);
+        seekRequest.set(offset);
+        post(Command.SEEK);
+    }
+
+    /**
+     * @return file offset of the next sentence to be played
+     */
+    public long getPosition() {
+        long s = seekRequest.get();
+        SentenceSource r = reader;
+        if (s >= 0 || r == null || openRequest.get() != null) {
+            return Math.max(s, 0L);
+        }
+        return held ? r.sentenceOffset() : r.position();
+    }
+
+    /**
+     * Sends one sentence as soon as the player gets to it, without waiting
+     * for its time, and leaves the player paused. Steps add up if they come
+     * faster than the player takes them.
+     */
+    public void step() {
+        logger.debug("Step requested");
+        playing = false;
+        post(Command.STEP);
+    }
+
+    /**
+     * Puts a command on the queue and gets the player thread to look at it,
+     * whether it is parked or waiting for a sentence to be due.
+     */
+    private void post(Command c) {
+        commands.add(c);
+        scheduler.wake();
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     *
+     * @param host - name or address to send the UDP packets to. The default is
+     * the broadcast address 255.255.255.255.
+     * @param p - UDP port number, 10110 by default
+     *
+     * Must be called before the thread is started.
+     */
+    public void setDestination(String host, int p) {
+        logger.debug("Setting destination to {}:{}", host, p);
+        destination = host;
+        port = p;
+    }
+
+    /**
+     *
+     * @param s - false to send nothing over UDP, when the sentences only need
+     * to go to the listeners (a TcpNmeaServer, say)
+     *
+     * Must be called before the thread is started.
+     */
+    public void setUdpEnabled(boolean s) {
+        logger.debug("Setting udp to {}", s);
+        udp = s;
+    }
+
+    /**
+     *
+     * @param s - true to start again at the beginning of the file when we get
+     * to the end, false to stop
+     */
+    public void setLoop(boolean s) {
+        logger.debug("Setting loop to {}", s);
+        loop = s;
+    }
+
+    /**
+     *
+     * @param f - which sentences to send (see SentencePipeline), or null to
+     * send them all. A pipeline belongs to one player.
+     */
+    public void setFilter(SentencePipeline f) {
+        logger.debug("Setting filter to {}", f == null ? "none" : "\n" + f.summary());
+        filter = f;
+    }
+
+    /**
+     * @return the counters for this player, see ReplayMetrics
+     */
+    public ReplayMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     *
+     * @param l - listener to be told about every sentence sent
+     */
+    public void addReplayListener(ReplayListener l) {
+        listeners.add(l);
+    }
+
+    /**
+     *
+     * @param l - listener that is no longer interested
+     */
+    public void removeReplayListener(ReplayListener l) {
+        listeners.remove(l);
     }
 
     /**
      * Lets you know if this thread is just sending NMEA data onto the network via
      * the UDP socket. Returns true if data is being sent and false if not.
+     * This is what the player has been told to do; the player thread itself
+     * catches up within microseconds.
      *
      * @return Boolean playing - whether or not we are sending NMEA data via UDP
      */
     public Boolean isPlaying() {
-        logger.debug("Are we playing? " + playing);
         return playing;
     }
 
@@ -66,8 +293,9 @@ public class NMEAPlayer extends Thread {
      * @param s - new value for "playing" Boolean
      */
     public void setPlaying(Boolean s) {
-        logger.debug("Setting to playing = " + s);
+        logger.debug("Setting to playing = {}", s);
         playing = s;
+        post(s ? Command.PLAY : Command.PAUSE);
     }
 
     /**
@@ -75,16 +303,78 @@ public class NMEAPlayer extends Thread {
      * @param s - new value for "sprayandpray" Boolean
      */
     public void setSprayAndPray(Boolean s) {
-        logger.debug("Setting sprayandpray to " + s);
+        logger.debug("Setting sprayandpray to {}", s);
         sprayandpray = s;
     }
 
+    /**
+     *
+     * @param s - true to pace the replay from the times recorded in the log,
+     * false to pace it from the length of each sentence (the old way)
+     */
+    public void setTimestampPacing(boolean s) {
+        logger.debug("Setting timestampPacing to {}", s);
+        timestampPacing = s;
+        scheduler.reset();
+    }
+
+    /**
+     *
+     * @param s - replay speed multiplier used with timestamp pacing
+     */
+    public void setSpeed(double s) {
+        logger.debug("Setting replay speed to {}", s);
+        scheduler.setSpeed(s);
+    }
+
+    /**
+     * Starts the player on a platform thread of its own.
+     */
+    public void start() {
+        start(Thread.ofPlatform().name("NMEAPlayer").factory());
+    }
+
+    /**
+     *
+     * @param factory - where to get the thread from, e.g. a virtual thread
+     * factory when running many players at once
+     */
+    public void start(ThreadFactory factory) {
+        Thread t = factory.newThread(this);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * @return true if the player has been started and has not finished yet
+     */
+    public boolean isAlive() {
+        Thread t = thread;
+        return t != null && t.isAlive();
+    }
+
+    /**
+     * Waits for the player thread to finish.
+     *
+     * @throws InterruptedException if we are interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        Thread t = thread;
+        if (t != null) {
+            t.join();
+        }
+    }
+
     /**
      * Called when it is time to stop this thread.
      */
     public void killThread() {
         logger.debug("received the KILL signal. Time to leave");
         running = false;
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt(); // don't wait for the next sentence to be due
+        }
     }
 
     /**
@@ -102,18 +392,18 @@ public class NMEAPlayer extends Thread {
      * it into a decimal number. That is what gets returned by the method.
      *
      */
-    public double GPStoDecimal(String gpslocation, String nsew) {
+    public static double GPStoDecimal(String gpslocation, String nsew) {
         double num;
         long integerPart;
         double fractionalPart;
         double answer;
 
-        logger.debug("Input = " + gpslocation + " " + nsew);
+        logger.debug("Input = {} {}", gpslocation, nsew);
         num = Double.parseDouble(gpslocation);
         integerPart = (long) num;
         fractionalPart = num - integerPart;
         answer = (long) (integerPart / 100l) + ((Math.abs(integerPart - ((long) (integerPart / 100l) * 100)) + Math.abs(fractionalPart)) / 60.0d);
-        logger.debug("Answer = " + answer + " " + nsew);
+        logger.debug("Answer = {} {}", answer, nsew);
         if (nsew.equalsIgnoreCase("N") || nsew.equalsIgnoreCase("E")) {
             return answer;
         } else {
@@ -136,68 +426,246 @@ public class NMEAPlayer extends Thread {
     @Override
     public void run() {
         logger.debug("Entering the run() method now");
+        thread = Thread.currentThread();
         running = true;
-        InetAddress ipAddress = null;
-        DatagramSocket dgramSocket = null;
-        try {
-            dgramSocket = new DatagramSocket();
-            dgramSocket.setBroadcast(true);
-            ipAddress = InetAddress.getByName("255.255.255.255");
-        } catch (SocketException | UnknownHostException ex) {
-            logger.fatal(ex);
-            running = false;
+        DatagramChannel channel = null;
+        if (udp) {
+            try {
+                channel = DatagramChannel.open();
+                channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+                channel.connect(new InetSocketAddress(destination, port));
+            } catch (IOException ex) {
+                logger.fatal(ex);
+                running = false;
+            }
         }
-        //logger.debug("dgramSocket = " + dgramSocket.getLocalSocketAddress());
+        ByteBuffer sendBuffer = ByteBuffer.allocateDirect(SentenceReader.MAX_SENTENCE + 2);
         while (running) {
-            if (playing) {
-                try {
-                    String fileLine = randomAccessFile.readLine();
-                    if (randomAccessFile.getFilePointer() >= randomAccessFile.length()) {
-                        playing = false;
+            try {
+                takeCommands();
+                if ((paused && steps == 0) || reader == null) {
+                    if (reader == null) {
+                        steps = 0; // nothing to step through
                     }
-                    logger.debug("Just read this ==> \"" + fileLine + "\"");
-                    byte[] sendData = fileLine.concat("\r\n").getBytes();
-                    DatagramPacket udpPacket = new DatagramPacket(sendData, sendData.length, ipAddress, PORT);
-                    logger.debug("Sending (" + udpPacket.getLength() + " bytes) Datagram Packet.");
-                    dgramSocket.send(udpPacket);
-                    logger.debug("SENT...");
-                    if (fileLine.startsWith("$")) { // GPS Sentence
-                        long delay = (long) (fileLine.length() * 1000) / (long) 480; // delay in milliseconds at 480 characters/second
-                        try {
-                            if (!sprayandpray) {
-                                Thread.sleep(delay);
-                            } else {
-                                Thread.sleep(10);
-                            }
-                        } catch (InterruptedException ex) {
-                            logger.fatal(ex);
+                    due = -1;
+                    LockSupport.park(this); // until a command or killThread()
+                    Thread.interrupted();
+                    continue;
+                }
+                boolean stepping = paused;
+                if (due >= 0 && !stepping && !sprayandpray && !timestampPacing) {
+                    // the gap after the last sentence, or what a command
+                    // left of it
+                    try {
+                        if (!scheduler.await(due)) {
+                            continue;
                         }
-                        NMEALogReplayerController.updateTimeAndPosition(fileLine);
-                    } else { // AIS sentence, presumably
-                        long delay = (long) (fileLine.length() * 1000) / (long) 3840; // delay in milliseconds at 3840 characters/second
-                        try {
-                            if (!sprayandpray) {
-                                Thread.sleep(delay);
-                            } else {
-                                Thread.sleep(10);
-                            }
-                        } catch (InterruptedException ex) {
-                            logger.fatal(ex);
+                    } catch (InterruptedException ex) {
+                        logger.debug(ex);
+                        continue;
+                    }
+                }
+                if (!held) {
+                    if (reader.next() < 0) {
+                        endOfFile();
+                        continue;
+                    }
+                    held = true;
+                }
+                int length = reader.length();
+                byte[] sentence = reader.sentence();
+                boolean paced = timestampPacing && !sprayandpray && !stepping;
+                long scheduled = (sprayandpray || stepping) ? -1 : due;
+                if (paced) {
+                    try {
+                        boolean onTime = reader.timed()
+                                ? scheduler.paceAt(reader.time())
+                                : scheduler.pace(sentence, 0, length);
+                        if (!onTime) {
+                            continue; // a command came in, hold on to the sentence
                         }
+                    } catch (InterruptedException ex) {
+                        logger.debug(ex);
+                        continue;
+                    }
+                    scheduled = scheduler.lastDeadline();
+                    if (scheduler.fellBehind()) {
+                        metrics.lagReset();
                     }
-                } catch (IOException ex) {
-                    logger.fatal(ex);
-                    playing = false;
-                    running = false;
                 }
-            } else {
+                held = false;
+                if (stepping) {
+                    steps--;
+                }
+                SentencePipeline f = filter;
+                if (f != null && !f.accept(sentence, length, System.nanoTime())) {
+                    // not sent, so no listeners and no time on the wire
+                    metrics.filtered();
+                    if (stepping) {
+                        steps++; // a step is a sentence sent, look for the next one
+                    }
+                    continue;
+                }
+                ReplayEvents.SentenceSent event = null;
+                if (ReplayEvents.sentEnabled()) {
+                    event = new ReplayEvents.SentenceSent();
+                    event.begin();
+                }
+                long sentAt = -1;
                 try {
-                    Thread.sleep(10000);
-                } catch (InterruptedException ex) {
-                    logger.debug(ex);
+                    if (channel != null) {
+                        send(channel, sendBuffer, sentence, length);
+                    }
+                    sentAt = System.nanoTime();
+                    metrics.sent(sentence, length, scheduled, sentAt);
+                } catch (IOException ex) {
+                    // count it and carry on, one lost UDP packet is no
+                    // reason to stop the replay
+                    metrics.sendError();
+                    if (metrics.getSendErrors() == 1) {
+                        logger.error("Can't send to {}:{}: {}", destination, port, ex.toString());
+                    } else {
+                        logger.debug("Can't send to {}:{}: {}", destination, port, ex.toString());
+                    }
+                }
+                long offset = reader.position();
+                if (event != null && event.shouldCommit()) {
+                    event.sentenceType = ReplayEvents.sentenceType(sentence, length);
+                    event.bytes = length + 2;
+                    event.offset = offset;
+                    event.paced = scheduled >= 0;
+                    event.lateness = (scheduled >= 0 && sentAt >= 0) ? sentAt - scheduled : 0L;
+                    event.commit();
+                }
+                for (ReplayListener l : listeners) {
+                    l.sentenceSent(sentence, length, offset);
+                }
+                due = -1;
+                if (!paced && !sprayandpray && !stepping) {
+                    long delay;
+                    int a = NMEASentence.addressStart(sentence, 0, length); // past any tag block
+                    if (a >= 0 && sentence[a] == '$') { // GPS Sentence
+                        delay = (long) (length * 1000) / (long) 480; // delay in milliseconds at 480 characters/second
+                    } else { // AIS sentence, presumably
+                        delay = (long) (length * 1000) / (long) 3840; // delay in milliseconds at 3840 characters/second
+                    }
+                    due = System.nanoTime() + delay * 1_000_000L; // waited out before the next sentence
                 }
+            } catch (IOException ex) {
+                logger.fatal(ex);
+                playing = false;
+                running = false;
             }
         }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.fatal(ex);
+            }
+        }
+        for (ReplayListener l : listeners) {
+            l.replayStopped(false);
+        }
         logger.debug("It's all over. Dropped out of while() loop for RUNNING....");
     }
+
+    /**
+     *
+     * @param channel - connected channel to send on
+     * @param sendBuffer - direct buffer of at least MAX_SENTENCE + 2 bytes
+     * @param sentence - the sentence, without CR/LF
+     * @param length - its length
+     * @throws IOException if the packet can't be sent
+     *
+     * Sends one sentence as one UDP packet with CR/LF on the end, without
+     * allocating anything.
+     */
+    static void send(DatagramChannel channel, ByteBuffer sendBuffer, byte[] sentence, int length) throws IOException {
+        sendBuffer.clear();
+        sendBuffer.put(sentence, 0, length).put((byte) '\r').put((byte) '\n').flip();
+        channel.write(sendBuffer);
+    }
+
+    /**
+     * Does what the other threads have asked, in the order they asked. Only
+     * the player thread calls this, between sentences.
+     *
+     * @throws IOException if a seek fails
+     */
+    private void takeCommands() throws IOException {
+        scheduler.clearWake();
+        Command c;
+        while ((c = commands.poll()) != null) {
+            switch (c) {
+                case PLAY -> {
+                    paused = false;
+                    steps = 0;
+                    scheduler.reset();
+                }
+                case PAUSE ->
+                    paused = true;
+                case STEP -> {
+                    paused = true;
+                    steps++;
+                }
+                case SEEK -> {
+                    long s = seekRequest.getAndSet(-1L);
+                    if (s >= 0 && reader != null) {
+                        ReplayEvents.Seek event = null;
+                        if (ReplayEvents.seekEnabled()) {
+                            event = new ReplayEvents.Seek();
+                            event.from = held ? reader.sentenceOffset() : reader.position();
+                            event.begin();
+                        }
+                        reader.seek(s);
+                        if (event != null && event.shouldCommit()) {
+                            event.reader = "player";
+                            event.to = s;
+                            event.landed = reader.position();
+                            event.commit();
+                        }
+                        held = false;
+                        scheduler.reset();
+                        due = -1;
+                    }
+                }
+                case OPEN -> {
+                    SentenceSource source = openRequest.getAndSet(null);
+                    if (source != null) {
+                        SentenceSource old = reader;
+                        reader = source;
+                        held = false;
+                        scheduler.reset();
+                        due = -1;
+                        if (old != null) {
+                            old.close();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * We ran off the end of the file. Either go round again or stop playing
+     * and let the listeners know.
+     *
+     * @throws IOException if the file can't be rewound
+     */
+    private void endOfFile() throws IOException {
+        if (loop) {
+            logger.debug("End of file, looping back to the start");
+            reader.seek(0L);
+            scheduler.reset();
+        } else {
+            logger.debug("End of file, stopping");
+            playing = false;
+            paused = true;
+            steps = 0;
+            for (ReplayListener l : listeners) {
+                l.replayStopped(true);
+            }
+        }
+    }
 }
@@ -0,0 +1,525 @@
+/*
+ * Records live NMEA traffic to logs that NMEAPlayer can replay.
+ */
+package com.mattheys;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * NMEARecorder is NMEAPlayer backwards: it listens on a UDP port (and, if
+ * asked, reads from a TCP NMEA server too) and writes whatever arrives to a
+ * log file, each sentence prefixed with a tag block holding the time it was
+ * received, \c:milliseconds*hh\. ReplayScheduler paces from those, so a
+ * capture replays with the timing it was recorded with.
+ *
+ * Two threads do the work. The receive thread does nothing but take packets
+ * off the sockets, into one preallocated buffer, and copy them into a
+ * CaptureRing with the time they arrived. It never touches the disk and never
+ * waits, so the kernel's socket buffer doesn't fill up and drop packets while
+ * a write is stuck. The writer thread empties the ring, splits the packets
+ * into sentences, adds the tag blocks and writes everything it found in one
+ * go (group commit), so a burst of AIS costs one write() rather than one per
+ * sentence. The file is forced to disk every syncInterval milliseconds.
+ *
+ * A new file is started when the current one reaches maxBytes or has been
+ * open for maxMillis, whichever comes first (0 switches either off). Files are
+ * named prefix-yyyyMMdd-HHmmss-nnnn.nmea after the UTC time they were started
+ * and their number in this recording, so they sort in the order they were
+ * written even when several are started in the same second.
+ *
+ * Sentences that already start with a tag block are written as they came.
+ * Nothing is checked or thrown away, apart from empty lines and lines longer
+ * than SentenceReader.MAX_SENTENCE, which can't be replayed.
+ *
+ * @author tony
+ */
+public class NMEARecorder implements Closeable {
+
+    static final int RING_SIZE = 32 * 1024 * 1024;
+    static final int RECEIVE_BUFFER = 65536; // biggest UDP datagram, near enough
+    static final int SOCKET_BUFFER = 8 * 1024 * 1024; // asked of the kernel, which may give less
+    static final int BATCH_SIZE = 1024 * 1024;
+    static final long IDLE_NANOS = 1_000_000L; // writer sleep when the ring is empty
+    static final long RECONNECT_INTERVAL = 5000L;
+    static final int UDP = 0;
+    static final int TCP = 1;
+
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    private String bindAddress = "0.0.0.0";
+    private int udpPort = 10110;
+    private String tcpHost = null;
+    private int tcpPort = 0;
+    private File directory = new File(".");
+    private String prefix = "capture";
+    private long maxBytes = 0;
+    private long maxMillis = 0;
+    private long syncInterval = 1000L;
+
+    private final CaptureRing ring = new CaptureRing(RING_SIZE);
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong sentences = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private volatile File currentFile = null;
+    private volatile boolean running = false;
+    private volatile boolean receiving = false;
+    private volatile boolean closed = false;
+    private Selector selector;
+    private DatagramChannel udp;
+    private SocketChannel tcp;
+    private long nextConnect = 0;
+    private Thread receiver;
+    private Thread writer;
+
+    // writer thread only
+    private FileChannel out;
+    private long fileBytes;
+    private long fileOpened;
+    private long lastSync;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    private final byte[][] line = new byte[2][SentenceReader.MAX_SENTENCE];
+    private final int[] lineLength = new int[2];
+    private final boolean[] overlong = new boolean[2];
+
+    private static final Logger logger = LogManager.getLogger(NMEARecorder.class);
+
+    /**
+     *
+     * @param address - local address to listen on, 0.0.0.0 for all of them
+     * @param port - UDP port, 10110 by default
+     *
+     * This and the other setters must be called before start().
+     */
+    public void setUdp(String address, int port) {
+        bindAddress = address;
+        udpPort = port;
+    }
+
+    /**
+     *
+     * @param host - NMEA server to read from as well, or null for UDP only
+     * @param port - its TCP port
+     */
+    public void setTcpSource(String host, int port) {
+        tcpHost = host;
+        tcpPort = port;
+    }
+
+    /**
+     *
+     * @param dir - where the logs go
+     * @param name - start of each log file name
+     */
+    public void setOutput(File dir, String name) {
+        directory = dir;
+        prefix = name;
+    }
+
+    /**
+     *
+     * @param bytes - start a new file after this many bytes, 0 for no limit
+     * @param millis - start a new file after this long, 0 for no limit
+     */
+    public void setRotation(long bytes, long millis) {
+        maxBytes = bytes;
+        maxMillis = millis;
+    }
+
+    /**
+     *
+     * @param millis - longest time written data may sit in the page cache
+     * before being forced to disk, 0 to force after every write
+     */
+    public void setSyncInterval(long millis) {
+        syncInterval = millis;
+    }
+
+    /**
+     * @return datagrams and TCP reads received
+     */
+    public long getPackets() {
+        return packets.get();
+    }
+
+    /**
+     * @return sentences written
+     */
+    public long getSentences() {
+        return sentences.get();
+    }
+
+    /**
+     * @return packets lost because the writer fell a whole ring behind
+     */
+    public long getOverflows() {
+        return ring.getOverflows();
+    }
+
+    /**
+     * @return the file being written, or null before the first one is opened
+     */
+    public File getCurrentFile() {
+        return currentFile;
+    }
+
+    /**
+     * @return number of files started so far
+     */
+    public long getFiles() {
+        return files.get();
+    }
+
+    /**
+     * @return true from start() until close(), or until the recording stops
+     * by itself because the file can't be written
+     */
+    public boolean isRecording() {
+        return running;
+    }
+
+    /**
+     * Opens the sockets and the first file and starts both threads.
+     *
+     * @throws IOException if the port can't be bound or the file can't be
+     * created, in which case whatever was opened is closed again
+     */
+    public void start() throws IOException {
+        directory.mkdirs();
+        try {
+            openFile();
+            selector = Selector.open();
+            udp = DatagramChannel.open();
+            udp.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+            udp.bind(new InetSocketAddress(bindAddress, udpPort));
+            udp.configureBlocking(false);
+            udp.register(selector, SelectionKey.OP_READ, UDP);
+        } catch (IOException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+        int got = udp.getOption(StandardSocketOptions.SO_RCVBUF);
+        if (got < SOCKET_BUFFER) {
+            logger.warn("UDP receive buffer is only {} bytes (raise net.core.rmem_max for bigger bursts)", got);
+        }
+        logger.info("Recording UDP port {} to {}", udpPort, currentFile);
+        running = true;
+        receiving = true;
+        writer = Thread.ofPlatform().name("NMEARecorder-writer").start(this::writeLoop);
+        receiver = Thread.ofPlatform().name("NMEARecorder-receiver").start(this::receiveLoop);
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER);
+        try {
+            while (running) {
+                try {
+                    connectTcp();
+                } catch (IOException ex) {
+                    if (tcp != null) {
+                        dropTcp(ex.toString());
+                    } else {
+                        logger.error(ex);
+                    }
+                }
+                try {
+                    selector.select(RECONNECT_INTERVAL);
+                } catch (IOException ex) {
+                    logger.error(ex);
+                    continue;
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    // a failure on one source mustn't take the other with it
+                    if ((Integer) key.attachment() == UDP) {
+                        try {
+                            while (udp.receive(buffer) != null) {
+                                buffer.flip();
+                                ring.put(UDP, System.currentTimeMillis(), buffer);
+                                buffer.clear();
+                                packets.incrementAndGet();
+                            }
+                        } catch (IOException ex) {
+                            buffer.clear();
+                            logger.error(ex);
+                        }
+                        continue;
+                    }
+                    try {
+                        if (key.isConnectable()) {
+                            tcp.finishConnect();
+                            key.interestOps(SelectionKey.OP_READ);
+                            logger.info("Recording from {}:{}", tcpHost, tcpPort);
+                        } else {
+                            int n;
+                            while ((n = tcp.read(buffer)) > 0) {
+                                buffer.flip();
+                                ring.put(TCP, System.currentTimeMillis(), buffer);
+                                buffer.clear();
+                                packets.incrementAndGet();
+                            }
+                            if (n < 0) {
+                                dropTcp("closed by server");
+                            }
+                        }
+                    } catch (IOException ex) {
+                        buffer.clear();
+                        dropTcp(ex.toString());
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            logger.fatal(ex);
+            running = false;
+        } finally {
+            receiving = false; // lets the writer finish
+        }
+    }
+
+    /**
+     * Starts connecting to the TCP source if there is one, we aren't
+     * connected, and it's time to try again.
+     */
+    private void connectTcp() throws IOException {
+        if (tcpHost == null || tcp != null || System.currentTimeMillis() < nextConnect) {
+            return;
+        }
+        InetSocketAddress address = new InetSocketAddress(tcpHost, tcpPort);
+        if (address.isUnresolved()) {
+            // the name may come back, try again later like any other failure
+            nextConnect = System.currentTimeMillis() + RECONNECT_INTERVAL;
+            throw new UnknownHostException(tcpHost);
+        }
+        tcp = SocketChannel.open();
+        tcp.configureBlocking(false);
+        tcp.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+        boolean connected = tcp.connect(address);
+        tcp.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, TCP);
+    }
+
+    private void dropTcp(String why) {
+        logger.warn("Lost {}:{} ({}), trying again in {} ms", tcpHost, tcpPort, why, RECONNECT_INTERVAL);
+        try {
+            tcp.close();
+        } catch (IOException ex) {
+            logger.debug(ex);
+        }
+        tcp = null;
+        nextConnect = System.currentTimeMillis() + RECONNECT_INTERVAL;
+        ring.put(TCP, nextConnect, ByteBuffer.allocate(0)); // tells the writer to forget any half line
+    }
+
+    private void writeLoop() {
+        CaptureRing.Record record = new CaptureRing.Record();
+        try {
+            while (receiving || ring.used() > 0) {
+                boolean any = false;
+                while (ring.take(record)) {
+                    split(record);
+                    ring.release(record);
+                    any = true;
+                }
+                if (batch.position() > 0) {
+                    flush();
+                }
+                long now = System.currentTimeMillis();
+                if (fileBytes > 0 && ((maxBytes > 0 && fileBytes >= maxBytes) || (maxMillis > 0 && now - fileOpened >= maxMillis))) {
+                    closeFile();
+                    openFile();
+                }
+                if (!any) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+            closeFile();
+        } catch (IOException ex) {
+            logger.fatal(ex);
+            running = false; // no point receiving what we can't write
+        } finally {
+            if (out != null && out.isOpen()) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    logger.debug(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Breaks a record into sentences. A datagram always ends a sentence, but a
+     * TCP read can stop anywhere so the end of it waits for the next read.
+     */
+    private void split(CaptureRing.Record record) throws IOException {
+        int source = record.source;
+        if (record.length == 0) { // the TCP connection was lost
+            lineLength[source] = 0;
+            overlong[source] = false;
+            return;
+        }
+        byte[] l = line[source];
+        ByteBuffer data = record.data;
+        for (int i = data.position(); i < data.limit(); i++) {
+            byte b = data.get(i);
+            if (b == '\r' || b == '\n') {
+                endLine(source, record.time);
+            } else if (lineLength[source] < l.length) {
+                l[lineLength[source]++] = b;
+            } else {
+                overlong[source] = true;
+            }
+        }
+        if (source == UDP) {
+            endLine(source, record.time);
+        }
+    }
+
+    private void endLine(int source, long time) throws IOException {
+        int length = lineLength[source];
+        lineLength[source] = 0;
+        if (overlong[source]) {
+            overlong[source] = false;
+            logger.debug("Dropped a line longer than {} bytes", SentenceReader.MAX_SENTENCE);
+            return;
+        }
+        if (length == 0) {
+            return;
+        }
+        if (batch.remaining() < length + 40) {
+            flush();
+        }
+        byte[] l = line[source];
+        if (l[0] != '\\') {
+            tagBlock(time);
+        }
+        batch.put(l, 0, length);
+        batch.put((byte) '\r').put((byte) '\n');
+        sentences.incrementAndGet();
+    }
+
+    /**
+     * Writes \c:time*hh\ into the batch without making any garbage.
+     */
+    private void tagBlock(long time) {
+        batch.put((byte) '\\');
+        int start = batch.position();
+        batch.put((byte) 'c').put((byte) ':');
+        int digits = 1;
+        for (long t = time; t >= 10; t /= 10) {
+            digits++;
+        }
+        int p = batch.position() + digits;
+        for (long t = time; p > batch.position(); t /= 10) {
+            batch.put(--p, (byte) ('0' + t % 10));
+        }
+        batch.position(batch.position() + digits);
+        int checksum = 0;
+        for (int i = start; i < batch.position(); i++) {
+            checksum ^= batch.get(i);
+        }
+        batch.put((byte) '*').put(HEX[(checksum >> 4) & 0xf]).put(HEX[checksum & 0xf]).put((byte) '\\');
+    }
+
+    /**
+     * Writes the batch, and forces it to disk if it's been long enough.
+     */
+    private void flush() throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            fileBytes += out.write(batch);
+        }
+        batch.clear();
+        long now = System.currentTimeMillis();
+        if (now - lastSync >= syncInterval) {
+            out.force(false);
+            lastSync = now;
+        }
+    }
+
+    private void openFile() throws IOException {
+        long now = System.currentTimeMillis();
+        String stamp = FILE_TIME.format(Instant.ofEpochMilli(now));
+        File f = new File(directory, String.format("%s-%s-%04d.nmea", prefix, stamp, files.get() + 1));
+        out = FileChannel.open(f.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        fileBytes = 0;
+        fileOpened = now;
+        lastSync = now;
+        currentFile = f;
+        files.incrementAndGet();
+        logger.debug("Started {}", f);
+    }
+
+    private void closeFile() throws IOException {
+        if (batch.position() > 0) {
+            flush();
+        }
+        out.force(false);
+        out.close();
+        logger.debug("Finished {} ({} bytes)", currentFile, fileBytes);
+    }
+
+    /**
+     * Stops receiving, writes out whatever is still in the ring and closes
+     * the file. The sockets are closed whether or not the recording had
+     * stopped by itself already.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        try {
+            if (receiver != null) {
+                receiver.join();
+            }
+            if (writer != null) {
+                writer.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (out != null && out.isOpen()) {
+            out.close(); // start() failed before the writer got it
+        }
+        if (udp != null) {
+            udp.close();
+        }
+        if (tcp != null) {
+            tcp.close();
+        }
+        if (selector != null) {
+            selector.close();
+        }
+        logger.info("Recorded {} sentences, {} packets lost to overflow", sentences.get(), ring.getOverflows());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Headless entry point for recording. Captures live NMEA to log files.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Command line front end for NMEARecorder. Records until it is killed
+ * (Ctrl-C is fine, whatever has been received is written out first).
+ *
+ * Usage: NMEARecorderCLI [options]
+ *
+ * -b, --bind address    local address to listen on (default 0.0.0.0)
+ * -p, --port port       UDP port (default 10110)
+ * -t, --tcp host:port   read from this TCP NMEA server as well
+ * -o, --dir directory   where the logs go (default .)
+ * -n, --name prefix     start of each file name (default capture)
+ * -m, --max-size MB     start a new file after this many megabytes
+ * -i, --interval mins   start a new file after this many minutes
+ * -y, --sync ms         force to disk at least this often (default 1000)
+ * -q, --quiet           don't print progress reports
+ *
+ * The logs replay with NMEAReplayerCLI -r 1 (or the GUI with timestamp
+ * pacing) at the speed they were recorded.
+ *
+ * @author tony
+ */
+public class NMEARecorderCLI {
+
+    private static final Logger logger = LogManager.getLogger(NMEARecorderCLI.class);
+
+    static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: NMEARecorderCLI [-b address] [-p port] [-t host:port] [-o dir] [-n prefix] [-m MB] [-i minutes] [-y ms] [-q]");
+        System.exit(2);
+    }
+
+    /**
+     * @param args the command line arguments
+     * @throws InterruptedException if we are interrupted while recording
+     */
+    public static void main(String[] args) throws InterruptedException {
+        NMEARecorder recorder = new NMEARecorder();
+        String address = "0.0.0.0";
+        int port = 10110;
+        File dir = new File(".");
+        String name = "capture";
+        long maxBytes = 0;
+        long maxMillis = 0;
+        boolean quiet = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-b", "--bind" -> address = args[++i];
+                    case "-p", "--port" -> port = Integer.parseInt(args[++i]);
+                    case "-t", "--tcp" -> {
+                        String[] hp = args[++i].split(":");
+                        if (hp.length != 2) {
+                            usage("TCP source must be host:port");
+                        }
+                        recorder.setTcpSource(hp[0], Integer.parseInt(hp[1]));
+                    }
+                    case "-o", "--dir" -> dir = new File(args[++i]);
+                    case "-n", "--name" -> name = args[++i];
+                    case "-m", "--max-size" -> maxBytes = (long) (Double.parseDouble(args[++i]) * 1024 * 1024);
+                    case "-i", "--interval" -> maxMillis = (long) (Double.parseDouble(args[++i]) * 60000);
+                    case "-y", "--sync" -> recorder.setSyncInterval(Long.parseLong(args[++i]));
+                    case "-q", "--quiet" -> quiet = true;
+                    default -> usage("Unexpected argument " + args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            usage("Bad or missing option value: " + ex.getMessage());
+        }
+        recorder.setUdp(address, port);
+        recorder.setOutput(dir, name);
+        recorder.setRotation(maxBytes, maxMillis);
+
+        try {
+            recorder.start();
+        } catch (IOException ex) {
+            logger.fatal(ex);
+            System.err.println("Can't start recording: " + ex.getMessage());
+            System.exit(1);
+        }
+        CountDownLatch stopped = new CountDownLatch(1);
+        boolean report = !quiet;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                recorder.close();
+            } catch (IOException ex) {
+                logger.fatal(ex);
+            }
+            if (report) {
+                System.out.printf("Recorded %d sentences in %d files, %d packets lost%n",
+                        recorder.getSentences(), recorder.getFiles(), recorder.getOverflows());
+            }
+            stopped.countDown();
+        }));
+
+        long lastCount = 0;
+        long lastReport = System.currentTimeMillis();
+        while (!stopped.await(NMEAReplayerCLI.REPORT_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (!recorder.isRecording()) {
+                System.err.println("Recording stopped, see the log");
+                System.exit(1);
+            }
+            if (quiet) {
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            long count = recorder.getSentences();
+            System.out.printf("%s: %d sentences  %.0f/s  %d lost%n", recorder.getCurrentFile().getName(), count,
+                    (count - lastCount) * 1000.0d / (now - lastReport), recorder.getOverflows());
+            lastCount = count;
+            lastReport = now;
+        }
+    }
+}
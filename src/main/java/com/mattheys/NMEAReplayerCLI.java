@@ -0,0 +1,242 @@
+/*
+ * Headless entry point. Replays a log without starting JavaFX.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Command line version of the replayer for servers and CI machines that don't
+ * have a display. It drives an NMEAPlayer exactly the way the GUI does but
+ * never touches JavaFX, so it starts quickly and stays small.
+ *
+ * Usage: NMEAReplayerCLI [options] session [session...]
+ *
+ * -d, --dest host    destination address (default 255.255.255.255)
+ * -p, --port port    UDP port (default 10110)
+ * -r, --rate factor  pace from the log timestamps at this speed (1 = real time)
+ * -f, --file list    read more sessions from a file, one per line
+ * -l, --loop         start again at the beginning of the file at the end
+ * -s, --spray        spray and pray, send as fast as we can
+ * -q, --quiet        don't print progress reports
+ * -t, --tcp port     also serve the sentences to TCP clients on this port
+ * -n, --no-udp       don't send UDP at all, only serve TCP
+ * --drop-slow        disconnect TCP clients that can't keep up instead of
+ *                    skipping them forward
+ * -F, --filter spec  only send what this filter lets through, for example
+ *                    -F include=RMC,VDM -F rate=RMC:1 (see SentencePipeline)
+ *
+ * Each session is file[,host[,port[,rate]]] (see ReplaySessions) with the
+ * options above as defaults, so several logs can be replayed to different
+ * ports from one JVM. Logs kept in separate files (GPS, AIS, instruments) can
+ * be replayed as one stream merged by time by joining them with +, as in
+ * gps.nmea+ais.nmea+wind.nmea. Blank lines and lines starting with # in a session list
+ * file are ignored. Without a rate the sentences are paced by their length as
+ * in the GUI.
+ *
+ * Each session gets its own copy of the filters, and what each filter stage
+ * turned away is printed at the end.
+ *
+ * With --tcp every session feeds the same TcpNmeaServer, so a client that
+ * connects gets all of them merged into one stream, as from a multiplexer.
+ *
+ * @author tony
+ */
+public class NMEAReplayerCLI {
+
+    static final long REPORT_INTERVAL = 5000L; // milliseconds between progress reports
+
+    private static final Logger logger = LogManager.getLogger(NMEAReplayerCLI.class);
+
+    /**
+     * Prints the usage message and exits with a non-zero status.
+     *
+     * @param message - what was wrong with the command line
+     */
+    static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: NMEAReplayerCLI [-d host] [-p port] [-r rate] [-f list] [-l] [-s] [-q] [-t port [-n] [--drop-slow]] [-F filter]... file[+file...][,host[,port[,rate]]]...");
+        System.exit(2);
+    }
+
+    /**
+     * @param args the command line arguments
+     * @throws InterruptedException if we are interrupted waiting for the
+     * replay to finish
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String host = "255.255.255.255";
+        int port = 10110;
+        double rate = 0.0d;
+        boolean loop = false;
+        boolean spray = false;
+        boolean quiet = false;
+        int tcpPort = -1;
+        boolean udp = true;
+        boolean dropSlow = false;
+        List<String> filters = new ArrayList<>();
+        List<String> specs = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-d", "--dest" -> host = args[++i];
+                    case "-p", "--port" -> port = Integer.parseInt(args[++i]);
+                    case "-r", "--rate" -> rate = Double.parseDouble(args[++i]);
+                    case "-l", "--loop" -> loop = true;
+                    case "-s", "--spray" -> spray = true;
+                    case "-q", "--quiet" -> quiet = true;
+                    case "-t", "--tcp" -> tcpPort = Integer.parseInt(args[++i]);
+                    case "-n", "--no-udp" -> udp = false;
+                    case "--drop-slow" -> dropSlow = true;
+                    case "-F", "--filter" -> filters.add(args[++i]);
+                    case "-f", "--file" -> {
+                        for (String line : Files.readAllLines(new File(args[++i]).toPath())) {
+                            if (!line.isBlank() && !line.trim().startsWith("#")) {
+                                specs.add(line.trim());
+                            }
+                        }
+                    }
+                    default -> {
+                        if (args[i].startsWith("-")) {
+                            usage("Unexpected argument " + args[i]);
+                        }
+                        specs.add(args[i]);
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            usage("Bad or missing option value: " + ex.getMessage());
+        } catch (IOException ex) {
+            usage("Can't read session list: " + ex.getMessage());
+        }
+        if (specs.isEmpty()) {
+            usage("No NMEA log file given");
+        }
+        try {
+            SentencePipeline.compile(filters); // check them before starting anything
+        } catch (IllegalArgumentException ex) {
+            usage(ex.getMessage());
+        }
+        if (!udp && tcpPort < 0) {
+            usage("--no-udp without --tcp would send nothing");
+        }
+
+        TcpNmeaServer server = null;
+        if (tcpPort >= 0) {
+            try {
+                server = new TcpNmeaServer(tcpPort, TcpNmeaServer.DEFAULT_BACKLOG, dropSlow);
+                server.start();
+            } catch (IOException ex) {
+                logger.fatal(ex);
+                System.err.println("Can't listen on TCP port " + tcpPort + ": " + ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        ReplaySessions sessions = new ReplaySessions();
+        CountDownLatch finished = new CountDownLatch(specs.size());
+        for (String spec : specs) {
+            ReplaySessions.Session session = null;
+            try {
+                session = ReplaySessions.parse(spec, host, port, rate);
+                NMEAPlayer player = sessions.add(session, loop, spray);
+                player.setUdpEnabled(udp);
+                player.setFilter(SentencePipeline.compile(filters));
+                if (server != null) {
+                    player.addReplayListener(server);
+                }
+                player.addReplayListener(new ProgressReporter(session.name(), session.length(), player.getMetrics(), quiet, finished));
+            } catch (IllegalArgumentException ex) {
+                usage(ex.getMessage());
+            } catch (IOException ex) {
+                logger.fatal(ex);
+                System.err.println("Can't open " + session.name() + ": " + ex.getMessage());
+                System.exit(1);
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(sessions::stopAll));
+
+        sessions.startAll();
+        finished.await();
+        sessions.stopAll();
+        sessions.joinAll();
+        if (!filters.isEmpty() && !quiet) {
+            for (NMEAPlayer player : sessions.getPlayers()) {
+                System.out.print(player.filter.summary());
+            }
+        }
+        if (server != null) {
+            if (!quiet) {
+                System.out.printf("TCP: %d clients connected, %d dropped, %d bytes skipped%n",
+                        server.getClientCount(), server.getDropped(), server.getSkippedBytes());
+            }
+            try {
+                server.close();
+            } catch (IOException ex) {
+                logger.fatal(ex);
+            }
+        }
+    }
+
+    /**
+     * Counts what one player sends and prints a line every REPORT_INTERVAL
+     * milliseconds, with how far behind schedule it is and how many sentences
+     * couldn't be sent. Also lets main() know when that replay is over.
+     */
+    static class ProgressReporter implements ReplayListener {
+
+        private final String name;
+        private final ReplayMetrics metrics;
+        private final boolean quiet;
+        private final CountDownLatch finished;
+        private final long fileLength;
+        private final AtomicLong sentences = new AtomicLong();
+        private long lastReport = System.currentTimeMillis();
+        private long lastCount = 0;
+
+        ProgressReporter(String name, long length, ReplayMetrics metrics, boolean quiet, CountDownLatch finished) {
+            this.name = name;
+            this.metrics = metrics;
+            this.quiet = quiet;
+            this.finished = finished;
+            this.fileLength = Math.max(1L, length);
+        }
+
+        @Override
+        public void sentenceSent(byte[] sentence, int length, long offset) {
+            long count = sentences.incrementAndGet();
+            if (quiet) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= REPORT_INTERVAL) {
+                double rate = (count - lastCount) * 1000.0d / (now - lastReport);
+                System.out.printf("%s: %5.1f%%  %d sentences  %.0f/s  lag %.1f ms  %d errors%n", name,
+                        offset * 100.0d / fileLength, count, rate, metrics.getLagMillis(), metrics.getSendErrors());
+                lastReport = now;
+                lastCount = count;
+            }
+        }
+
+        @Override
+        public void replayStopped(boolean endOfFile) {
+            if (finished.getCount() == 0) {
+                return; // already reported
+            }
+            if (!quiet) {
+                System.out.printf("%s: %s after %d sentences, %d errors, max lag %.1f ms%n", name,
+                        endOfFile ? "finished" : "stopped", sentences.get(), metrics.getSendErrors(), metrics.getMaxLagMillis());
+            }
+            finished.countDown();
+        }
+    }
+}
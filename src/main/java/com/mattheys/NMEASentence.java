@@ -0,0 +1,365 @@
+/*
+ * Reusable, allocation free NMEA0183 sentence parser.
+ */
+package com.mattheys;
+
+/**
+ * NMEASentence splits a sentence into fields where it lies, in a byte array,
+ * by noting where each field starts. Nothing is copied and no Strings are
+ * made, so one instance can be reused for every sentence in a multi-GB file.
+ * Coordinates, times and dates are parsed straight from the digits rather
+ * than going through Double.parseDouble().
+ *
+ * Field 0 is the address field ($GPRMC, !AIVDM, ...) and the checksum is not
+ * counted as a field. An NMEA 4.10 tag block (\...\) in front of the sentence
+ * is skipped over.
+ *
+ * An instance is not thread safe. Each thread that parses needs its own.
+ *
+ * @author tony
+ */
+public class NMEASentence {
+
+    static final int MAX_FIELDS = 64;
+
+    private byte[] buf;
+    private byte[] scratch = new byte[SentenceReader.MAX_SENTENCE];
+    private final int[] fieldStart = new int[MAX_FIELDS + 1];
+    private int fieldCount = 0;
+    private boolean hasChecksum = false;
+    private boolean checksumOK = false;
+
+    /**
+     *
+     * @param b - buffer containing the sentence
+     * @param start - index of the first byte of the sentence (or its tag block)
+     * @param end - index just past the last byte, not counting any CR/LF
+     * @return true if the sentence looks like NMEA and its checksum (if it has
+     * one) is right. Fields can still be read if it returns false.
+     */
+    public boolean parse(byte[] b, int start, int end) {
+        buf = b;
+        fieldCount = 0;
+        hasChecksum = false;
+        checksumOK = false;
+        int p = addressStart(b, start, end);
+        if (p < 0) {
+            fieldStart[0] = end + 1;
+            return false;
+        }
+        int sum = 0;
+        fieldStart[fieldCount++] = p;
+        int i;
+        for (i = p + 1; i < end && b[i] != '*'; i++) {
+            sum ^= b[i];
+            if (b[i] == ',' && fieldCount < MAX_FIELDS) {
+                fieldStart[fieldCount++] = i + 1;
+            }
+        }
+        fieldStart[fieldCount] = i + 1; // where the field after the last would start
+        if (i < end) {
+            hasChecksum = true;
+            int hi = (i + 1 < end) ? hex(b[i + 1]) : -1;
+            int lo = (i + 2 < end) ? hex(b[i + 2]) : -1;
+            checksumOK = hi >= 0 && lo >= 0 && ((hi << 4) | lo) == (sum & 0xff);
+            return checksumOK;
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param b - buffer containing the sentence
+     * @param start - index of the first byte of the sentence (or its tag block)
+     * @param end - index just past the last byte
+     * @return index of the $ or ! the address field starts with, past any tag
+     * block, or -1 if there isn't one. For anything that looks at the raw
+     * bytes of a sentence without parsing it.
+     */
+    public static int addressStart(byte[] b, int start, int end) {
+        int p = start;
+        if (p < end && b[p] == '\\') {
+            // skip the tag block
+            for (p++; p < end && b[p] != '\\'; p++) {
+            }
+            p++;
+        }
+        return (p < end && (b[p] == '$' || b[p] == '!')) ? p : -1;
+    }
+
+    /**
+     *
+     * @param s - the sentence as text
+     * @return see parse(byte[], int, int)
+     *
+     * Copies the characters into an array owned by this parser, so it still
+     * doesn't allocate anything. Handy for the bits of the GUI that have
+     * Strings in their hands.
+     */
+    public boolean parse(CharSequence s) {
+        int n = Math.min(s.length(), scratch.length);
+        for (int i = 0; i < n; i++) {
+            scratch[i] = (byte) s.charAt(i);
+        }
+        return parse(scratch, 0, n);
+    }
+
+    private static int hex(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the sentence had a *hh checksum on the end
+     */
+    public boolean hasChecksum() {
+        return hasChecksum;
+    }
+
+    /**
+     * @return true if the sentence had a checksum and it was right
+     */
+    public boolean checksumOK() {
+        return checksumOK;
+    }
+
+    /**
+     * @return number of fields including the address field
+     */
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @return the array that the last sentence was parsed from
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     *
+     * @param i - field number
+     * @return index in buffer() of the first byte of the field
+     */
+    public int fieldStart(int i) {
+        return fieldStart[i];
+    }
+
+    /**
+     *
+     * @param i - field number
+     * @return length of the field, zero if it is empty or doesn't exist
+     */
+    public int fieldLength(int i) {
+        if (i >= fieldCount) {
+            return 0;
+        }
+        return fieldStart[i + 1] - 1 - fieldStart[i];
+    }
+
+    /**
+     *
+     * @param i - field number
+     * @return true if the field is empty, all blanks or not there at all
+     */
+    public boolean isEmpty(int i) {
+        int len = fieldLength(i);
+        if (len == 0) {
+            return true;
+        }
+        for (int p = fieldStart[i]; len > 0; p++, len--) {
+            if (buf[p] != ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param i - field number
+     * @return first character of the field, or 0 if it is empty
+     */
+    public char charAt(int i) {
+        return fieldLength(i) > 0 ? (char) buf[fieldStart[i]] : 0;
+    }
+
+    /**
+     *
+     * @param type - three letter sentence type such as "RMC" or "VDM"
+     * @return true if the address field is a talker ID followed by this type
+     */
+    public boolean isType(String type) {
+        if (fieldLength(0) != 6) {
+            return false;
+        }
+        int p = fieldStart[0] + 3;
+        return buf[p] == type.charAt(0) && buf[p + 1] == type.charAt(1) && buf[p + 2] == type.charAt(2);
+    }
+
+    /**
+     *
+     * @param i - field number
+     * @return the field as an integer, or -1 if it is empty or not a number
+     */
+    public int intField(int i) {
+        int len = fieldLength(i);
+        if (len == 0 || len > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int p = fieldStart[i]; len > 0; p++, len--) {
+            int d = buf[p] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    /**
+     *
+     * @param i - field number
+     * @return the field as a decimal number, or NaN if it is empty or not a
+     * number
+     */
+    public double decimalField(int i) {
+        int len = fieldLength(i);
+        if (len == 0) {
+            return Double.NaN;
+        }
+        int p = fieldStart[i];
+        int endField = p + len;
+        boolean negative = buf[p] == '-';
+        if (negative) {
+            p++;
+        }
+        long whole = 0;
+        long frac = 0;
+        long scale = 1;
+        int digits = 0;
+        for (; p < endField && buf[p] != '.'; p++, digits++) {
+            int d = buf[p] - '0';
+            if (d < 0 || d > 9) {
+                return Double.NaN;
+            }
+            whole = whole * 10 + d;
+        }
+        if (p < endField) {
+            for (p++; p < endField; p++, digits++) {
+                int d = buf[p] - '0';
+                if (d < 0 || d > 9) {
+                    return Double.NaN;
+                }
+                if (scale < 1_000_000_000_000L) {
+                    frac = frac * 10 + d;
+                    scale *= 10;
+                }
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        double value = whole + (double) frac / (double) scale;
+        return negative ? -value : value;
+    }
+
+    /**
+     *
+     * @param i - field holding DDDMM.mmmm (or DDMM.mmmm)
+     * @param hemisphere - field holding N, S, E or W
+     * @return decimal degrees, negative for S and W, or NaN if either field is
+     * empty or garbage
+     *
+     * Same conversion as NMEAPlayer.GPStoDecimal() but straight from the
+     * digits in the buffer.
+     */
+    public double coordinate(int i, int hemisphere) {
+        double ddmm = decimalField(i);
+        char h = charAt(hemisphere);
+        if (Double.isNaN(ddmm) || ddmm < 0 || (h != 'N' && h != 'S' && h != 'E' && h != 'W')) {
+            return Double.NaN;
+        }
+        long degrees = (long) (ddmm / 100.0d);
+        double answer = degrees + (ddmm - degrees * 100.0d) / 60.0d;
+        return (h == 'S' || h == 'W') ? -answer : answer;
+    }
+
+    /**
+     *
+     * @param i - field holding hhmmss or hhmmss.sss
+     * @return milliseconds since midnight, or -1 if the field is no good
+     */
+    public int timeOfDay(int i) {
+        int len = fieldLength(i);
+        if (len < 6) {
+            return -1;
+        }
+        int p = fieldStart[i];
+        for (int k = 0; k < 6; k++) {
+            int d = buf[p + k] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+        }
+        int hh = (buf[p] - '0') * 10 + (buf[p + 1] - '0');
+        int mm = (buf[p + 2] - '0') * 10 + (buf[p + 3] - '0');
+        int ss = (buf[p + 4] - '0') * 10 + (buf[p + 5] - '0');
+        if (hh > 23 || mm > 59 || ss > 60) {
+            return -1;
+        }
+        int ms = 0;
+        if (len > 7 && buf[p + 6] == '.') {
+            int scale = 100;
+            for (int k = 7; k < len && scale > 0; k++, scale /= 10) {
+                int d = buf[p + k] - '0';
+                if (d < 0 || d > 9) {
+                    break;
+                }
+                ms += d * scale;
+            }
+        }
+        return ((hh * 60 + mm) * 60 + ss) * 1000 + ms;
+    }
+
+    /**
+     * @return the time of day carried by an RMC, GGA, ZDA or GLL sentence in
+     * milliseconds since midnight, or -1 for any other sentence
+     */
+    public int sentenceTime() {
+        if (isType("RMC") || isType("GGA") || isType("ZDA")) {
+            return timeOfDay(1);
+        }
+        if (isType("GLL")) {
+            return timeOfDay(5);
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param ms - milliseconds since midnight
+     * @return the time as HH:MM:SS
+     */
+    public static String formatTimeOfDay(int ms) {
+        int secs = ms / 1000;
+        int hh = secs / 3600;
+        int mm = (secs / 60) % 60;
+        int ss = secs % 60;
+        char[] c = {
+            (char) ('0' + hh / 10), (char) ('0' + hh % 10), ':',
+            (char) ('0' + mm / 10), (char) ('0' + mm % 10), ':',
+            (char) ('0' + ss / 10), (char) ('0' + ss % 10)};
+        return new String(c);
+    }
+}
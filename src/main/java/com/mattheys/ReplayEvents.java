@@ -0,0 +1,207 @@
+/*
+ * JDK Flight Recorder events for replay pacing, tile fetches and seeks.
+ */
+package com.mattheys;
+
+import java.nio.charset.StandardCharsets;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * ReplayEvents holds the Flight Recorder events the replayer emits, so that
+ * pacing problems on a real rig can be looked at in JDK Mission Control
+ * without a debug logging build. There are three:
+ *
+ * com.mattheys.SentenceSent   every sentence a player sends: its type, size,
+ *                             offset and how late it went out against its
+ *                             schedule
+ * com.mattheys.TileFetch      every map tile fetched: where it came from
+ *                             (memory, archive, disk or network), how long
+ *                             getting the bytes took and how long decoding
+ * com.mattheys.Seek           every seek of a player or the slider preview,
+ *                             from where to where and how long it took
+ *
+ * To record, start the JVM with -XX:StartFlightRecording (for example
+ * -XX:StartFlightRecording=filename=replay.jfr,settings=profile) or use
+ * jcmd <pid> JFR.start on a running replayer. The events are under
+ * "NMEA Replayer" in Mission Control.
+ *
+ * When no recording has the events switched on they cost a volatile read
+ * each: callers ask the static enabled() methods first and only then make
+ * an event, so nothing is allocated or formatted. Stack traces are off, as
+ * they would cost more than the events themselves and the call sites are
+ * always the same.
+ *
+ * @author tony
+ */
+public class ReplayEvents {
+
+    static final String CATEGORY = "NMEA Replayer";
+
+    private static final EventType SENT_TYPE = EventType.getEventType(SentenceSent.class);
+    private static final EventType TILE_TYPE = EventType.getEventType(TileFetch.class);
+    private static final EventType SEEK_TYPE = EventType.getEventType(Seek.class);
+
+    // sentence type names seen so far, so a recording doesn't make a new
+    // String for every sentence. Races only cost a String.
+    private static final String[] typeNames = new String[256];
+
+    private ReplayEvents() {
+    }
+
+    /**
+     * One sentence sent by a player.
+     */
+    @Name("com.mattheys.SentenceSent")
+    @Label("Sentence Sent")
+    @Category({CATEGORY, "Replay"})
+    @Description("A sentence sent by a player and how well it kept to its schedule")
+    @StackTrace(false)
+    public static class SentenceSent extends Event {
+
+        @Label("Sentence Type")
+        @Description("Talker and type, GPRMC, AIVDM...")
+        String sentenceType;
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+
+        @Label("Offset")
+        @Description("Offset in the log of the next sentence")
+        long offset;
+
+        @Label("Paced")
+        @Description("It had a time it was meant to go out at")
+        boolean paced;
+
+        @Label("Lateness")
+        @Description("How long after its scheduled time it went out, negative if early")
+        @Timespan(Timespan.NANOSECONDS)
+        long lateness;
+    }
+
+    /**
+     * One map tile fetched by the TileLoader.
+     */
+    @Name("com.mattheys.TileFetch")
+    @Label("Tile Fetch")
+    @Category({CATEGORY, "Map"})
+    @Description("A map tile fetched, where from and how long it took")
+    @StackTrace(false)
+    public static class TileFetch extends Event {
+
+        @Label("Tile")
+        @Description("z/x/y.png")
+        String tile;
+
+        @Label("Source")
+        @Description("memory, archive, disk or network")
+        String source;
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+
+        @Label("Fetch Time")
+        @Description("Getting the bytes from the archive, disk or network")
+        @Timespan(Timespan.NANOSECONDS)
+        long fetchTime;
+
+        @Label("Decode Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long decodeTime;
+
+        @Label("Succeeded")
+        boolean ok;
+    }
+
+    /**
+     * One seek in a log.
+     */
+    @Name("com.mattheys.Seek")
+    @Label("Seek")
+    @Category({CATEGORY, "Replay"})
+    @Description("A seek in a log, by a player or the slider preview")
+    @StackTrace(false)
+    public static class Seek extends Event {
+
+        @Label("Reader")
+        @Description("player or scrubber")
+        String reader;
+
+        @Label("From")
+        long from;
+
+        @Label("To")
+        @Description("Offset asked for")
+        long to;
+
+        @Label("Landed")
+        @Description("Offset of the next sentence after the seek")
+        long landed;
+    }
+
+    /**
+     * @return true if a recording wants SentenceSent events
+     */
+    static boolean sentEnabled() {
+        return SENT_TYPE.isEnabled();
+    }
+
+    /**
+     * @return true if a recording wants TileFetch events
+     */
+    static boolean tileEnabled() {
+        return TILE_TYPE.isEnabled();
+    }
+
+    /**
+     * @return true if a recording wants Seek events
+     */
+    static boolean seekEnabled() {
+        return SEEK_TYPE.isEnabled();
+    }
+
+    /**
+     *
+     * @param b - the sentence
+     * @param length - its length
+     * @return the five characters after the $ or !, past any tag block, or ""
+     * if there aren't any
+     */
+    static String sentenceType(byte[] b, int length) {
+        int p = NMEASentence.addressStart(b, 0, length);
+        if (p < 0 || p + 6 > length) {
+            return "";
+        }
+        int h = 0;
+        for (int i = p + 1; i < p + 6; i++) {
+            h = 31 * h + b[i];
+        }
+        int slot = (h ^ (h >>> 8)) & (typeNames.length - 1);
+        String name = typeNames[slot];
+        if (name != null && matches(name, b, p + 1)) {
+            return name;
+        }
+        name = new String(b, p + 1, 5, StandardCharsets.ISO_8859_1);
+        typeNames[slot] = name;
+        return name;
+    }
+
+    private static boolean matches(String name, byte[] b, int start) {
+        for (int i = 0; i < 5; i++) {
+            if (name.charAt(i) != (char) (b[start + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Progress callbacks from the replay engine.
+ */
+package com.mattheys;
+
+/**
+ * Anything that wants to know what an NMEAPlayer is doing implements this and
+ * registers itself with addReplayListener(). The methods are called on the
+ * player thread, so they need to be quick and must not touch JavaFX controls
+ * directly.
+ *
+ * @author tony
+ */
+public interface ReplayListener {
+
+    /**
+     *
+     * @param sentence - array holding the sentence that was just sent, without
+     * the CR/LF. The array is reused for the next sentence so copy anything
+     * that needs to be kept.
+     * @param length - number of bytes of the sentence in the array
+     * @param offset - file offset of the start of the next sentence
+     */
+    void sentenceSent(byte[] sentence, int length, long offset);
+
+    /**
+     *
+     * @param endOfFile - true if we stopped because we ran out of file, false
+     * if we were told to stop or something went wrong
+     */
+    void replayStopped(boolean endOfFile);
+}
@@ -0,0 +1,407 @@
+/*
+ * Counts what a player sends and how well it keeps time.
+ */
+package com.mattheys;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * ReplayMetrics is updated by the player thread after every sentence and read
+ * by anybody else: JMX clients, the metrics panel in the GUI, the CLI.
+ *
+ * Only the player thread writes, so the counters are atomics for the sake of
+ * the readers rather than for the writer, and recording a sentence allocates
+ * nothing. Sentence types (GPRMC, AIVDM, ...) are told apart by the five
+ * characters after the $ or !, packed into a long and looked up in a small
+ * table; past MAX_TYPES different types everything new is counted as "other".
+ *
+ * To watch a replay from outside, start the JVM with the usual
+ * -Dcom.sun.management.jmxremote.port=... options, or attach jconsole or
+ * VisualVM locally, and look under com.mattheys.
+ *
+ * @author tony
+ */
+public class ReplayMetrics implements ReplayMetricsMXBean {
+
+    static final int MAX_TYPES = 64;
+    static final long WINDOW_NANOS = 1_000_000_000L;
+    static final long[] JITTER_BOUNDS_MICROS = {10, 50, 100, 500, 1000, 5000, 10000, 50000, 100000};
+    private static final String[] JITTER_BUCKETS = {"early", "<10us", "<50us", "<100us", "<500us", "<1ms",
+        "<5ms", "<10ms", "<50ms", "<100ms", ">=100ms"};
+
+    private final AtomicLong sentences = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+    private final AtomicLong filtered = new AtomicLong();
+    private final long[] typeKeys = new long[MAX_TYPES];
+    private volatile int typeCount = 1; // slot 0 is "other"
+    private final AtomicLongArray typeSentences = new AtomicLongArray(MAX_TYPES);
+    private final AtomicLongArray typeBytes = new AtomicLongArray(MAX_TYPES);
+    private final AtomicLongArray jitter = new AtomicLongArray(JITTER_BUCKETS.length);
+    private final AtomicLong jitterCount = new AtomicLong();
+    private final AtomicLong jitterTotalNanos = new AtomicLong();
+    private final AtomicLong maxJitterNanos = new AtomicLong();
+    private volatile long lagNanos = 0;
+    private final AtomicLong maxLagNanos = new AtomicLong();
+    private final AtomicLong lagResets = new AtomicLong();
+
+    // the last whole second, rolled over by the player thread
+    private long windowStart = System.nanoTime();
+    private final long[] windowStartSentences = new long[MAX_TYPES];
+    private final long[] windowStartBytes = new long[MAX_TYPES];
+    private final AtomicLongArray windowSentences = new AtomicLongArray(MAX_TYPES);
+    private final AtomicLongArray windowBytes = new AtomicLongArray(MAX_TYPES);
+    private volatile long windowEnd = 0;
+    private volatile long windowNanos = 0;
+
+    private ObjectName registeredAs = null;
+
+    private static final Logger logger = LogManager.getLogger(ReplayMetrics.class);
+
+    /**
+     *
+     * @param sentence - the sentence that went out
+     * @param length - its length
+     * @param scheduledNanos - System.nanoTime() it was meant to go out at, or
+     * -1 if nothing was scheduled (spray and pray, or an unpaced sentence)
+     * @param sentNanos - System.nanoTime() it went out at
+     */
+    public void sent(byte[] sentence, int length, long scheduledNanos, long sentNanos) {
+        int t = typeIndex(sentence, length);
+        sentences.incrementAndGet();
+        bytes.addAndGet(length + 2);
+        typeSentences.incrementAndGet(t);
+        typeBytes.addAndGet(t, length + 2);
+        if (scheduledNanos >= 0) {
+            long late = sentNanos - scheduledNanos;
+            int bucket = 0;
+            if (late >= 0) {
+                long micros = late / 1000L;
+                bucket = 1;
+                while (bucket <= JITTER_BOUNDS_MICROS.length && micros >= JITTER_BOUNDS_MICROS[bucket - 1]) {
+                    bucket++;
+                }
+            }
+            jitter.incrementAndGet(bucket);
+            long abs = Math.abs(late);
+            jitterCount.incrementAndGet();
+            jitterTotalNanos.addAndGet(abs);
+            if (abs > maxJitterNanos.get()) {
+                maxJitterNanos.set(abs);
+            }
+            lagNanos = Math.max(0L, late);
+            if (late > maxLagNanos.get()) {
+                maxLagNanos.set(late);
+            }
+        }
+        if (sentNanos - windowStart >= WINDOW_NANOS) {
+            roll(sentNanos);
+        }
+    }
+
+    /**
+     * A sentence that could not be sent.
+     */
+    public void sendError() {
+        sendErrors.incrementAndGet();
+    }
+
+    /**
+     * The pacing fell more than ReplayScheduler.MAX_LAG_NANOS behind and
+     * started again.
+     */
+    public void lagReset() {
+        lagResets.incrementAndGet();
+    }
+
+    /**
+     * A sentence that the player's SentencePipeline didn't let through.
+     */
+    public void filtered() {
+        filtered.incrementAndGet();
+    }
+
+    private void roll(long now) {
+        int n = typeCount;
+        for (int i = 0; i < n; i++) {
+            long s = typeSentences.get(i);
+            long b = typeBytes.get(i);
+            windowSentences.set(i, s - windowStartSentences[i]);
+            windowBytes.set(i, b - windowStartBytes[i]);
+            windowStartSentences[i] = s;
+            windowStartBytes[i] = b;
+        }
+        windowNanos = now - windowStart;
+        windowEnd = now;
+        windowStart = now;
+    }
+
+    /**
+     * @return index into the type table for the sentence, adding it if it is
+     * new and there is room
+     */
+    private int typeIndex(byte[] b, int length) {
+        int p = NMEASentence.addressStart(b, 0, length);
+        if (p < 0 || p + 6 > length) {
+            return 0;
+        }
+        long key = 0;
+        for (int i = p + 1; i < p + 6; i++) {
+            key = (key << 8) | (b[i] & 0xff);
+        }
+        int n = typeCount;
+        for (int i = 1; i < n; i++) {
+            if (typeKeys[i] == key) {
+                return i;
+            }
+        }
+        if (n == MAX_TYPES) {
+            return 0;
+        }
+        typeKeys[n] = key;
+        typeCount = n + 1; // volatile write publishes the key
+        return n;
+    }
+
+    private String typeName(int i) {
+        if (i == 0) {
+            return "other";
+        }
+        char[] c = new char[5];
+        long key = typeKeys[i];
+        for (int k = 4; k >= 0; k--) {
+            c[k] = (char) (key & 0xff);
+            key >>>= 8;
+        }
+        return new String(c);
+    }
+
+    /**
+     * @return true if the last window is recent enough to mean anything. When
+     * the player stops sending it stops rolling the window over, so a window
+     * that ended a while ago means nothing is being sent.
+     */
+    private boolean windowCurrent() {
+        return windowNanos > 0 && System.nanoTime() - windowEnd < 2 * WINDOW_NANOS;
+    }
+
+    private double perSecond(long count) {
+        return count * 1e9 / windowNanos;
+    }
+
+    @Override
+    public long getSentences() {
+        return sentences.get();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getSendErrors() {
+        return sendErrors.get();
+    }
+
+    @Override
+    public long getFiltered() {
+        return filtered.get();
+    }
+
+    @Override
+    public double getSentencesPerSecond() {
+        if (!windowCurrent()) {
+            return 0.0;
+        }
+        long total = 0;
+        for (int i = 0, n = typeCount; i < n; i++) {
+            total += windowSentences.get(i);
+        }
+        return perSecond(total);
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        if (!windowCurrent()) {
+            return 0.0;
+        }
+        long total = 0;
+        for (int i = 0, n = typeCount; i < n; i++) {
+            total += windowBytes.get(i);
+        }
+        return perSecond(total);
+    }
+
+    @Override
+    public Map<String, Long> getSentencesByType() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        for (int i = 0, n = typeCount; i < n; i++) {
+            if (typeSentences.get(i) > 0) {
+                m.put(typeName(i), typeSentences.get(i));
+            }
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Double> getSentencesPerSecondByType() {
+        return windowByType(windowSentences);
+    }
+
+    @Override
+    public Map<String, Double> getBytesPerSecondByType() {
+        return windowByType(windowBytes);
+    }
+
+    private Map<String, Double> windowByType(AtomicLongArray counts) {
+        Map<String, Double> m = new LinkedHashMap<>();
+        boolean current = windowCurrent();
+        for (int i = 0, n = typeCount; i < n; i++) {
+            if (typeSentences.get(i) > 0) {
+                m.put(typeName(i), current ? perSecond(counts.get(i)) : 0.0);
+            }
+        }
+        return m;
+    }
+
+    @Override
+    public String[] getJitterBuckets() {
+        return JITTER_BUCKETS.clone();
+    }
+
+    @Override
+    public long[] getJitterHistogram() {
+        long[] h = new long[jitter.length()];
+        for (int i = 0; i < h.length; i++) {
+            h[i] = jitter.get(i);
+        }
+        return h;
+    }
+
+    @Override
+    public double getMeanJitterMicros() {
+        long n = jitterCount.get();
+        return (n == 0) ? 0.0 : jitterTotalNanos.get() / 1000.0 / n;
+    }
+
+    @Override
+    public long getMaxJitterMicros() {
+        return maxJitterNanos.get() / 1000L;
+    }
+
+    @Override
+    public double getLagMillis() {
+        return lagNanos / 1e6;
+    }
+
+    @Override
+    public double getMaxLagMillis() {
+        return maxLagNanos.get() / 1e6;
+    }
+
+    @Override
+    public long getLagResets() {
+        return lagResets.get();
+    }
+
+    /**
+     * Zeroes the counters. The player may be writing at the same time, so a
+     * sentence or two either side of the reset may end up on the wrong side of
+     * it, which is fine for what this is used for.
+     */
+    @Override
+    public void reset() {
+        sentences.set(0);
+        bytes.set(0);
+        sendErrors.set(0);
+        filtered.set(0);
+        for (int i = 0; i < MAX_TYPES; i++) {
+            typeSentences.set(i, 0);
+            typeBytes.set(i, 0);
+            windowSentences.set(i, 0);
+            windowBytes.set(i, 0);
+            windowStartSentences[i] = 0;
+            windowStartBytes[i] = 0;
+        }
+        for (int i = 0; i < jitter.length(); i++) {
+            jitter.set(i, 0);
+        }
+        jitterCount.set(0);
+        jitterTotalNanos.set(0);
+        maxJitterNanos.set(0);
+        lagNanos = 0;
+        maxLagNanos.set(0);
+        lagResets.set(0);
+        windowNanos = 0;
+    }
+
+    /**
+     *
+     * @param name - what to call this player in JMX, e.g. the log file name
+     *
+     * Registers the metrics with the platform MBean server. If the name is
+     * taken already a number is added to it. Failure is logged and otherwise
+     * ignored; the player works just the same without JMX.
+     */
+    public synchronized void registerMBean(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int i = 1; registeredAs == null && i < 100; i++) {
+            try {
+                ObjectName on = new ObjectName("com.mattheys:type=ReplayMetrics,name="
+                        + ObjectName.quote(i == 1 ? name : name + " (" + i + ")"));
+                if (!server.isRegistered(on)) {
+                    server.registerMBean(this, on);
+                    registeredAs = on;
+                }
+            } catch (JMException ex) {
+                logger.error("Can't register replay metrics for {}: {}", name, ex.toString());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes the metrics out of the MBean server again.
+     */
+    public synchronized void unregisterMBean() {
+        if (registeredAs != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+            } catch (JMException ex) {
+                logger.debug(ex);
+            }
+            registeredAs = null;
+        }
+    }
+
+    /**
+     * @return a few lines for a person to read, for the metrics panel
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d sentences, %d errors, %d filtered out%n", getSentences(), getSendErrors(), getFiltered()));
+        sb.append(String.format("%.1f sentences/s, %.0f bytes/s%n", getSentencesPerSecond(), getBytesPerSecond()));
+        for (Map.Entry<String, Double> e : getSentencesPerSecondByType().entrySet()) {
+            sb.append(String.format("  %-6s %8.1f/s%n", e.getKey(), e.getValue()));
+        }
+        sb.append(String.format("jitter mean %.0fus max %dus%n", getMeanJitterMicros(), getMaxJitterMicros()));
+        long[] h = getJitterHistogram();
+        for (int i = 0; i < h.length; i++) {
+            if (h[i] > 0) {
+                sb.append(String.format("  %-7s %d%n", JITTER_BUCKETS[i], h[i]));
+            }
+        }
+        sb.append(String.format("lag %.1f ms (max %.1f ms), %d lag resets", getLagMillis(), getMaxLagMillis(), getLagResets()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * JMX view of a player's ReplayMetrics.
+ */
+package com.mattheys;
+
+import java.util.Map;
+
+/**
+ * What a player exposes over JMX, under
+ * com.mattheys:type=ReplayMetrics,name=... (see ReplayMetrics).
+ *
+ * Rates are over the last whole second of sending. Jitter is how far the
+ * actual send time was from the time the pacing asked for, and lag is the
+ * same thing for the most recent sentence. A replay that can't keep up shows
+ * a lag that grows until it gets to ReplayScheduler.MAX_LAG_NANOS (2 s),
+ * when the pacing gives up on the lost time and starts again from the
+ * sentence it is on. Those restarts are counted in getLagResets().
+ *
+ * @author tony
+ */
+public interface ReplayMetricsMXBean {
+
+    long getSentences();
+
+    long getBytes();
+
+    long getSendErrors();
+
+    /**
+     * @return sentences the player's filter didn't send
+     */
+    long getFiltered();
+
+    double getSentencesPerSecond();
+
+    double getBytesPerSecond();
+
+    Map<String, Long> getSentencesByType();
+
+    Map<String, Double> getSentencesPerSecondByType();
+
+    Map<String, Double> getBytesPerSecondByType();
+
+    /**
+     * @return bucket labels, in the same order as getJitterHistogram()
+     */
+    String[] getJitterBuckets();
+
+    long[] getJitterHistogram();
+
+    double getMeanJitterMicros();
+
+    long getMaxJitterMicros();
+
+    double getLagMillis();
+
+    double getMaxLagMillis();
+
+    /**
+     * @return how many times the replay fell too far behind and its pacing
+     * started again
+     */
+    long getLagResets();
+
+    /**
+     * Zero all the counters.
+     */
+    void reset();
+}
@@ -0,0 +1,159 @@
+/*
+ * Latest position, time and file offset of the player, for the GUI.
+ */
+package com.mattheys;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * ReplayPosition holds the most recent fix the player has sent and how far
+ * through the file it has got. The player thread writes it after every
+ * sentence and the FX thread reads it once a frame, so however fast the file
+ * is played the FX thread only ever does one frame's worth of work and never
+ * sees a latitude from one fix with the longitude from another.
+ *
+ * Reads are StampedLock optimistic reads, which never block the player: if
+ * the player wrote while we were copying the values out we just copy them
+ * again. There is only ever one writer so its lock is never contended.
+ * Nothing is allocated on either side.
+ *
+ * @author tony
+ */
+public class ReplayPosition {
+
+    /**
+     * A time and position. The player and the FX thread each keep their own
+     * and copy in and out of the shared ReplayPosition.
+     */
+    public static class Fix {
+
+        public double latitude = Double.NaN;
+        public double longitude = Double.NaN;
+        public int timeOfDay = -1; // milliseconds since midnight UTC
+        public long offset = -1;
+
+        /**
+         *
+         * @param sentence - a parsed sentence
+         * @return true if it is a GLL, GGA or RMC sentence with a good (or no)
+         * checksum and a position and time in it, in which case they have been
+         * copied into this fix. Otherwise the fix is left as it was.
+         *
+         * We need to be careful here because some GPS units send out empty
+         * sentences for some reason so it's possible we might see empty fields.
+         */
+        public boolean extract(NMEASentence sentence) {
+            if (sentence.hasChecksum() && !sentence.checksumOK()) {
+                return false;
+            }
+            int timeField, latField, lonField;
+            if (sentence.isType("GLL")) {
+                latField = 1;
+                lonField = 3;
+                timeField = 5;
+            } else if (sentence.isType("GGA")) {
+                timeField = 1;
+                latField = 2;
+                lonField = 4;
+            } else if (sentence.isType("RMC")) {
+                timeField = 1;
+                latField = 3;
+                lonField = 5;
+            } else {
+                return false;
+            }
+            double lat = sentence.coordinate(latField, latField + 1);
+            double lon = sentence.coordinate(lonField, lonField + 1);
+            int time = sentence.timeOfDay(timeField);
+            if (Double.isNaN(lat) || Double.isNaN(lon) || time < 0) {
+                return false;
+            }
+            latitude = lat;
+            longitude = lon;
+            timeOfDay = time;
+            return true;
+        }
+
+        /**
+         *
+         * @param ais - a decoder that has just decoded a message
+         * @return true if it was our own vessel's report (!AIVDO) with a
+         * position in it, in which case the position has been copied into
+         * this fix. AIS only gives the second, so the time is left as it was.
+         * This is what keeps the map moving on a log with AIS but no GPS.
+         */
+        public boolean extract(AisDecoder ais) {
+            if (!ais.ownShip() || !ais.hasPosition()) {
+                return false;
+            }
+            latitude = ais.latitude();
+            longitude = ais.longitude();
+            return true;
+        }
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private double latitude = Double.NaN;
+    private double longitude = Double.NaN;
+    private int timeOfDay = -1;
+    private long offset = -1;
+    private long version = 0;
+
+    /**
+     *
+     * @param fix - the fix just sent, including the file offset it was sent
+     * from
+     */
+    public void publish(Fix fix) {
+        long stamp = lock.writeLock();
+        try {
+            latitude = fix.latitude;
+            longitude = fix.longitude;
+            timeOfDay = fix.timeOfDay;
+            offset = fix.offset;
+            version++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     *
+     * @param newOffset - file offset the player has got to, after a sentence
+     * with no fix in it
+     */
+    public void publishOffset(long newOffset) {
+        long stamp = lock.writeLock();
+        try {
+            offset = newOffset;
+            version++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     *
+     * @param into - where to copy the latest values to
+     * @return a number that changes every time something is published, so the
+     * caller can tell whether there is anything new
+     */
+    public long read(Fix into) {
+        while (true) {
+            long stamp = lock.tryOptimisticRead();
+            double lat = latitude;
+            double lon = longitude;
+            int time = timeOfDay;
+            long off = offset;
+            long v = version;
+            if (stamp != 0L && lock.validate(stamp)) {
+                into.latitude = lat;
+                into.longitude = lon;
+                into.timeOfDay = time;
+                into.offset = off;
+                return v;
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Paces replay from the timestamps found in the log itself.
+ */
+package com.mattheys;
+
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * ReplayScheduler works out when each sentence should go out on the network
+ * from the time recorded in the log rather than from the length of the
+ * sentence. Times come from an NMEA 4.10 tag block capture timestamp (\c:...\)
+ * if the log has them, otherwise from the time field of RMC, GGA, GLL and ZDA
+ * sentences. Sentences without a time go out straight after the one before.
+ *
+ * Every deadline is computed from a fixed anchor (the wall clock and log time
+ * of the first sentence sent) rather than from the previous sentence, so
+ * rounding errors and oversleeping never add up. We park until shortly before
+ * the deadline and spin for the last stretch, which gets us well inside a
+ * millisecond of the intended send time.
+ *
+ * The anchor is dropped and taken again whenever the timing can't be honoured:
+ * after a pause or seek, a change of speed, the log clock going backwards, a
+ * gap of more than MAX_GAP in the log, or the sender falling more than MAX_LAG
+ * behind.
+ *
+ * A wait can be cut short with wake() (and unparking the waiting thread), so
+ * a player waiting minutes for the next sentence in a sparse log still
+ * answers a pause or a seek straight away. pace() then returns false and the
+ * sentence hasn't had its wait; pacing it again carries on where it left off.
+ *
+ */
+public class ReplayScheduler {
+
+    static final long SPIN_NANOS = 200_000L;
+    static final long MAX_LAG_NANOS = 2_000_000_000L;
+    static final long MAX_GAP = 5L * 60L * 1000L;
+
+    private static final int NONE = 0;
+    private static final int CAPTURE = 1;
+    private static final int SENTENCE = 2;
+
+    private volatile double speed = 1.0d;
+    private volatile boolean resetRequested = true;
+    private long anchorNanos;
+    private long anchorTime;
+    private long lastTime = -1;
+    private int source = NONE;
+    private long deadline = -1;
+    private boolean fellBehind = false;
+    private volatile boolean woken = false;
+    private final NMEASentence parser = new NMEASentence();
+
+    private static final Logger logger = LogManager.getLogger(ReplayScheduler.class);
+
+    /**
+     * @return the replay speed multiplier, 1.0 being real time
+     */
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     *
+     * @param s - new speed multiplier. 2.0 plays twice as fast as the log was
+     * recorded, 0.5 half as fast.
+     */
+    public void setSpeed(double s) {
+        if (s <= 0.0d) {
+            throw new IllegalArgumentException("Replay speed must be positive, not " + s);
+        }
+        speed = s;
+        resetRequested = true;
+    }
+
+    /**
+     * @return the System.nanoTime() the last sentence passed to pace() was
+     * meant to go out at, or -1 if it had no time or started a new anchor
+     */
+    public long lastDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return true if the last sentence passed to pace() was more than
+     * MAX_LAG_NANOS late, so that it started a new anchor instead
+     */
+    public boolean fellBehind() {
+        return fellBehind;
+    }
+
+    /**
+     * Forget the current anchor. The next timestamped sentence is sent at once
+     * and becomes the new anchor. Call this after a pause or a seek.
+     */
+    public void reset() {
+        resetRequested = true;
+    }
+
+    /**
+     * Makes the wait in pace(), paceAt() or await() return false straight
+     * away, or the next one if nothing is waiting. The caller has to unpark
+     * the waiting thread as well.
+     */
+    public void wake() {
+        woken = true;
+    }
+
+    /**
+     * Takes back a wake(). Call it before looking for whatever the wake was
+     * about, so that nothing that comes in after is missed.
+     */
+    public void clearWake() {
+        woken = false;
+    }
+
+    /**
+     *
+     * @param b - buffer containing the sentence
+     * @param start - index of the first byte of the sentence
+     * @param end - index just past the last byte of the sentence
+     * @return true when it is time to send, false if woken first
+     * @throws InterruptedException if the thread is interrupted while waiting
+     *
+     * Waits until it is time to send the sentence. Returns immediately for
+     * sentences that carry no time.
+     */
+    public boolean pace(byte[] b, int start, int end) throws InterruptedException {
+        deadline = -1;
+        fellBehind = false;
+        if (resetRequested) {
+            source = NONE;
+        }
+        int src = CAPTURE;
+        long t = captureTime(b, start, end);
+        if (t < 0) {
+            if (!parser.parse(b, start, end)) {
+                return true; // don't trust the time in a corrupt sentence
+            }
+            int tod = parser.sentenceTime();
+            if (tod < 0) {
+                return true;
+            }
+            src = SENTENCE;
+            t = TimeIndex.unwrap(source == SENTENCE ? lastTime : -1, tod);
+        }
+        if (src == SENTENCE && source == CAPTURE) {
+            // Tag blocks and sentence times both present. The capture time is
+            // the better clock so stick with it until the next reset.
+            return true;
+        }
+        return paceTo(t, src);
+    }
+
+    /**
+     *
+     * @param t - log time of the sentence in milliseconds, already worked out
+     * (by BinaryLog, say), or -1 if it has none
+     * @return true when it is time to send, false if woken first
+     * @throws InterruptedException if the thread is interrupted while waiting
+     *
+     * Same as pace() for a source that has done the parsing already.
+     */
+    public boolean paceAt(long t) throws InterruptedException {
+        deadline = -1;
+        fellBehind = false;
+        if (resetRequested) {
+            source = NONE;
+        }
+        return (t < 0) || paceTo(t, CAPTURE);
+    }
+
+    private boolean paceTo(long t, int src) throws InterruptedException {
+        long now = System.nanoTime();
+        if (resetRequested || src != source || t < lastTime || t - lastTime > MAX_GAP) {
+            anchor(now, t, src);
+            return true;
+        }
+        lastTime = t;
+        long due = anchorNanos + (long) ((t - anchorTime) * 1_000_000.0d / speed);
+        if (now - due > MAX_LAG_NANOS) {
+            logger.debug("Fell {} ms behind the log, re-anchoring", (now - due) / 1_000_000L);
+            anchor(now, t, src);
+            fellBehind = true;
+            return true;
+        }
+        deadline = due;
+        return await(due);
+    }
+
+    private void anchor(long now, long t, int src) {
+        resetRequested = false;
+        anchorNanos = now;
+        anchorTime = t;
+        lastTime = t;
+        source = src;
+    }
+
+    /**
+     *
+     * @param deadline - System.nanoTime() value to wait for
+     * @return true at the deadline, false if woken first
+     * @throws InterruptedException if the thread is interrupted while waiting
+     *
+     * Parks until SPIN_NANOS before the deadline (parkNanos can wake up early
+     * or late, so we keep checking) and then spins the rest of the way.
+     */
+    public boolean await(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > SPIN_NANOS) {
+            if (woken) {
+                return false;
+            }
+            LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        while (deadline - System.nanoTime() > 0) {
+            Thread.onSpinWait();
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param b - buffer containing the sentence
+     * @param start - index of the first byte of the sentence
+     * @param end - index just past the last byte of the sentence
+     * @return the capture time from a leading tag block (\c:...\) in
+     * milliseconds since the epoch, or -1 if there isn't one.
+     *
+     * The standard says c: is in seconds but plenty of loggers write
+     * milliseconds, so anything too big to be seconds is taken as milliseconds.
+     */
+    static long captureTime(byte[] b, int start, int end) {
+        if (start >= end || b[start] != '\\') {
+            return -1;
+        }
+        int p = start + 1;
+        while (p < end && b[p] != '\\' && b[p] != '*') {
+            boolean fieldStart = (p == start + 1) || b[p - 1] == ',';
+            if (fieldStart && p + 1 < end && b[p] == 'c' && b[p + 1] == ':') {
+                long value = 0;
+                int digits = 0;
+                for (p += 2; p < end && b[p] >= '0' && b[p] <= '9'; p++, digits++) {
+                    value = value * 10 + (b[p] - '0');
+                }
+                if (digits == 0) {
+                    return -1;
+                }
+                return (value > 100_000_000_000L) ? value : value * 1000L;
+            }
+            p++;
+        }
+        return -1;
+    }
+}
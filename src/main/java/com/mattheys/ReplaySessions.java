@@ -0,0 +1,181 @@
+/*
+ * Runs many independent replays in one JVM.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * ReplaySessions looks after a group of NMEAPlayers, each replaying its own
+ * file to its own destination at its own rate. The players run on virtual
+ * threads, which cost a few hundred bytes of stack each while they sleep
+ * between sentences, so a harbour full of simulated vessels fits in a single
+ * process.
+ *
+ * A session is described by a spec string of the form
+ *
+ * file[,host[,port[,rate]]]
+ *
+ * where anything left out is taken from the defaults handed to parse(). A rate
+ * of 0 means the sentences are paced by their length rather than by the times
+ * in the log. The file can be several files joined with +, as in
+ * gps.nmea+ais.nmea, to replay them as one stream merged by time (see
+ * MergedSentenceSource).
+ *
+ * @author tony
+ */
+public class ReplaySessions {
+
+    private final List<NMEAPlayer> players = new ArrayList<>();
+    private final ThreadFactory factory = Thread.ofVirtual().name("replay-", 1).factory();
+
+    private static final Logger logger = LogManager.getLogger(ReplaySessions.class);
+
+    /**
+     * What one session should do, after the spec string has been parsed.
+     */
+    public static class Session {
+        List<File> files;
+        String host;
+        int port;
+        double rate;
+
+        public Session(List<File> files, String host, int port, double rate) {
+            this.files = files;
+            this.host = host;
+            this.port = port;
+            this.rate = rate;
+        }
+
+        /**
+         * @return the file name, or the names joined with + for a merge
+         */
+        public String name() {
+            StringBuilder s = new StringBuilder();
+            for (File f : files) {
+                s.append(s.length() > 0 ? "+" : "").append(f.getName());
+            }
+            return s.toString();
+        }
+
+        /**
+         * @return total size of the files
+         */
+        public long length() {
+            long l = 0;
+            for (File f : files) {
+                l += f.length();
+            }
+            return l;
+        }
+
+        @Override
+        public String toString() {
+            return name() + " -> " + host + ":" + port + (rate > 0.0d ? " @" + rate + "x" : "");
+        }
+    }
+
+    /**
+     *
+     * @param spec - session spec, file[+file...][,host[,port[,rate]]]
+     * @param host - destination used when the spec doesn't give one
+     * @param port - port used when the spec doesn't give one
+     * @param rate - rate used when the spec doesn't give one
+     * @return the parsed session
+     * @throws IllegalArgumentException if the port or rate aren't numbers
+     */
+    public static Session parse(String spec, String host, int port, double rate) {
+        String[] parts = spec.split(",");
+        try {
+            if (parts.length > 1 && !parts[1].isBlank()) {
+                host = parts[1].trim();
+            }
+            if (parts.length > 2 && !parts[2].isBlank()) {
+                port = Integer.parseInt(parts[2].trim());
+            }
+            if (parts.length > 3 && !parts[3].isBlank()) {
+                rate = Double.parseDouble(parts[3].trim());
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad session spec \"" + spec + "\"", ex);
+        }
+        List<File> files = new ArrayList<>();
+        for (String name : parts[0].split("\\+")) {
+            if (!name.isBlank()) {
+                files.add(new File(name.trim()));
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No file in session spec \"" + spec + "\"");
+        }
+        return new Session(files, host, port, rate);
+    }
+
+    /**
+     *
+     * @param session - what to replay and where to
+     * @param loop - go back to the start at the end of the file
+     * @param spray - send as fast as possible
+     * @return the player, not yet started, so listeners can be added
+     * @throws IOException if the file can't be opened
+     */
+    public NMEAPlayer add(Session session, boolean loop, boolean spray) throws IOException {
+        NMEAPlayer player = new NMEAPlayer();
+        player.openFiles(session.files);
+        player.setDestination(session.host, session.port);
+        player.setLoop(loop);
+        player.setSprayAndPray(spray);
+        if (session.rate > 0.0d) {
+            player.setSpeed(session.rate);
+            player.setTimestampPacing(true);
+        }
+        player.getMetrics().registerMBean(session.name() + " to " + session.host + ":" + session.port);
+        players.add(player);
+        logger.debug("Added session {}", session);
+        return player;
+    }
+
+    /**
+     * @return the players in the order they were added
+     */
+    public List<NMEAPlayer> getPlayers() {
+        return Collections.unmodifiableList(players);
+    }
+
+    /**
+     * Starts every player on its own virtual thread.
+     */
+    public void startAll() {
+        for (NMEAPlayer player : players) {
+            player.setPlaying(true);
+            player.start(factory);
+        }
+    }
+
+    /**
+     * Tells every player to stop.
+     */
+    public void stopAll() {
+        for (NMEAPlayer player : players) {
+            player.killThread();
+        }
+    }
+
+    /**
+     * Waits for every player to finish.
+     *
+     * @throws InterruptedException if we are interrupted while waiting
+     */
+    public void joinAll() throws InterruptedException {
+        for (NMEAPlayer player : players) {
+            player.join();
+        }
+    }
+}
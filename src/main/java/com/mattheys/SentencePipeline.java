@@ -0,0 +1,403 @@
+/*
+ * Decides which sentences get sent.
+ */
+package com.mattheys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SentencePipeline sits between reading a sentence and sending it, and lets
+ * through only the sentences a bandwidth-limited link actually needs. It is a
+ * list of stages, each of which can turn a sentence away; a sentence is sent
+ * only if every stage accepts it.
+ *
+ * The pipeline is compiled once from spec strings, and the stages then work
+ * on the raw bytes of the sentence: talkers and types are packed into ints and
+ * compared straight against the address field, the sentence is split into
+ * fields (by NMEASentence, in place) only when a stage needs a field, and AIS
+ * payloads are decoded (by AisDecoder, in place) only when a stage needs
+ * them. Nothing is allocated per sentence.
+ *
+ * The specs, any number of which can be given, or several in one string
+ * separated by semicolons:
+ *
+ * include=RMC,GGA,VDM       only these; a token is a type (RMC), a talker
+ *                           (GP) or both (GPRMC)
+ * exclude=GSV,GSA           anything but these, tokens as for include
+ * rate=RMC:1,GGA:0.2        at most this many per second of each, tokens as
+ *                           for include, anything not listed isn't limited
+ * mmsi=316001234,316005678  AIS only from these vessels; other sentences
+ *                           are not affected
+ * area=south,west,north,east
+ *                           drop positions outside the box: RMC, GGA and GLL
+ *                           fixes, and AIS position reports (types 1, 2, 3,
+ *                           4, 18, 19 and 27). Anything without a position
+ *                           passes.
+ *
+ * Rate stages always go last, so they count only what the other stages let
+ * through. Rates are measured on the clock the sentences are sent by, so
+ * "RMC:1" gives one RMC a second on the link whatever the replay speed. The
+ * limiter allows a quarter of a period of jitter so a 1 Hz source isn't
+ * thinned by a 1 Hz limit, without letting the long run rate go over.
+ *
+ * A pipeline keeps state (rates, AIS fragments), so each player needs its
+ * own. Only the player thread may call accept().
+ *
+ * @author tony
+ */
+public class SentencePipeline {
+
+    private final Stage[] stages;
+    private final Sentence current = new Sentence();
+
+    /**
+     * The sentence going through the pipeline, split into fields on demand.
+     */
+    static class Sentence {
+
+        byte[] b;
+        int length;
+        int address; // index of the $ or !, -1 if there isn't one
+        final NMEASentence parser = new NMEASentence();
+        private boolean parsed;
+
+        void set(byte[] b, int length) {
+            this.b = b;
+            this.length = length;
+            parsed = false;
+            int p = NMEASentence.addressStart(b, 0, length);
+            address = (p >= 0 && p + 6 <= length) ? p : -1;
+        }
+
+        /**
+         * @return talker ID packed into an int, -1 if there's no address
+         */
+        int talker() {
+            return address < 0 ? -1 : pack(b, address + 1, 2);
+        }
+
+        /**
+         * @return sentence type packed into an int, -1 if there's no address
+         */
+        int type() {
+            return address < 0 ? -1 : pack(b, address + 3, 3);
+        }
+
+        boolean isAis() {
+            return address >= 0 && b[address] == '!' && (type() == VDM || type() == VDO);
+        }
+
+        /**
+         * @return the parser, having parsed the sentence if nobody has yet
+         */
+        NMEASentence fields() {
+            if (!parsed) {
+                parser.parse(b, 0, length);
+                parsed = true;
+            }
+            return parser;
+        }
+    }
+
+    /**
+     * One step of the pipeline.
+     */
+    abstract static class Stage {
+
+        final String spec;
+        long rejected = 0;
+
+        Stage(String spec) {
+            this.spec = spec;
+        }
+
+        /**
+         * @param s - the sentence
+         * @param now - System.nanoTime() it would be sent at
+         * @return true to let it through
+         */
+        abstract boolean accept(Sentence s, long now);
+    }
+
+    static final int VDM = pack("VDM");
+    static final int VDO = pack("VDO");
+    private static final int RMC = pack("RMC");
+    private static final int GGA = pack("GGA");
+    private static final int GLL = pack("GLL");
+
+    static int pack(byte[] b, int start, int n) {
+        int v = 0;
+        for (int i = 0; i < n; i++) {
+            v = (v << 8) | (b[start + i] & 0xff);
+        }
+        return v;
+    }
+
+    static int pack(String s) {
+        int v = 0;
+        for (int i = 0; i < s.length(); i++) {
+            v = (v << 8) | (s.charAt(i) & 0xff);
+        }
+        return v;
+    }
+
+    /**
+     * Talker and type for a token from a spec, either of which may be -1 for
+     * "any".
+     */
+    private static int[] token(String t, String spec) {
+        t = t.trim().toUpperCase();
+        return switch (t.length()) {
+            case 2 -> new int[]{pack(t), -1};
+            case 3 -> new int[]{-1, pack(t)};
+            case 5 -> new int[]{pack(t.substring(0, 2)), pack(t.substring(2))};
+            default -> throw new IllegalArgumentException("Bad talker or type \"" + t + "\" in filter \"" + spec + "\"");
+        };
+    }
+
+    private static boolean matches(int[] tk, Sentence s) {
+        return (tk[0] < 0 || tk[0] == s.talker()) && (tk[1] < 0 || tk[1] == s.type());
+    }
+
+    /**
+     * include= and exclude=
+     */
+    static class TypeStage extends Stage {
+
+        private final boolean include;
+        private final int[][] tokens;
+
+        TypeStage(String spec, boolean include, String list) {
+            super(spec);
+            this.include = include;
+            String[] parts = list.split(",");
+            tokens = new int[parts.length][];
+            for (int i = 0; i < parts.length; i++) {
+                tokens[i] = token(parts[i], spec);
+            }
+        }
+
+        @Override
+        boolean accept(Sentence s, long now) {
+            if (s.address < 0) {
+                return !include;
+            }
+            for (int[] tk : tokens) {
+                if (matches(tk, s)) {
+                    return include;
+                }
+            }
+            return !include;
+        }
+    }
+
+    /**
+     * rate=, a GCRA (virtual scheduling) limiter for each token
+     */
+    static class RateStage extends Stage {
+
+        private final int[][] tokens;
+        private final long[] period;
+        private final long[] tat; // theoretical arrival time of the next one
+        private final boolean[] started;
+
+        RateStage(String spec, String list) {
+            super(spec);
+            String[] parts = list.split(",");
+            tokens = new int[parts.length][];
+            period = new long[parts.length];
+            tat = new long[parts.length];
+            started = new boolean[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                String[] tr = parts[i].split(":");
+                if (tr.length != 2) {
+                    throw new IllegalArgumentException("Rate \"" + parts[i] + "\" should be type:per-second in filter \"" + spec + "\"");
+                }
+                tokens[i] = token(tr[0], spec);
+                double hz = Double.parseDouble(tr[1]);
+                if (hz <= 0.0d) {
+                    throw new IllegalArgumentException("Rate must be positive in filter \"" + spec + "\"");
+                }
+                period[i] = (long) (1_000_000_000L / hz);
+            }
+        }
+
+        @Override
+        boolean accept(Sentence s, long now) {
+            if (s.address < 0) {
+                return true;
+            }
+            for (int i = 0; i < tokens.length; i++) {
+                if (matches(tokens[i], s)) {
+                    if (started[i] && now - (tat[i] - period[i] / 4) < 0) {
+                        return false;
+                    }
+                    tat[i] = (started[i] && tat[i] - now > 0 ? tat[i] : now) + period[i];
+                    started[i] = true;
+                    return true;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * mmsi=
+     */
+    static class MmsiStage extends Stage {
+
+        private final long[] mmsis;
+        // what happened to the first fragment, by sequential message ID, so
+        // the rest of a multi-sentence message goes the same way
+        private final boolean[] fragmentAccepted = new boolean[11];
+        private final AisDecoder.Bits bits = new AisDecoder.Bits();
+
+        MmsiStage(String spec, String list) {
+            super(spec);
+            String[] parts = list.split(",");
+            mmsis = new long[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                mmsis[i] = Long.parseLong(parts[i].trim());
+            }
+            Arrays.sort(mmsis);
+        }
+
+        @Override
+        boolean accept(Sentence s, long now) {
+            if (!s.isAis()) {
+                return true;
+            }
+            NMEASentence f = s.fields();
+            int fragment = f.intField(2);
+            int id = f.isEmpty(3) ? 10 : Math.floorMod(f.intField(3), 10);
+            if (fragment > 1) {
+                return fragmentAccepted[id];
+            }
+            bits.set(f.buffer(), f.fieldStart(5), f.fieldLength(5));
+            long mmsi = bits.get(8, 30);
+            boolean ok = mmsi >= 0 && Arrays.binarySearch(mmsis, mmsi) >= 0;
+            fragmentAccepted[id] = ok;
+            return ok;
+        }
+    }
+
+    /**
+     * area=
+     */
+    static class AreaStage extends Stage {
+
+        private final BoundingBox box = new BoundingBox();
+        private final AisDecoder ais = new AisDecoder();
+
+        AreaStage(String spec, String list) {
+            super(spec);
+            String[] parts = list.split(",");
+            if (parts.length != 4) {
+                throw new IllegalArgumentException("Area should be south,west,north,east in filter \"" + spec + "\"");
+            }
+            box.south = Double.parseDouble(parts[0].trim());
+            box.west = Double.parseDouble(parts[1].trim());
+            box.north = Double.parseDouble(parts[2].trim());
+            box.east = Double.parseDouble(parts[3].trim());
+        }
+
+        @Override
+        boolean accept(Sentence s, long now) {
+            if (s.address < 0) {
+                return true;
+            }
+            int type = s.type();
+            double lat, lon;
+            if (type == RMC || type == GGA || type == GLL) {
+                NMEASentence f = s.fields();
+                int latField = (type == RMC) ? 3 : (type == GGA) ? 2 : 1;
+                lat = f.coordinate(latField, latField + 1);
+                lon = f.coordinate(latField + 2, latField + 3);
+            } else if (s.isAis()) {
+                if (!ais.decode(s.fields()) || !ais.hasPosition()) {
+                    return true;
+                }
+                lat = ais.latitude();
+                lon = ais.longitude();
+            } else {
+                return true;
+            }
+            return Double.isNaN(lat) || Double.isNaN(lon) || box.contains(lat, lon);
+        }
+    }
+
+    private SentencePipeline(Stage[] stages) {
+        this.stages = stages;
+    }
+
+    /**
+     *
+     * @param specs - filter specs, see the class comment
+     * @return the pipeline, or null if there are no specs, so that no
+     * filtering costs nothing
+     * @throws IllegalArgumentException if a spec doesn't make sense
+     */
+    public static SentencePipeline compile(List<String> specs) {
+        List<Stage> stages = new ArrayList<>();
+        List<Stage> rates = new ArrayList<>();
+        for (String spec : specs) {
+            for (String one : spec.split(";")) {
+                one = one.trim();
+                if (one.isEmpty()) {
+                    continue;
+                }
+                int eq = one.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("Filter \"" + one + "\" should be stage=values");
+                }
+                String stage = one.substring(0, eq).trim().toLowerCase();
+                String values = one.substring(eq + 1);
+                try {
+                    switch (stage) {
+                        case "include" -> stages.add(new TypeStage(one, true, values));
+                        case "exclude" -> stages.add(new TypeStage(one, false, values));
+                        case "rate" -> rates.add(new RateStage(one, values));
+                        case "mmsi" -> stages.add(new MmsiStage(one, values));
+                        case "area" -> stages.add(new AreaStage(one, values));
+                        default -> throw new IllegalArgumentException("Unknown filter stage \"" + stage + "\"");
+                    }
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Bad number in filter \"" + one + "\"", ex);
+                }
+            }
+        }
+        stages.addAll(rates);
+        return stages.isEmpty() ? null : new SentencePipeline(stages.toArray(new Stage[0]));
+    }
+
+    /**
+     *
+     * @param sentence - the sentence, as read
+     * @param length - its length
+     * @param now - System.nanoTime() it would be sent at
+     * @return true if it should be sent
+     */
+    public boolean accept(byte[] sentence, int length, long now) {
+        current.set(sentence, length);
+        for (Stage stage : stages) {
+            if (!stage.accept(current, now)) {
+                stage.rejected++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return how many sentences each stage turned away, one line per stage
+     */
+    public String summary() {
+        StringBuilder s = new StringBuilder();
+        for (Stage stage : stages) {
+            s.append(String.format("%-40s %d rejected%n", stage.spec, stage.rejected));
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Reads NMEA sentences from a file without creating garbage.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SentenceReader pulls the file through a LogChannel into one direct
+ * ByteBuffer that is reused for the life of the reader, finds the line breaks
+ * in the buffer and copies each sentence into a reusable byte array. Nothing
+ * is allocated per sentence, unlike RandomAccessFile.readLine() which makes a
+ * StringBuilder and a String for every line and does a system call for every
+ * byte.
+ *
+ * Gzip compressed logs are read through a GzipLogChannel, and all offsets
+ * are then offsets into the uncompressed log.
+ *
+ * The sentence is handed back without its CR/LF. Blank lines are skipped and
+ * lines longer than MAX_SENTENCE are cut short.
+ *
+ * @author tony
+ */
+public class SentenceReader implements SentenceSource {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int MAX_SENTENCE = 4096;
+
+    private final LogChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] sentence = new byte[MAX_SENTENCE];
+    private int length = 0;
+    private long bufferOffset = 0; // file offset of buffer index 0
+    private long sentenceOffset = 0;
+
+    /**
+     *
+     * @param file - the NMEA log to read
+     * @throws IOException if the file can't be opened
+     */
+    public SentenceReader(File file) throws IOException {
+        channel = LogChannel.open(file);
+        buffer.limit(0);
+    }
+
+    /**
+     * @return the array holding the current sentence. Its contents change on
+     * the next call to next().
+     */
+    @Override
+    public byte[] sentence() {
+        return sentence;
+    }
+
+    /**
+     * @return the length of the current sentence
+     */
+    @Override
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return file offset of the start of the current sentence
+     */
+    @Override
+    public long sentenceOffset() {
+        return sentenceOffset;
+    }
+
+    /**
+     * @return file offset of the start of the next sentence
+     */
+    @Override
+    public long position() {
+        return bufferOffset + buffer.position();
+    }
+
+    /**
+     * @return the size of the file (uncompressed, see LogChannel.size())
+     * @throws IOException if the size can't be found
+     */
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     *
+     * @param offset - file offset to read from next. This should be the start
+     * of a sentence.
+     */
+    @Override
+    public void seek(long offset) {
+        bufferOffset = offset;
+        buffer.clear().limit(0);
+    }
+
+    /**
+     *
+     * @return the length of the next sentence, which is now in sentence(), or
+     * -1 at the end of the file
+     * @throws IOException if the file can't be read
+     */
+    @Override
+    public int next() throws IOException {
+        while (true) {
+            int start = buffer.position();
+            int limit = buffer.limit();
+            for (int i = start; i < limit; i++) {
+                if (buffer.get(i) == '\n') {
+                    buffer.position(i + 1);
+                    if (take(start, i)) {
+                        return length;
+                    }
+                    start = i + 1;
+                }
+            }
+            buffer.position(start);
+            if (!fill()) {
+                // whatever is left is a last line with no newline on the end
+                start = buffer.position();
+                limit = buffer.limit();
+                buffer.position(limit);
+                if (take(start, limit)) {
+                    return length;
+                }
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Copies buffer[start, end) into the sentence array, minus any CR.
+     *
+     * @return false if the line was blank
+     */
+    private boolean take(int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        if (end <= start) {
+            return false;
+        }
+        length = Math.min(end - start, MAX_SENTENCE);
+        buffer.get(start, sentence, 0, length);
+        sentenceOffset = bufferOffset + start;
+        return true;
+    }
+
+    /**
+     * Moves the unread part of the buffer to the front and reads more of the
+     * file in behind it.
+     *
+     * @return false at the end of the file
+     */
+    private boolean fill() throws IOException {
+        if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+            // a line that doesn't fit in the buffer, drop the front of it
+            buffer.position(buffer.limit() - MAX_SENTENCE);
+        }
+        bufferOffset += buffer.position();
+        buffer.compact();
+        int count = channel.read(buffer, bufferOffset + buffer.position());
+        buffer.flip();
+        return count > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Anything the player can read sentences from.
+ */
+package com.mattheys;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A log the player (and the GUI) can read one sentence at a time and seek
+ * around in. SentenceReader reads text logs, plain or gzipped, and
+ * BinaryLogReader reads logs that BinaryLogTool has converted to the binary
+ * format. open() works out which one a file needs. Several logs opened
+ * together are merged into one stream in time order by MergedSentenceSource.
+ *
+ * Offsets are byte offsets into the file (the uncompressed file for gzipped
+ * text), and position() after a sentence is always somewhere seek() can go
+ * back to.
+ *
+ * @author tony
+ */
+public interface SentenceSource extends Closeable {
+
+    /**
+     *
+     * @param file - a text or binary NMEA log
+     * @return a reader for it, positioned at the first sentence
+     * @throws IOException if the file can't be opened
+     */
+    static SentenceSource open(File file) throws IOException {
+        return BinaryLog.isBinary(file) ? new BinaryLogReader(file) : new SentenceReader(file);
+    }
+
+    /**
+     *
+     * @param files - one or more text or binary NMEA logs
+     * @return a reader for the one file, or one that merges them all by time
+     * @throws IOException if a file can't be opened
+     */
+    static SentenceSource open(List<File> files) throws IOException {
+        return (files.size() == 1) ? open(files.get(0)) : new MergedSentenceSource(files);
+    }
+
+    /**
+     *
+     * @return the length of the next sentence, which is now in sentence(), or
+     * -1 at the end of the file
+     * @throws IOException if the file can't be read
+     */
+    int next() throws IOException;
+
+    /**
+     * @return the array holding the current sentence, without CR/LF. Its
+     * contents change on the next call to next().
+     */
+    byte[] sentence();
+
+    /**
+     * @return the length of the current sentence
+     */
+    int length();
+
+    /**
+     * @return file offset of the start of the current sentence
+     */
+    long sentenceOffset();
+
+    /**
+     * @return file offset of the start of the next sentence
+     */
+    long position();
+
+    /**
+     * @return the largest offset there is, for working out how far through
+     * the file a position is, or -1 if that isn't known yet (see
+     * LogChannel.size())
+     * @throws IOException if the size can't be found
+     */
+    long size() throws IOException;
+
+    /**
+     *
+     * @param offset - file offset to read from next
+     * @throws IOException if the file can't be read
+     */
+    void seek(long offset) throws IOException;
+
+    /**
+     * @return true if the log comes with the time of each sentence already
+     * worked out, in which case time() is what to pace by
+     */
+    default boolean timed() {
+        return false;
+    }
+
+    /**
+     * @return log time of the current sentence in milliseconds, or -1 if it
+     * has none or the source doesn't know (see timed())
+     */
+    default long time() {
+        return -1;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Reads the preview for the slider in the background.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import javafx.application.Platform;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * SliderScrubber does the file reading for the slider so that dragging it
+ * never waits for the disk. Each position the slider is dragged to is a
+ * request; requests that come in while the worker is busy replace each other,
+ * so the worker only ever reads the latest one and a preview that is already
+ * out of date by the time it is ready is never shown.
+ *
+ * A preview is read with a single read of BLOCK bytes which is then split into
+ * lines in the buffer, and handed to the FX thread as one String so the text
+ * area is replaced in one go. A binary log (see BinaryLog) has no lines to
+ * split, so for those the preview is read record by record instead.
+ *
+ * When the slider is a time scale the request is for a time: the TimeIndex
+ * entry at or before it, up to a stride back, is where reading starts, and
+ * the worker reads forward from there to the first sentence at or after the
+ * time so the preview (and the player, once pointed at it) starts on the time
+ * asked for.
+ *
+ * @author tony
+ */
+public class SliderScrubber {
+
+    static final int BLOCK = 64 * 1024;
+
+    /**
+     * What the file looks like at the slider position.
+     */
+    public static class Preview {
+
+        long seq;
+        /** File offset of the first sentence in the preview */
+        public long offset;
+        /** The sentences, one per line */
+        public String text;
+        /** Last fix found in the preview, if any (timeOfDay is -1 if none) */
+        public final ReplayPosition.Fix fix = new ReplayPosition.Fix();
+    }
+
+    private static class Request {
+
+        final long seq;
+        final long offset;
+        final boolean onSentence;
+        final int lines;
+        final long entryTime; // log time at offset, if time is wanted
+        final long time; // log time to read forward to, -1 for none
+
+        Request(long seq, long offset, boolean onSentence, int lines) {
+            this(seq, offset, onSentence, lines, -1, -1);
+        }
+
+        Request(long seq, long offset, boolean onSentence, int lines, long entryTime, long time) {
+            this.seq = seq;
+            this.offset = offset;
+            this.onSentence = onSentence;
+            this.lines = lines;
+            this.entryTime = entryTime;
+            this.time = time;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final AtomicReference<Request> pending = new AtomicReference<>();
+    private final AtomicLong latest = new AtomicLong();
+    private final Consumer<Preview> onPreview;
+    private volatile LogChannel channel = null;
+    private volatile SentenceSource records = null; // instead of channel for binary logs
+    // only touched by the worker thread
+    private final ByteBuffer buffer = ByteBuffer.allocate(BLOCK);
+    private final NMEASentence parser = new NMEASentence();
+
+    private static final Logger logger = LogManager.getLogger(SliderScrubber.class);
+
+    /**
+     *
+     * @param onPreview - called on the FX thread with each preview that is
+     * still the latest one when it is ready
+     */
+    public SliderScrubber(Consumer<Preview> onPreview) {
+        this.onPreview = onPreview;
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "SliderScrubber");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     *
+     * @param f - the log the slider moves through
+     * @throws IOException if it can't be opened
+     */
+    public void setFile(File f) throws IOException {
+        setFiles(List.of(f));
+    }
+
+    /**
+     *
+     * @param files - the logs the slider moves through, merged by time if
+     * there is more than one
+     * @throws IOException if one can't be opened
+     */
+    public void setFiles(List<File> files) throws IOException {
+        LogChannel oldChannel = channel;
+        SentenceSource oldRecords = records;
+        if (files.size() > 1) {
+            records = new MergedSentenceSource(files);
+            channel = null;
+        } else if (BinaryLog.isBinary(files.get(0))) {
+            records = new BinaryLogReader(files.get(0));
+            channel = null;
+        } else {
+            channel = LogChannel.open(files.get(0));
+            records = null;
+        }
+        if (oldChannel != null) {
+            oldChannel.close();
+        }
+        if (oldRecords != null) {
+            oldRecords.close();
+        }
+    }
+
+    /**
+     *
+     * @param offset - where in the file the slider is
+     * @param onSentence - true if the offset is known to be the start of a
+     * sentence, false if we need to skip to the start of the next one
+     * @param lines - how many sentences to put in the preview
+     */
+    public void request(long offset, boolean onSentence, int lines) {
+        queue(new Request(latest.incrementAndGet(), offset, onSentence, lines));
+    }
+
+    /**
+     *
+     * @param entry - offset of the TimeIndex entry at or before the time
+     * @param entryTime - the index's log time for that entry
+     * @param time - log time the slider is at
+     * @param lines - how many sentences to put in the preview
+     *
+     * Like request(), but the preview starts at the first timestamped sentence
+     * at or after the time, read forward from the index entry.
+     */
+    public void request(long entry, long entryTime, long time, int lines) {
+        queue(new Request(latest.incrementAndGet(), entry, true, lines, entryTime, time));
+    }
+
+    private void queue(Request r) {
+        if (pending.getAndSet(r) == null) {
+            executor.execute(this::work);
+        }
+    }
+
+    /**
+     * Stops the worker thread.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        try {
+            LogChannel c = channel;
+            if (c != null) {
+                c.close();
+            }
+            SentenceSource s = records;
+            if (s != null) {
+                s.close();
+            }
+        } catch (IOException ex) {
+            logger.debug(ex);
+        }
+    }
+
+    private void work() {
+        Request r = pending.getAndSet(null);
+        LogChannel c = channel;
+        SentenceSource s = records;
+        if (r == null || (c == null && s == null)) {
+            return;
+        }
+        try {
+            if (r.time >= 0) {
+                long found = (s != null) ? forward(s, r) : forward(c, r);
+                r = new Request(r.seq, found, true, r.lines);
+            }
+            Preview p = (s != null) ? read(s, r) : read(c, r);
+            if (p.seq != latest.get()) {
+                return; // the slider has moved on already
+            }
+            Platform.runLater(() -> {
+                if (p.seq == latest.get()) {
+                    onPreview.accept(p);
+                }
+            });
+        } catch (IOException ex) {
+            logger.debug("Preview at {} failed: {}", r.offset, ex.toString());
+        }
+    }
+
+    /**
+     * @return offset of the first line from r.offset on whose time is at or
+     * after r.time, following the clock across midnight as TimeIndex does
+     */
+    private long forward(LogChannel c, Request r) throws IOException {
+        long position = r.offset; // start of the first line in the buffer
+        long last = r.entryTime;
+        while (r.seq == latest.get()) {
+            buffer.clear();
+            boolean end = false;
+            while (buffer.hasRemaining()) {
+                if (c.read(buffer, position + buffer.position()) < 0) {
+                    end = true;
+                    break;
+                }
+            }
+            byte[] b = buffer.array();
+            int limit = buffer.position();
+            int lineStart = 0;
+            for (int i = 0; i < limit; i++) {
+                if (b[i] == '\n') {
+                    if (parser.parse(b, lineStart, i)) {
+                        int tod = parser.sentenceTime();
+                        if (tod >= 0) {
+                            long t = Math.max(TimeIndex.unwrap(last, tod), last);
+                            if (t >= r.time) {
+                                return position + lineStart;
+                            }
+                            last = t;
+                        }
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            if (end || lineStart == 0) {
+                return position + lineStart; // end of the file, or no lines at all
+            }
+            position += lineStart;
+        }
+        return r.offset; // out of date anyway
+    }
+
+    /**
+     * Same as forward(LogChannel, Request), record by record.
+     */
+    private long forward(SentenceSource s, Request r) throws IOException {
+        s.seek(r.offset);
+        long last = r.entryTime;
+        int n;
+        while ((n = s.next()) >= 0 && r.seq == latest.get()) {
+            if (parser.parse(s.sentence(), 0, n)) {
+                int tod = parser.sentenceTime();
+                if (tod >= 0) {
+                    long t = Math.max(TimeIndex.unwrap(last, tod), last);
+                    if (t >= r.time) {
+                        return s.sentenceOffset();
+                    }
+                    last = t;
+                }
+            }
+        }
+        return s.position();
+    }
+
+    private Preview read(LogChannel c, Request r) throws IOException {
+        buffer.clear();
+        long position = r.offset;
+        while (buffer.hasRemaining()) {
+            int n = c.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+        byte[] b = buffer.array();
+        int limit = buffer.position();
+        int i = 0;
+        if (!r.onSentence) {
+            while (i < limit && b[i] != '\n') {
+                i++;
+            }
+            i++;
+        }
+        Preview p = new Preview();
+        p.seq = r.seq;
+        p.offset = r.offset + Math.min(i, limit);
+        StringBuilder text = new StringBuilder(Math.max(0, Math.min(limit - i, r.lines * 82)) + 16);
+        for (int line = 0; line < r.lines && i < limit; line++) {
+            int start = i;
+            while (i < limit && b[i] != '\n') {
+                i++;
+            }
+            int end = i;
+            if (end > start && b[end - 1] == '\r') {
+                end--;
+            }
+            i++;
+            for (int k = start; k < end; k++) {
+                text.append((char) (b[k] & 0xff));
+            }
+            text.append("\r\n");
+            int a = NMEASentence.addressStart(b, start, end); // past any tag block
+            if (a >= 0 && b[a] == '$' && parser.parse(b, start, end)) { // GPS Sentence
+                p.fix.extract(parser);
+            }
+        }
+        p.text = text.toString();
+        return p;
+    }
+
+    private Preview read(SentenceSource s, Request r) throws IOException {
+        ReplayEvents.Seek event = null;
+        if (ReplayEvents.seekEnabled()) {
+            event = new ReplayEvents.Seek();
+            event.from = s.position();
+            event.begin();
+        }
+        s.seek(r.offset); // lands on the next record, so onSentence doesn't matter
+        if (event != null && event.shouldCommit()) {
+            event.reader = "scrubber";
+            event.to = r.offset;
+            event.landed = s.position();
+            event.commit();
+        }
+        Preview p = new Preview();
+        p.seq = r.seq;
+        p.offset = s.position();
+        StringBuilder text = new StringBuilder(r.lines * 82);
+        int length;
+        for (int line = 0; line < r.lines && (length = s.next()) >= 0; line++) {
+            byte[] b = s.sentence();
+            for (int k = 0; k < length; k++) {
+                text.append((char) (b[k] & 0xff));
+            }
+            text.append("\r\n");
+            int a = NMEASentence.addressStart(b, 0, length); // past any tag block
+            if (a >= 0 && b[a] == '$' && parser.parse(b, 0, length)) { // GPS Sentence
+                p.fix.extract(parser);
+            }
+        }
+        p.text = text.toString();
+        return p;
+    }
+}
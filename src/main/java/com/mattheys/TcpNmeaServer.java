@@ -0,0 +1,314 @@
+/*
+ * Serves the replay to TCP clients.
+ */
+package com.mattheys;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * TcpNmeaServer is an NMEA server of the kind chart plotters and OpenCPN
+ * expect: connect to the port and sentences arrive, one per line. It is a
+ * ReplayListener, so it gets every sentence a player sends, and several
+ * players can feed one server to make a multiplexed stream.
+ *
+ * Each sentence is copied once, into a RING_SIZE byte ring buffer, and every
+ * client is just a position in the ring. One thread with one Selector writes
+ * each client's share straight out of the ring, so 50 clients cost 50 sockets
+ * and not 50 threads or 50 copies of each sentence.
+ *
+ * A client may fall at most maxBacklog bytes behind. A client further behind
+ * than that is either disconnected or, by default, skipped forward to the
+ * newest sentence, losing what it hadn't read yet. Either way the replay never
+ * waits for anybody. Anything a client sends us is read and thrown away.
+ *
+ * @author tony
+ */
+public class TcpNmeaServer implements ReplayListener, Runnable, Closeable {
+
+    static final int RING_SIZE = 4 * 1024 * 1024;
+    static final int DEFAULT_BACKLOG = 256 * 1024;
+    static final long SELECT_TIMEOUT = 1000L;
+
+    private final ByteBuffer ring = ByteBuffer.allocateDirect(RING_SIZE);
+    private volatile long head = 0; // bytes ever published, the ring holds the last RING_SIZE of them
+    private final int maxBacklog;
+    private final boolean dropSlow;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final AtomicBoolean wakeupNeeded = new AtomicBoolean();
+    private final List<Client> clients = new ArrayList<>(); // selector thread only
+    private final ByteBuffer discard = ByteBuffer.allocateDirect(4096);
+    private final AtomicLong skippedBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int clientCount = 0;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private static final Logger logger = LogManager.getLogger(TcpNmeaServer.class);
+
+    /**
+     * One connected client.
+     */
+    private class Client {
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer view = ring.duplicate();
+        long position;
+
+        Client(SocketChannel channel, SelectionKey key, long position) {
+            this.channel = channel;
+            this.key = key;
+            this.position = position;
+        }
+    }
+
+    /**
+     *
+     * @param port - TCP port to listen on
+     * @param maxBacklog - how many bytes a client may fall behind, at most
+     * half of RING_SIZE
+     * @param dropSlow - true to disconnect a client that falls further behind,
+     * false to skip it forward
+     * @throws IOException if the port can't be listened on
+     */
+    public TcpNmeaServer(int port, int maxBacklog, boolean dropSlow) throws IOException {
+        if (maxBacklog <= 0 || maxBacklog > RING_SIZE / 2) {
+            throw new IllegalArgumentException("Backlog must be between 1 and " + RING_SIZE / 2 + " bytes");
+        }
+        this.maxBacklog = maxBacklog;
+        this.dropSlow = dropSlow;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        logger.info("NMEA TCP server listening on port {}", server.socket().getLocalPort());
+    }
+
+    /**
+     * @return the port we are listening on, handy if we were given port 0
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Starts the selector thread.
+     */
+    public void start() {
+        thread = new Thread(this, "TcpNmeaServer-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return number of clients connected right now
+     */
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    /**
+     * @return bytes that slow clients were skipped past
+     */
+    public long getSkippedBytes() {
+        return skippedBytes.get();
+    }
+
+    /**
+     * @return number of clients disconnected for being too slow
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void sentenceSent(byte[] sentence, int length, long offset) {
+        publish(sentence, length);
+    }
+
+    @Override
+    public void replayStopped(boolean endOfFile) {
+        // the clients stay connected for the next replay
+    }
+
+    /**
+     *
+     * @param sentence - the sentence, without CR/LF
+     * @param length - its length
+     *
+     * Puts the sentence, with CR/LF, in the ring for every client to pick up.
+     * Never blocks on the network. Synchronized only so that several players
+     * can share a server.
+     */
+    public synchronized void publish(byte[] sentence, int length) {
+        long h = head;
+        int index = (int) (h % RING_SIZE);
+        int first = Math.min(length, RING_SIZE - index);
+        ring.put(index, sentence, 0, first);
+        if (first < length) {
+            ring.put(0, sentence, first, length - first);
+        }
+        ring.put((int) ((h + length) % RING_SIZE), (byte) '\r');
+        ring.put((int) ((h + length + 1) % RING_SIZE), (byte) '\n');
+        head = h + length + 2; // volatile write publishes the bytes
+        if (wakeupNeeded.getAndSet(false)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        long flushed = 0;
+        while (running) {
+            try {
+                wakeupNeeded.set(true);
+                if (head != flushed) {
+                    selector.selectNow();
+                } else {
+                    selector.select(SELECT_TIMEOUT);
+                }
+                wakeupNeeded.set(false);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read((Client) key.attachment());
+                    }
+                }
+                flushed = head;
+                for (int i = clients.size() - 1; i >= 0; i--) {
+                    flush(clients.get(i), flushed);
+                }
+            } catch (IOException ex) {
+                logger.error("NMEA TCP server: {}", ex.toString());
+            }
+        }
+        for (Client c : new ArrayList<>(clients)) {
+            disconnect(c, "server closing");
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            Client c = new Client(channel, key, head);
+            key.attach(c);
+            clients.add(c);
+            clientCount = clients.size();
+            logger.info("NMEA TCP client {} connected, {} now", channel.getRemoteAddress(), clients.size());
+        }
+    }
+
+    private void read(Client c) {
+        try {
+            int n;
+            do {
+                discard.clear();
+                n = c.channel.read(discard);
+            } while (n > 0);
+            if (n < 0) {
+                disconnect(c, "closed by client");
+            }
+        } catch (IOException ex) {
+            disconnect(c, ex.toString());
+        }
+    }
+
+    /**
+     * Writes as much of what the client hasn't had yet as the socket will take.
+     */
+    private void flush(Client c, long h) {
+        long backlog = h - c.position;
+        if (backlog > maxBacklog) {
+            if (dropSlow) {
+                dropped.incrementAndGet();
+                disconnect(c, "too slow, " + backlog + " bytes behind");
+                return;
+            }
+            skippedBytes.addAndGet(backlog);
+            logger.debug("NMEA TCP client {} skipped {} bytes", c.channel.socket().getRemoteSocketAddress(), backlog);
+            c.position = h;
+        }
+        long start = c.position;
+        try {
+            while (c.position < h) {
+                int index = (int) (c.position % RING_SIZE);
+                int n = (int) Math.min(h - c.position, RING_SIZE - index);
+                c.view.limit(index + n).position(index);
+                int written = c.channel.write(c.view);
+                c.position += written;
+                if (written < n) {
+                    break; // socket buffer full, wait for OP_WRITE
+                }
+            }
+        } catch (IOException ex) {
+            disconnect(c, ex.toString());
+            return;
+        }
+        if (head - start > RING_SIZE) {
+            // the players lapped the ring while we were writing, so some of
+            // what went out may have been overwritten under us
+            disconnect(c, "overrun");
+            return;
+        }
+        int ops = (c.position < h) ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (c.key.interestOps() != ops) {
+            c.key.interestOps(ops);
+        }
+    }
+
+    private void disconnect(Client c, String why) {
+        logger.info("NMEA TCP client {} disconnected: {}", c.channel.socket().getRemoteSocketAddress(), why);
+        clients.remove(c);
+        clientCount = clients.size();
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException ex) {
+            logger.debug(ex);
+        }
+    }
+
+    /**
+     * Disconnects everybody and stops listening.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join(SELECT_TIMEOUT);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        server.close();
+        selector.close();
+    }
+}
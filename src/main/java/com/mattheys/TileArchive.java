@@ -0,0 +1,315 @@
+/*
+ * Packed single-file tile store for offline basemaps.
+ */
+package com.mattheys;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * TileArchive keeps any number of map tiles in one file instead of one file
+ * per tile. The file is a header followed by records appended one after the
+ * other:
+ *
+ * header: "NMEATILE" then an int version number
+ * record: long key, int length, then length bytes of PNG
+ *
+ * where the key packs the zoom, x and y of the tile (see key()). A tile that
+ * is added twice is simply appended again and the later copy wins.
+ *
+ * When the archive is opened the record headers are read once to build an
+ * open addressing hash table of key to file offset held in two primitive
+ * arrays. The file itself is memory mapped, so looking a tile up is one probe
+ * of the table and one copy out of the mapping. Files over 1GB are mapped in
+ * overlapping segments so that no tile straddles two of them.
+ *
+ * @author tony
+ */
+public class TileArchive implements Closeable {
+
+    static final byte[] MAGIC = {'N', 'M', 'E', 'A', 'T', 'I', 'L', 'E'};
+    static final int VERSION = 1;
+    static final int HEADER = MAGIC.length + 4;
+    static final int RECORD_HEADER = 8 + 4;
+    static final int MAX_TILE = 1024 * 1024;
+    static final long SEGMENT = 1L << 30;
+    private static final long EMPTY = -1L;
+
+    private final File file;
+    private final FileChannel channel;
+    private long[] keys;
+    private long[] offsets;
+    private int count = 0;
+    private long end = HEADER; // where the next record goes
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private long mapped = 0;
+
+    private static final Logger logger = LogManager.getLogger(TileArchive.class);
+
+    /**
+     *
+     * @param file - the archive, which is created if it doesn't exist
+     * @param writable - true if tiles are going to be added
+     * @throws IOException if the file can't be opened or isn't a tile archive
+     */
+    public TileArchive(File file, boolean writable) throws IOException {
+        this.file = file;
+        channel = writable
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        keys = new long[1024];
+        offsets = new long[1024];
+        Arrays.fill(keys, EMPTY);
+        if (channel.size() == 0 && writable) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.put(MAGIC).putInt(VERSION).flip();
+            channel.write(header, 0);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        channel.read(header, 0);
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        boolean ok = header.remaining() == HEADER;
+        if (ok) {
+            header.get(magic);
+            ok = Arrays.equals(magic, MAGIC) && header.getInt() == VERSION;
+        }
+        if (!ok) {
+            channel.close();
+            throw new IOException(file + " is not a tile archive");
+        }
+        remap();
+        scan();
+    }
+
+    /**
+     *
+     * @param z - zoom level
+     * @param x - tile x
+     * @param y - tile y
+     * @return the key for the tile
+     */
+    static long key(int z, int x, int y) {
+        return ((long) z << 48) | ((long) x << 24) | (long) y;
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     * @return the key for the tile, or -1 if the name doesn't make sense
+     */
+    static long key(String tile) {
+        String[] parts = tile.replace(".png", "").split("[/.]");
+        if (parts.length != 3) {
+            return EMPTY;
+        }
+        try {
+            return key(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        } catch (NumberFormatException ex) {
+            return EMPTY;
+        }
+    }
+
+    /**
+     *
+     * @param key - tile key
+     * @return the tile name, "z/x/y.png"
+     */
+    static String name(long key) {
+        return (key >>> 48) + "/" + ((key >>> 24) & 0xffffff) + "/" + (key & 0xffffff) + ".png";
+    }
+
+    private static int hash(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Reads the record headers from one end of the file to the other and
+     * indexes them. A record cut short at the end (a crash halfway through an
+     * append) is ignored and will be written over.
+     */
+    private void scan() throws IOException {
+        long size = channel.size();
+        long p = HEADER;
+        while (p + RECORD_HEADER <= size) {
+            long key = readLong(p);
+            int length = readInt(p + 8);
+            if (length < 0 || length > MAX_TILE || p + RECORD_HEADER + length > size) {
+                logger.error("Tile archive {} is damaged at offset {}, ignoring the rest", file, p);
+                break;
+            }
+            index(key, p);
+            p += RECORD_HEADER + length;
+        }
+        end = p;
+        logger.debug("Tile archive {} holds {} tiles in {} bytes", file, count, end);
+    }
+
+    private void index(long key, long offset) {
+        if ((count + 1) * 2 > keys.length) {
+            long[] oldKeys = keys;
+            long[] oldOffsets = offsets;
+            keys = new long[oldKeys.length * 2];
+            offsets = new long[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            count = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    index(oldKeys[i], oldOffsets[i]);
+                }
+            }
+        }
+        int mask = keys.length - 1;
+        int i = hash(key, mask);
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY) {
+            keys[i] = key;
+            count++;
+        }
+        offsets[i] = offset;
+    }
+
+    /**
+     * @return file offset of the tile's record, or -1 if we don't have it
+     */
+    private long find(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key, mask);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return offsets[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Maps the file again, after it has grown. Segment i covers SEGMENT bytes
+     * from i * SEGMENT plus MAX_TILE + RECORD_HEADER bytes more, so any record
+     * that starts in a segment ends in it too.
+     */
+    private void remap() throws IOException {
+        long size = channel.size();
+        int n = (int) ((size + SEGMENT - 1) / SEGMENT);
+        MappedByteBuffer[] m = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long base = i * SEGMENT;
+            long length = Math.min(size - base, SEGMENT + MAX_TILE + RECORD_HEADER);
+            m[i] = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+        }
+        segments = m;
+        mapped = size;
+    }
+
+    private ByteBuffer segmentFor(long p) {
+        return segments[(int) (p / SEGMENT)];
+    }
+
+    private long readLong(long p) {
+        return segmentFor(p).getLong((int) (p % SEGMENT));
+    }
+
+    private int readInt(long p) {
+        return segmentFor(p).getInt((int) (p % SEGMENT));
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     * @return the PNG bytes, or null if the archive doesn't have the tile
+     */
+    public byte[] get(String tile) {
+        long key = key(tile);
+        return (key == EMPTY) ? null : get(key);
+    }
+
+    /**
+     *
+     * @param key - tile key
+     * @return the PNG bytes, or null if the archive doesn't have the tile
+     */
+    public synchronized byte[] get(long key) {
+        long p = find(key);
+        if (p < 0) {
+            return null;
+        }
+        try {
+            if (p + RECORD_HEADER > mapped) {
+                remap();
+            }
+            int length = readInt(p + 8);
+            if (p + RECORD_HEADER + length > mapped) {
+                remap();
+            }
+            byte[] data = new byte[length];
+            segmentFor(p).get((int) (p % SEGMENT) + RECORD_HEADER, data, 0, length);
+            return data;
+        } catch (IOException ex) {
+            logger.error("Can't read tile {} from {}: {}", name(key), file, ex.toString());
+            return null;
+        }
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     * @param data - the PNG bytes
+     * @throws IOException if the archive can't be written
+     */
+    public synchronized void put(String tile, byte[] data) throws IOException {
+        long key = key(tile);
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Bad tile name " + tile);
+        }
+        if (data.length > MAX_TILE) {
+            throw new IOException("Tile " + tile + " is too big for the archive");
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + data.length);
+        record.putLong(key).putInt(data.length).put(data).flip();
+        long p = end;
+        while (record.hasRemaining()) {
+            p += channel.write(record, p);
+        }
+        index(key, end);
+        end = p;
+    }
+
+    /**
+     *
+     * @param visitor - called with the name of every tile in the archive
+     */
+    public synchronized void forEach(Consumer<String> visitor) {
+        for (long key : keys) {
+            if (key != EMPTY) {
+                visitor.accept(name(key));
+            }
+        }
+    }
+
+    /**
+     * @return number of distinct tiles in the archive
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segments = new MappedByteBuffer[0];
+        mapped = 0;
+        channel.close();
+    }
+}
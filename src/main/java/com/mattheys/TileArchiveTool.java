@@ -0,0 +1,188 @@
+/*
+ * Command line tool for filling and emptying tile archives.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Bulk operations on a TileArchive, mainly so a boat that will be out of
+ * reach of the tile server can have its cruising area loaded beforehand.
+ *
+ * import archive dir   add every tile under dir. Tiles can be in a z/x/y.png
+ *                      tree, or flat files named z.x.y.png (the disk cache)
+ *                      or .cache.z.x.y.png (older versions).
+ * export archive dir   write every tile in the archive out as a z/x/y.png tree
+ * seed archive south west north east minzoom maxzoom
+ *                      download every tile covering the area at each zoom
+ *                      level that the archive doesn't already have
+ * stats archive        say how many tiles the archive holds
+ *
+ * The archive the GUI reads is nmea.tile.archive, by default tiles.pack in
+ * the .nmea-replayer directory in the user's home directory.
+ *
+ * @author tony
+ */
+public class TileArchiveTool {
+
+    static final int SEED_WARNING = 20000; // tiles, be kind to the tile server
+
+    static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: TileArchiveTool import|export archive dir");
+        System.err.println("       TileArchiveTool seed archive south west north east minzoom maxzoom");
+        System.err.println("       TileArchiveTool stats archive");
+        System.exit(2);
+    }
+
+    /**
+     * @param args the command line arguments
+     * @throws IOException if the archive or the tiles can't be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            usage("Not enough arguments");
+        }
+        File archiveFile = new File(args[1]);
+        switch (args[0]) {
+            case "import" -> {
+                if (args.length != 3) {
+                    usage("import needs an archive and a directory");
+                }
+                try (TileArchive archive = new TileArchive(archiveFile, true)) {
+                    System.out.println("Imported " + importTiles(archive, new File(args[2]).toPath()) + " tiles, archive now holds " + archive.size());
+                }
+            }
+            case "export" -> {
+                if (args.length != 3) {
+                    usage("export needs an archive and a directory");
+                }
+                try (TileArchive archive = new TileArchive(archiveFile, false)) {
+                    System.out.println("Exported " + exportTiles(archive, new File(args[2]).toPath()) + " tiles");
+                }
+            }
+            case "seed" -> {
+                if (args.length != 8) {
+                    usage("seed needs an archive, an area and a range of zoom levels");
+                }
+                BoundingBox bb = new BoundingBox();
+                int minZoom = 0, maxZoom = 0;
+                try {
+                    bb.south = Double.parseDouble(args[2]);
+                    bb.west = Double.parseDouble(args[3]);
+                    bb.north = Double.parseDouble(args[4]);
+                    bb.east = Double.parseDouble(args[5]);
+                    minZoom = Integer.parseInt(args[6]);
+                    maxZoom = Integer.parseInt(args[7]);
+                } catch (NumberFormatException ex) {
+                    usage("Bad number: " + ex.getMessage());
+                }
+                try (TileArchive archive = new TileArchive(archiveFile, true)) {
+                    System.out.println("Seeded " + seed(archive, bb, minZoom, maxZoom) + " tiles, archive now holds " + archive.size());
+                }
+            }
+            case "stats" -> {
+                try (TileArchive archive = new TileArchive(archiveFile, false)) {
+                    System.out.println(archiveFile + ": " + archive.size() + " tiles, " + archiveFile.length() + " bytes");
+                }
+            }
+            default -> usage("Unknown command " + args[0]);
+        }
+    }
+
+    /**
+     * @return number of tiles imported
+     */
+    static int importTiles(TileArchive archive, Path dir) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            files = walk.filter(p -> p.toString().endsWith(".png")).collect(Collectors.toList());
+        }
+        int imported = 0;
+        for (Path p : files) {
+            Path relative = dir.relativize(p);
+            String name;
+            if (relative.getNameCount() == 3) {
+                name = relative.toString().replace(File.separatorChar, '/');
+            } else {
+                name = p.getFileName().toString();
+                if (name.startsWith(".cache.")) {
+                    name = name.substring(".cache.".length());
+                }
+            }
+            if (TileArchive.key(name) < 0) {
+                System.err.println("Skipping " + p + ", not a tile name");
+                continue;
+            }
+            archive.put(name, Files.readAllBytes(p));
+            imported++;
+        }
+        return imported;
+    }
+
+    /**
+     * @return number of tiles exported
+     */
+    static int exportTiles(TileArchive archive, Path dir) throws IOException {
+        int[] exported = {0};
+        IOException[] failure = {null};
+        archive.forEach(name -> {
+            if (failure[0] != null) {
+                return;
+            }
+            try {
+                Path p = dir.resolve(name);
+                Files.createDirectories(p.getParent());
+                Files.write(p, archive.get(name));
+                exported[0]++;
+            } catch (IOException ex) {
+                failure[0] = ex;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return exported[0];
+    }
+
+    /**
+     * @return number of tiles downloaded
+     */
+    static int seed(TileArchive archive, BoundingBox bb, int minZoom, int maxZoom) throws IOException {
+        long total = 0;
+        for (int z = minZoom; z <= maxZoom; z++) {
+            total += (long) (NMEALogReplayerController.tileX(bb.east, z) - NMEALogReplayerController.tileX(bb.west, z) + 1)
+                    * (NMEALogReplayerController.tileY(bb.south, z) - NMEALogReplayerController.tileY(bb.north, z) + 1);
+        }
+        System.out.println("Area covers " + total + " tiles");
+        if (total > SEED_WARNING) {
+            System.err.println("That is a lot of tiles. Please check the usage policy of the tile server.");
+        }
+        TileLoader loader = new TileLoader();
+        int seeded = 0;
+        for (int z = minZoom; z <= maxZoom; z++) {
+            for (int x = NMEALogReplayerController.tileX(bb.west, z); x <= NMEALogReplayerController.tileX(bb.east, z); x++) {
+                for (int y = NMEALogReplayerController.tileY(bb.north, z); y <= NMEALogReplayerController.tileY(bb.south, z); y++) {
+                    String name = z + "/" + x + "/" + y + ".png";
+                    if (archive.get(name) != null) {
+                        continue;
+                    }
+                    try {
+                        archive.put(name, loader.download(name));
+                        seeded++;
+                    } catch (IOException ex) {
+                        System.err.println("Can't download " + name + ": " + ex.getMessage());
+                    }
+                }
+            }
+        }
+        loader.shutdown();
+        return seeded;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * In-memory cache of decoded map tiles.
+ */
+package com.mattheys;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javafx.scene.image.Image;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * TileCache keeps decoded tiles in memory so that zooming back out, or
+ * scrubbing back to somewhere we have just been, paints the map straight away
+ * without touching the disk or decoding a PNG again.
+ *
+ * The cache is bounded by the memory the images take up (four bytes a pixel)
+ * rather than by the number of tiles, and throws out the least recently used
+ * tiles first. The limit is nmea.tile.memory.mb megabytes, 64 by default,
+ * which is room for about 250 standard 256x256 tiles.
+ *
+ * All methods are synchronized because the FX thread and the TileLoader
+ * threads share the cache.
+ *
+ * @author tony
+ */
+public class TileCache {
+
+    static final long DEFAULT_MB = 64;
+    static final long TILE_BYTES = 256L * 256L * 4L;
+
+    private final long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private final LinkedHashMap<String, Image> images = new LinkedHashMap<>(256, 0.75f, true);
+
+    private static final Logger logger = LogManager.getLogger(TileCache.class);
+
+    public TileCache() {
+        this(Long.getLong("nmea.tile.memory.mb", DEFAULT_MB) * 1024L * 1024L);
+    }
+
+    /**
+     *
+     * @param maxBytes - how much image memory the cache may hold on to
+     */
+    public TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     *
+     * @param image - a decoded tile
+     * @return roughly how much memory the image takes up
+     */
+    static long sizeOf(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4L;
+    }
+
+    /**
+     * @return how many standard 256x256 tiles the cache can hold
+     */
+    public int capacity() {
+        return (int) Math.min(Integer.MAX_VALUE, maxBytes / TILE_BYTES);
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     * @return the tile, or null if it isn't in the cache
+     */
+    public synchronized Image get(String tile) {
+        Image image = images.get(tile);
+        if (image == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return image;
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     * @return true if the tile is in the cache. Unlike get() this doesn't
+     * count as a hit or a miss or as a use of the tile.
+     */
+    public synchronized boolean contains(String tile) {
+        return images.containsKey(tile);
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     * @param image - the decoded tile
+     *
+     * Adds the tile and throws out the least recently used tiles until we are
+     * back under the limit.
+     */
+    public synchronized void put(String tile, Image image) {
+        Image old = images.put(tile, image);
+        if (old != null) {
+            bytes -= sizeOf(old);
+        }
+        bytes += sizeOf(image);
+        Iterator<Map.Entry<String, Image>> it = images.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Image> eldest = it.next();
+            if (eldest.getValue() == image) {
+                continue; // never evict what we just added
+            }
+            bytes -= sizeOf(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return memory taken up by the cached images
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "memory tiles=" + images.size() + " bytes=" + bytes + " hits=" + hits + " misses=" + misses;
+    }
+}
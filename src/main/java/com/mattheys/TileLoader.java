@@ -0,0 +1,283 @@
+/*
+ * Fetches map tiles in the background.
+ */
+package com.mattheys;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * TileLoader fetches and decodes map tiles on a small pool of background
+ * threads so the FX thread never waits for the network. Each tile is handed
+ * back on the FX thread as soon as it is ready, so the map fills in tile by
+ * tile instead of freezing until all nine have arrived.
+ *
+ * Every call to cancelAll() starts a new generation. Tiles that were asked for
+ * in an earlier generation are dropped, whether they are still in the queue,
+ * on the wire or already decoded, so a burst of zoom clicks only ever paints
+ * the tiles for the last one.
+ *
+ * Tiles are looked for in the TileCache (decoded, in memory) first, then in
+ * the TileArchive if there is one, then in the DiskTileCache, and only then
+ * fetched from the tile server. The archive is nmea.tile.archive, by default
+ * tiles.pack in the .nmea-replayer directory in the user's home directory,
+ * and is only read, never added to; TileArchiveTool fills it. A tile that
+ * is already in memory is handed over straight away without going near the
+ * background threads.
+ *
+ * Every tile asked for is a TileFetch event for Flight Recorder (see
+ * ReplayEvents) saying which of those it came from and how long fetching
+ * and decoding took.
+ *
+ * The tile server can be changed with the nmea.tile.url system property (for
+ * example -Dnmea.tile.url=http://localhost:8000/) so the loader can be tried
+ * against a local stand-in server.
+ *
+ * @author tony
+ */
+public class TileLoader {
+
+    static final int THREADS = 4;
+    static final int TIMEOUT = 10000; // connect and read timeout in milliseconds
+    static final String DEFAULT_URL = "https://a.tile-cyclosm.openstreetmap.fr/cyclosm/";
+
+    private final String baseUrl;
+    private final ExecutorService executor;
+    private final AtomicInteger generation = new AtomicInteger();
+    private final List<Future<?>> pending = new ArrayList<>();
+    private final TileCache memoryCache = new TileCache();
+    private final DiskTileCache diskCache = new DiskTileCache();
+    private final TileArchive archive;
+
+    private static final Logger logger = LogManager.getLogger(TileLoader.class);
+
+    public TileLoader() {
+        this(System.getProperty("nmea.tile.url", DEFAULT_URL));
+    }
+
+    /**
+     *
+     * @param baseUrl - tile server URL that "z/x/y.png" is appended to
+     */
+    public TileLoader(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "TileLoader-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        archive = openArchive();
+    }
+
+    /**
+     * @return the tile archive, or null if there isn't one or it can't be read
+     */
+    static TileArchive openArchive() {
+        File f = new File(System.getProperty("nmea.tile.archive",
+                System.getProperty("user.home") + File.separator + ".nmea-replayer" + File.separator + "tiles.pack"));
+        if (!f.isFile()) {
+            return null;
+        }
+        try {
+            TileArchive a = new TileArchive(f, false);
+            logger.info("Using tile archive {} with {} tiles", f, a.size());
+            return a;
+        } catch (IOException ex) {
+            logger.error("Can't open tile archive {}: {}", f, ex.toString());
+            return null;
+        }
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     * @param onLoaded - called on the FX thread with the tile image, unless the
+     * request has been cancelled by then or the tile couldn't be had
+     *
+     * Queues the tile to be fetched. Must be called on the FX thread.
+     */
+    public void load(String tile, Consumer<Image> onLoaded) {
+        Image cached = memoryCache.get(tile);
+        if (cached != null) {
+            if (ReplayEvents.tileEnabled()) {
+                ReplayEvents.TileFetch event = new ReplayEvents.TileFetch();
+                event.tile = tile;
+                event.source = "memory";
+                event.ok = true;
+                event.commit();
+            }
+            onLoaded.accept(cached);
+            return;
+        }
+        final int gen = generation.get();
+        pending.add(executor.submit(() -> {
+            if (gen != generation.get()) {
+                return;
+            }
+            Image image = fetch(tile);
+            if (image == null || gen != generation.get()) {
+                return;
+            }
+            Platform.runLater(() -> {
+                if (gen == generation.get()) {
+                    onLoaded.accept(image);
+                }
+            });
+        }));
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     *
+     * Makes sure the tile is in the caches, fetching it if need be, without
+     * showing it anywhere. Runs on the calling thread; this is for the
+     * TilePrefetcher.
+     */
+    public void warm(String tile) {
+        if (!memoryCache.contains(tile)) {
+            fetch(tile);
+        }
+    }
+
+    /**
+     * @return how many tiles the in-memory cache can hold
+     */
+    public int memoryCapacity() {
+        return memoryCache.capacity();
+    }
+
+    /**
+     * Forget about every tile asked for so far. Must be called on the FX
+     * thread.
+     */
+    public void cancelAll() {
+        generation.incrementAndGet();
+        for (Future<?> f : pending) {
+            f.cancel(false);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Stops the loader threads.
+     */
+    public void shutdown() {
+        cancelAll();
+        executor.shutdownNow();
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (IOException ex) {
+                logger.error("Can't close tile archive: {}", ex.toString());
+            }
+        }
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     * @return the decoded tile, from the archive or the disk cache if we have
+     * it and from the tile server if not, or null if none of them worked. The
+     * caller has already looked in the memory cache.
+     */
+    Image fetch(String tile) {
+        ReplayEvents.TileFetch event = null;
+        if (ReplayEvents.tileEnabled()) {
+            event = new ReplayEvents.TileFetch();
+            event.tile = tile;
+            event.begin();
+        }
+        long started = System.nanoTime();
+        String source = "archive";
+        byte[] bytes = (archive == null) ? null : archive.get(tile);
+        if (bytes == null) {
+            source = "disk";
+            bytes = diskCache.get(tile);
+        }
+        if (bytes == null) {
+            source = "network";
+            try {
+                bytes = download(tile);
+            } catch (IOException ex) {
+                logger.error("Can't get tile {}: {}", tile, ex.toString());
+                commit(event, source, 0, System.nanoTime() - started, 0L, false);
+                return null;
+            }
+            diskCache.put(tile, bytes);
+        }
+        long fetched = System.nanoTime();
+        Image image = new Image(new ByteArrayInputStream(bytes));
+        boolean ok = !image.isError();
+        commit(event, source, bytes.length, fetched - started, System.nanoTime() - fetched, ok);
+        if (!ok) {
+            logger.error("Can't decode tile {}: {}", tile, image.getException());
+            return null;
+        }
+        memoryCache.put(tile, image);
+        return image;
+    }
+
+    private static void commit(ReplayEvents.TileFetch event, String source, int bytes, long fetchTime,
+            long decodeTime, boolean ok) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.source = source;
+            event.bytes = bytes;
+            event.fetchTime = fetchTime;
+            event.decodeTime = decodeTime;
+            event.ok = ok;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return a one line summary of the cache hit rates, for the log
+     */
+    public String cacheStatistics() {
+        return memoryCache + ", " + diskCache;
+    }
+
+    /**
+     *
+     * @param tile - tile name, "z/x/y.png"
+     * @return the raw PNG from the tile server
+     * @throws IOException if the server can't be reached or says no
+     */
+    byte[] download(String tile) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + tile).openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        // tile servers turn away requests that don't say who they are
+        connection.setRequestProperty("User-Agent", "nmea-replayer");
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + connection.getResponseCode() + " for " + baseUrl + tile);
+            }
+            try (InputStream in = connection.getInputStream()) {
+                return in.readAllBytes();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Warms the tile caches for where the track is going next.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * TilePrefetcher reads ahead in the log from wherever the player has got to,
+ * picks out the GPS fixes and makes sure the tiles for them are in the tile
+ * caches before the map needs them. It fetches the 3x3 block the map would
+ * show around each fix at the current zoom level, and the tile under each fix
+ * one zoom level in and out.
+ *
+ * Fetching is done by PREFETCH_THREADS threads so we don't hammer the tile
+ * server, and the tiles nearest to the current position go first. Each scan
+ * replaces whatever was still waiting from the previous one.
+ *
+ * A scan never queues more tiles than the in-memory TileCache has room for
+ * besides the 3x3 tiles on show, or warming the tiles further along would push
+ * out the ones on the screen and they would have to come off the disk again.
+ *
+ * It only does anything while the player is playing. Every SCAN_INTERVAL it
+ * looks at how far the player has got, and once it is more than half way
+ * through the stretch that was last scanned it scans the next READ_AHEAD
+ * bytes.
+ *
+ * @author tony
+ */
+public class TilePrefetcher implements Runnable {
+
+    static final int PREFETCH_THREADS = 2;
+    static final long READ_AHEAD = 2L * 1024L * 1024L;
+    static final long SCAN_INTERVAL = 2000L;
+    static final int MAX_TILES = 512; // per scan, in case the track goes a long way
+    static final int VIEW_TILES = 9; // the 3x3 the map shows
+
+    private final TileLoader tileLoader;
+    private final NMEAPlayer player;
+    private final NMEASentence parser = new NMEASentence();
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile List<File> files = null;
+    private volatile int zoom = 10;
+    private volatile boolean running = true;
+    private int limit = MAX_TILES; // tiles for the scan under way
+    private long scannedFrom = -1;
+    private int scannedZoom = -1;
+    private Thread thread;
+
+    private static final Logger logger = LogManager.getLogger(TilePrefetcher.class);
+
+    /**
+     *
+     * @param tileLoader - where the tiles come from and the caches they go into
+     * @param player - the player whose position we follow
+     */
+    public TilePrefetcher(TileLoader tileLoader, NMEAPlayer player) {
+        this.tileLoader = tileLoader;
+        this.player = player;
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "TilePrefetcher-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     *
+     * @param f - the log being played
+     */
+    public void setFile(File f) {
+        setFiles(List.of(f));
+    }
+
+    /**
+     *
+     * @param f - the logs being played together
+     */
+    public void setFiles(List<File> f) {
+        files = f;
+        scannedFrom = -1;
+    }
+
+    /**
+     *
+     * @param z - zoom level the map is showing
+     */
+    public void setZoom(int z) {
+        zoom = z;
+    }
+
+    /**
+     * Starts the scanning thread.
+     */
+    public void start() {
+        thread = new Thread(this, "TilePrefetcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the scanning thread and drops anything still waiting to be fetched.
+     */
+    public void shutdown() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(SCAN_INTERVAL);
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            List<File> f = files;
+            if (f == null || !player.isPlaying()) {
+                continue;
+            }
+            long position = player.getPosition();
+            int z = zoom;
+            if (z == scannedZoom && scannedFrom >= 0 && position >= scannedFrom && position < scannedFrom + READ_AHEAD / 2) {
+                continue; // still well inside what we scanned last time
+            }
+            try {
+                scan(f, position, z);
+                scannedFrom = position;
+                scannedZoom = z;
+            } catch (IOException ex) {
+                logger.error("Prefetch scan of {} failed: {}", f, ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Reads READ_AHEAD bytes from the position and queues the tiles for every
+     * fix found there, replacing whatever was queued before.
+     */
+    private void scan(List<File> f, long position, int z) throws IOException {
+        Set<String> tiles = new HashSet<>();
+        executor.getQueue().clear();
+        limit = Math.min(MAX_TILES, Math.max(0, tileLoader.memoryCapacity() - VIEW_TILES));
+        int queued = 0;
+        double startLat = Double.NaN, startLon = Double.NaN;
+        try (SentenceSource reader = SentenceSource.open(f)) {
+            reader.seek(position);
+            int length;
+            while (queued < limit && reader.position() < position + READ_AHEAD && (length = reader.next()) >= 0) {
+                double lat, lon;
+                if (reader instanceof BinaryLogReader binary) {
+                    // the position was parsed when the log was converted
+                    if (!binary.hasFix()) {
+                        continue;
+                    }
+                    lat = binary.latitude();
+                    lon = binary.longitude();
+                } else {
+                    byte[] b = reader.sentence();
+                    int p = NMEASentence.addressStart(b, 0, length); // past any tag block
+                    if (p < 0 || b[p] != '$' || !parser.parse(b, 0, length)) {
+                        continue;
+                    }
+                    int latField;
+                    if (parser.isType("RMC")) {
+                        latField = 3;
+                    } else if (parser.isType("GGA")) {
+                        latField = 2;
+                    } else if (parser.isType("GLL")) {
+                        latField = 1;
+                    } else {
+                        continue;
+                    }
+                    lat = parser.coordinate(latField, latField + 1);
+                    lon = parser.coordinate(latField + 2, latField + 3);
+                }
+                if (Double.isNaN(lat) || Double.isNaN(lon)) {
+                    continue;
+                }
+                if (Double.isNaN(startLat)) {
+                    startLat = lat;
+                    startLon = lon;
+                }
+                queued += queueAround(tiles, lat, lon, z, startLat, startLon);
+            }
+        }
+        logger.debug("Prefetch scan from {} queued {} tiles", position, queued);
+    }
+
+    /**
+     * Queues the tiles needed to show a fix, unless they are queued already.
+     *
+     * @return how many tiles were queued
+     */
+    private int queueAround(Set<String> tiles, double lat, double lon, int z, double startLat, double startLon) {
+        int queued = 0;
+        int cx = NMEALogReplayerController.tileX(startLon, z);
+        int cy = NMEALogReplayerController.tileY(startLat, z);
+        int tx = NMEALogReplayerController.tileX(lon, z);
+        int ty = NMEALogReplayerController.tileY(lat, z);
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                queued += queue(tiles, z, tx + dx, ty + dy, Math.max(Math.abs(tx + dx - cx), Math.abs(ty + dy - cy)));
+            }
+        }
+        for (int zz = z - 1; zz <= z + 1; zz += 2) {
+            if (zz < 1 || zz > 20) {
+                continue;
+            }
+            int x = NMEALogReplayerController.tileX(lon, zz);
+            int y = NMEALogReplayerController.tileY(lat, zz);
+            // distance measured in tiles of the current zoom level, plus one so
+            // that the current zoom wins a tie
+            double scale = Math.pow(2.0, z - zz);
+            int distance = (int) (Math.max(Math.abs(x * scale - cx), Math.abs(y * scale - cy))) + 1;
+            queued += queue(tiles, zz, x, y, distance);
+        }
+        return queued;
+    }
+
+    private int queue(Set<String> tiles, int z, int x, int y, int distance) {
+        if (x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            return 0;
+        }
+        if (tiles.size() >= limit) {
+            return 0;
+        }
+        String tile = z + "/" + x + "/" + y + ".png";
+        if (!tiles.add(tile)) {
+            return 0;
+        }
+        executor.execute(new Prefetch(tile, distance, sequence.incrementAndGet()));
+        return 1;
+    }
+
+    /**
+     * One tile to be fetched. Nearest first, and in the order they were found
+     * along the track when they are as near as each other.
+     */
+    private class Prefetch implements Runnable, Comparable<Prefetch> {
+
+        final String tile;
+        final int distance;
+        final long seq;
+
+        Prefetch(String tile, int distance, long seq) {
+            this.tile = tile;
+            this.distance = distance;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            tileLoader.warm(tile);
+        }
+
+        @Override
+        public int compareTo(Prefetch o) {
+            if (distance != o.distance) {
+                return Integer.compare(distance, o.distance);
+            }
+            return Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Sparse index of sentence time versus file offset.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * TimeIndex scans an NMEA log once, in the background, and notes the file
+ * offset and time of the first timestamped GPS sentence ($__RMC, $__GGA,
+ * $__GLL or $__ZDA) found after every STRIDE bytes. The result lives in two
+ * primitive arrays so that a multi-GB log costs a megabyte or so of heap, and
+ * a time can be turned into a file offset (or the other way round) with a
+ * binary search instead of reading the file.
+ *
+ * Times are kept as milliseconds since midnight of the first day in the log.
+ * GPS sentences only carry the time of day, so every time we see the clock go
+ * backwards by more than twelve hours we assume we crossed midnight and add a
+ * day. That keeps the times increasing across week-long captures.
+ *
+ */
+public class TimeIndex implements Runnable {
+
+    static final int STRIDE = 64 * 1024;
+    static final long DAY = 24L * 60L * 60L * 1000L;
+    private static final int CHUNK = 1024 * 1024;
+
+    private final File file;
+    private final NMEASentence parser = new NMEASentence();
+    private long[] offsets = new long[1024];
+    private long[] times = new long[1024];
+    private int size = 0;
+    private long length = 0;
+    private volatile boolean complete = false;
+
+    private static final Logger logger = LogManager.getLogger(TimeIndex.class);
+
+    /**
+     *
+     * @param file - the NMEA log to be indexed
+     */
+    public TimeIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     *
+     * @param file - the NMEA log to be indexed
+     * @return the (incomplete) index. It becomes usable once isComplete()
+     * returns true.
+     *
+     * Creates an index for the file and starts building it on a daemon thread
+     * so the caller (usually the FX thread) can get on with its life.
+     */
+    public static TimeIndex buildInBackground(File file) {
+        TimeIndex index = new TimeIndex(file);
+        Thread t = new Thread(index, "TimeIndex-" + file.getName());
+        t.setDaemon(true);
+        t.start();
+        return index;
+    }
+
+    /**
+     * @return true once the whole file has been scanned. None of the lookup
+     * methods give sensible answers before that.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the number of entries in the index
+     */
+    public int size() {
+        return complete ? size : 0;
+    }
+
+    /**
+     * @return the time of the first indexed sentence, or -1 if there is none
+     */
+    public long getStartTime() {
+        return size() > 0 ? times[0] : -1;
+    }
+
+    /**
+     * @return the time of the last indexed sentence, or -1 if there is none
+     */
+    public long getEndTime() {
+        return size() > 0 ? times[size - 1] : -1;
+    }
+
+    /**
+     *
+     * @param time - log time in milliseconds (see the class comment)
+     * @return the offset of the start of the indexed sentence at or just before
+     * the requested time. Seeking there and reading forward will reach the
+     * requested time within STRIDE bytes.
+     */
+    public long offsetOf(long time) {
+        if (size() == 0) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(times, 0, size, time);
+        if (i < 0) {
+            i = Math.max(0, -i - 2);
+        } else {
+            // several entries can share a time at 1Hz, take the first of them
+            while (i > 0 && times[i - 1] == time) {
+                i--;
+            }
+        }
+        return offsets[i];
+    }
+
+    /**
+     *
+     * @param offset - a byte offset into the file
+     * @return the log time at that offset, interpolated between the
+     * neighbouring index entries, or -1 if nothing is known yet.
+     */
+    public long timeAt(long offset) {
+        if (size() == 0) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(offsets, 0, size, offset);
+        if (i >= 0) {
+            return times[i];
+        }
+        i = -i - 2;
+        if (i < 0) {
+            return times[0];
+        }
+        long nextOffset = (i + 1 < size) ? offsets[i + 1] : length;
+        long nextTime = (i + 1 < size) ? times[i + 1] : times[i];
+        if (nextOffset <= offsets[i]) {
+            return times[i];
+        }
+        double fraction = (double) (offset - offsets[i]) / (double) (nextOffset - offsets[i]);
+        return times[i] + (long) (fraction * (nextTime - times[i]));
+    }
+
+    /**
+     *
+     * @param time - log time in milliseconds
+     * @return the time formatted as HH:MM:SS, with a "+Nd" suffix once the log
+     * has run past its first midnight
+     */
+    public static String formatTime(long time) {
+        if (time < 0) {
+            return "??:??:??";
+        }
+        long days = time / DAY;
+        long secs = (time % DAY) / 1000;
+        String s = String.format("%02d:%02d:%02d", secs / 3600, (secs / 60) % 60, secs % 60);
+        return (days > 0) ? s + " +" + days + "d" : s;
+    }
+
+    /**
+     *
+     * @param last - the previous unwrapped log time, or -1 if there was none
+     * @param timeOfDay - milliseconds since midnight from the current sentence
+     * @return the unwrapped log time for the current sentence
+     *
+     * Works out which day of the log a time-of-day belongs to, assuming that
+     * a jump backwards of more than twelve hours means we went past midnight.
+     */
+    static long unwrap(long last, int timeOfDay) {
+        if (last < 0) {
+            return timeOfDay;
+        }
+        long day = last / DAY;
+        long t = day * DAY + timeOfDay;
+        if (t < last - DAY / 2) {
+            t += DAY;
+        }
+        return t;
+    }
+
+    private void add(long offset, long time) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            times = Arrays.copyOf(times, size * 2);
+        }
+        offsets[size] = offset;
+        times[size] = time;
+        size++;
+    }
+
+    /**
+     *
+     * @return milliseconds since midnight carried by the sentence, or -1 if it
+     * isn't an RMC, GGA, GLL or ZDA sentence with a good checksum and a usable
+     * time
+     */
+    private int sentenceTime(byte[] b, int start, int end) {
+        if (!parser.parse(b, start, end)) {
+            return -1;
+        }
+        return parser.sentenceTime();
+    }
+
+    /**
+     * Reads the file from one end to the other in large chunks, splitting it
+     * into lines in the buffer, and records an entry for the first timestamped
+     * sentence in every STRIDE bytes.
+     */
+    @Override
+    public void run() {
+        long started = System.currentTimeMillis();
+        try {
+            if (BinaryLog.isBinary(file)) {
+                indexBinary();
+                complete = true;
+                logger.debug("Indexed {} entries for binary log {} in {} ms", size, file, System.currentTimeMillis() - started);
+                return;
+            }
+        } catch (IOException ex) {
+            logger.fatal(ex);
+        }
+        try (LogChannel channel = LogChannel.open(file)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+            byte[] b = buffer.array();
+            long bufferOffset = 0; // file offset of b[0]
+            long nextEntry = 0;
+            long last = -1;
+            int count;
+            while ((count = channel.read(buffer, bufferOffset + buffer.position())) >= 0 || buffer.position() > 0) {
+                int limit = buffer.position();
+                int lineStart = 0;
+                for (int i = 0; i < limit; i++) {
+                    if (b[i] == '\n') {
+                        if (bufferOffset + lineStart >= nextEntry) {
+                            int tod = sentenceTime(b, lineStart, i);
+                            if (tod >= 0) {
+                                long t = Math.max(unwrap(last, tod), last);
+                                add(bufferOffset + lineStart, t);
+                                last = t;
+                                nextEntry = bufferOffset + lineStart + STRIDE;
+                            }
+                        } else if (last >= 0) {
+                            // keep following the clock between entries so a
+                            // midnight in the middle of a stride isn't missed
+                            int tod = sentenceTime(b, lineStart, i);
+                            if (tod >= 0) {
+                                last = Math.max(unwrap(last, tod), last);
+                            }
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+                if (count < 0) {
+                    length = bufferOffset + limit;
+                    break; // a final line without a newline is not worth indexing
+                }
+                if (lineStart == 0 && limit == b.length) {
+                    lineStart = limit; // absurdly long line, just drop it
+                }
+                buffer.position(lineStart).limit(limit);
+                buffer.compact();
+                bufferOffset += lineStart;
+            }
+            length = Math.max(length, bufferOffset);
+        } catch (IOException ex) {
+            logger.fatal(ex);
+        }
+        complete = true;
+        logger.debug("Indexed {} entries for {} in {} ms", size, file, System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Does the same as run() for a binary log (see BinaryLog). There are no
+     * lines to find, and the record type says which sentences are worth
+     * parsing for a time.
+     */
+    private void indexBinary() throws IOException {
+        try (BinaryLogReader reader = new BinaryLogReader(file)) {
+            long nextEntry = 0;
+            long last = -1;
+            int n;
+            while ((n = reader.next()) >= 0) {
+                int type = reader.type();
+                if (type < 1 || type > 4) { // RMC, GGA, GLL and ZDA are the first four BinaryLog.TYPES
+                    continue;
+                }
+                int tod = sentenceTime(reader.sentence(), 0, n);
+                if (tod < 0) {
+                    continue;
+                }
+                long t = Math.max(unwrap(last, tod), last);
+                if (reader.sentenceOffset() >= nextEntry) {
+                    add(reader.sentenceOffset(), t);
+                    nextEntry = reader.sentenceOffset() + STRIDE;
+                }
+                last = t;
+            }
+            length = reader.size();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Spatial index of where the vessel went, for seeking by position.
+ */
+package com.mattheys;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * TrackIndex scans a log once, in the background, and notes the position and
+ * file offset of every fix in it (RMC, GGA and GLL, and own-ship AIS
+ * reports), so that "when were we here?" can be answered without reading
+ * the file. A fix is only kept if the vessel has moved since the last one
+ * kept, so an RMC and a GGA for the same second, or a week on a mooring, cost
+ * one entry.
+ *
+ * The fixes live in primitive arrays, positions as floats (good to a metre or
+ * two), and are bucketed into a uniform grid over the bounding box of the
+ * track with about CELL_FIXES fixes to a cell: cellStart says where each
+ * cell's fixes start in order, as in a counting sort. nearest() looks in the
+ * cell the point is in and then in rings of cells further out, stopping once
+ * the next ring can't hold anything closer than what it has found. A three
+ * week log at 1Hz is a couple of million fixes, tens of megabytes of heap,
+ * and a lookup touches a few cells.
+ *
+ * The offsets are those of the SentenceSource the files were opened with, so
+ * the index can be built over several logs merged by time just as well.
+ *
+ * The same fixes, in the order they were logged, are what the TrackOverlay
+ * draws the track with; it is made here too, once the fixes are in.
+ *
+ */
+public class TrackIndex implements Runnable {
+
+    static final int CELL_FIXES = 4;
+    static final int MAX_CELLS = 1 << 20;
+    static final double MIN_MOVE = 1e-5; // degrees, about a metre
+    static final double METRES_PER_DEGREE = 111195.0d;
+
+    private final List<File> files;
+    private float[] lats = new float[4096];
+    private float[] lons = new float[4096];
+    private long[] offsets = new long[4096];
+    private int size = 0;
+    private double south, west; // corner of the grid
+    private double cellLat, cellLon; // size of a cell in degrees
+    private int rows, cols;
+    private int[] cellStart;
+    private int[] order;
+    private TrackOverlay overlay;
+    private volatile boolean complete = false;
+
+    private static final Logger logger = LogManager.getLogger(TrackIndex.class);
+
+    /**
+     *
+     * @param files - the log, or logs being played merged by time
+     */
+    public TrackIndex(List<File> files) {
+        this.files = files;
+    }
+
+    /**
+     *
+     * @param files - the log, or logs being played merged by time
+     * @return the (incomplete) index. It becomes usable once isComplete()
+     * returns true.
+     */
+    public static TrackIndex buildInBackground(List<File> files) {
+        TrackIndex index = new TrackIndex(files);
+        Thread t = new Thread(index, "TrackIndex-" + files.get(0).getName());
+        t.setDaemon(true);
+        t.start();
+        return index;
+    }
+
+    /**
+     * @return true once the whole file has been scanned and the grid built
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the number of fixes in the index, 0 until it is complete
+     */
+    public int size() {
+        return complete ? size : 0;
+    }
+
+    /**
+     * @return the track simplified for drawing, null until the index is
+     * complete
+     */
+    public TrackOverlay overlay() {
+        return complete ? overlay : null;
+    }
+
+    /**
+     * @param i - index of a fix, as returned by nearest()
+     * @return file offset of the sentence the fix came from
+     */
+    public long offset(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * @param i - index of a fix
+     * @return its latitude
+     */
+    public double latitude(int i) {
+        return lats[i];
+    }
+
+    /**
+     * @param i - index of a fix
+     * @return its longitude
+     */
+    public double longitude(int i) {
+        return lons[i];
+    }
+
+    /**
+     *
+     * @param lat - latitude of the point
+     * @param lon - longitude of the point
+     * @param maxMetres - how far from the point a fix can be
+     * @return index of the fix nearest the point, the earliest if there is a
+     * tie, or -1 if there is none within maxMetres (or the index isn't
+     * complete)
+     */
+    public int nearest(double lat, double lon, double maxMetres) {
+        if (size() == 0) {
+            return -1;
+        }
+        double kx = Math.cos(Math.toRadians(lat)); // shrinks a degree of longitude
+        // metres from the point to the grid, 0 if it is on it
+        double boxY = Math.max(0.0d, Math.max(south - lat, lat - (south + rows * cellLat))) * METRES_PER_DEGREE;
+        double boxX = Math.max(0.0d, Math.max(west - lon, lon - (west + cols * cellLon))) * METRES_PER_DEGREE * kx;
+        if (boxX * boxX + boxY * boxY > maxMetres * maxMetres) {
+            return -1;
+        }
+        double cellH = cellLat * METRES_PER_DEGREE;
+        double cellW = cellLon * METRES_PER_DEGREE * kx;
+        int r = clamp((int) Math.floor((lat - south) / cellLat), rows);
+        int c = clamp((int) Math.floor((lon - west) / cellLon), cols);
+        // metres from the point to the edges of cell (r, c), the nearest cell
+        // to it if it is off the grid
+        double toSouth = (lat - (south + r * cellLat)) * METRES_PER_DEGREE;
+        double toNorth = (south + (r + 1) * cellLat - lat) * METRES_PER_DEGREE;
+        double toWest = (lon - (west + c * cellLon)) * METRES_PER_DEGREE * kx;
+        double toEast = (west + (c + 1) * cellLon - lon) * METRES_PER_DEGREE * kx;
+        double best = maxMetres * maxMetres;
+        int found = -1;
+        for (int k = 0; k <= Math.max(rows, cols); k++) {
+            for (int rr = r - k; rr <= r + k; rr++) {
+                if (rr < 0 || rr >= rows) {
+                    continue;
+                }
+                boolean edge = (rr == r - k || rr == r + k);
+                for (int cc = c - k; cc <= c + k; cc += (edge || k == 0) ? 1 : 2 * k) {
+                    if (cc < 0 || cc >= cols) {
+                        continue;
+                    }
+                    int cell = rr * cols + cc;
+                    for (int j = cellStart[cell]; j < cellStart[cell + 1]; j++) {
+                        int i = order[j];
+                        double dy = (lats[i] - lat) * METRES_PER_DEGREE;
+                        double dx = (lons[i] - lon) * METRES_PER_DEGREE * kx;
+                        double d = dx * dx + dy * dy;
+                        if (d < best || (d == best && found >= 0 && i < found)) {
+                            best = d;
+                            found = i;
+                        }
+                    }
+                }
+            }
+            // nothing in the next ring can be nearer than the nearest side of
+            // this one that has cells beyond it. A side at the edge of the
+            // grid has nothing beyond it, which is every side once the rings
+            // have covered the grid.
+            double reach = Double.POSITIVE_INFINITY;
+            if (r - k > 0) {
+                reach = Math.min(reach, toSouth + k * cellH);
+            }
+            if (r + k < rows - 1) {
+                reach = Math.min(reach, toNorth + k * cellH);
+            }
+            if (c - k > 0) {
+                reach = Math.min(reach, toWest + k * cellW);
+            }
+            if (c + k < cols - 1) {
+                reach = Math.min(reach, toEast + k * cellW);
+            }
+            if (reach * reach > best) {
+                break;
+            }
+        }
+        return found;
+    }
+
+    private static int clamp(int i, int n) {
+        return Math.max(0, Math.min(n - 1, i));
+    }
+
+    private void add(double lat, double lon, long offset) {
+        if (size > 0 && Math.abs(lat - lats[size - 1]) < MIN_MOVE && Math.abs(lon - lons[size - 1]) < MIN_MOVE) {
+            return; // hasn't moved
+        }
+        if (size == lats.length) {
+            lats = Arrays.copyOf(lats, size * 2);
+            lons = Arrays.copyOf(lons, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        lats[size] = (float) lat;
+        lons[size] = (float) lon;
+        offsets[size] = offset;
+        size++;
+    }
+
+    /**
+     * Reads the log from one end to the other picking up the fixes, then
+     * builds the grid.
+     */
+    @Override
+    public void run() {
+        long started = System.currentTimeMillis();
+        NMEASentence parser = new NMEASentence();
+        ReplayPosition.Fix fix = new ReplayPosition.Fix();
+        AisDecoder ais = new AisDecoder();
+        try (SentenceSource reader = SentenceSource.open(files)) {
+            int n;
+            while ((n = reader.next()) >= 0) {
+                if (reader instanceof BinaryLogReader binary) {
+                    // the position was parsed when the log was converted
+                    if (binary.hasFix()) {
+                        add(binary.latitude(), binary.longitude(), reader.sentenceOffset());
+                    }
+                    continue;
+                }
+                byte[] b = reader.sentence();
+                int p = NMEASentence.addressStart(b, 0, n);
+                if (p < 0 || p + 6 > n) {
+                    continue;
+                }
+                if (b[p] == '$' ? (b[p + 3] != 'R' && b[p + 3] != 'G') : b[p] != '!') {
+                    continue; // only RMC, GGA, GLL and our own AIS can have a fix
+                }
+                if (!parser.parse(b, 0, n)) {
+                    continue;
+                }
+                if (b[p] == '$' ? fix.extract(parser) : (ais.decode(parser) && ais.ownShip() && fix.extract(ais))) {
+                    add(fix.latitude, fix.longitude, reader.sentenceOffset());
+                }
+            }
+        } catch (IOException ex) {
+            logger.fatal(ex);
+        }
+        lats = Arrays.copyOf(lats, size);
+        lons = Arrays.copyOf(lons, size);
+        offsets = Arrays.copyOf(offsets, size);
+        buildGrid();
+        overlay = new TrackOverlay(lats, lons, size);
+        complete = true;
+        logger.debug("Indexed {} fixes for {} in a {}x{} grid in {} ms", size, files, rows, cols,
+                System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Sizes the grid to the track, about CELL_FIXES fixes to a cell and the
+     * cells roughly square on the ground, and sorts the fixes into it.
+     */
+    private void buildGrid() {
+        double north = -90.0d, east = -180.0d;
+        south = 90.0d;
+        west = 180.0d;
+        for (int i = 0; i < size; i++) {
+            south = Math.min(south, lats[i]);
+            north = Math.max(north, lats[i]);
+            west = Math.min(west, lons[i]);
+            east = Math.max(east, lons[i]);
+        }
+        double height = Math.max(north - south, MIN_MOVE);
+        double width = Math.max(east - west, MIN_MOVE) * Math.cos(Math.toRadians((north + south) / 2.0d));
+        int cells = Math.max(1, Math.min(MAX_CELLS, size / CELL_FIXES));
+        rows = (int) Math.max(1, Math.min(cells, Math.round(Math.sqrt(cells * height / Math.max(width, MIN_MOVE)))));
+        cols = Math.max(1, cells / rows);
+        // a hair bigger so the north and east edges fall inside the last cell
+        cellLat = height * 1.000001d / rows;
+        cellLon = Math.max(east - west, MIN_MOVE) * 1.000001d / cols;
+
+        cellStart = new int[rows * cols + 1];
+        int[] cellOf = new int[size];
+        for (int i = 0; i < size; i++) {
+            int r = clamp((int) ((lats[i] - south) / cellLat), rows);
+            int c = clamp((int) ((lons[i] - west) / cellLon), cols);
+            cellOf[i] = r * cols + c;
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int k = 0; k < rows * cols; k++) {
+            cellStart[k + 1] += cellStart[k];
+        }
+        order = new int[size];
+        int[] fill = Arrays.copyOf(cellStart, rows * cols);
+        for (int i = 0; i < size; i++) {
+            order[fill[cellOf[i]]++] = i;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * The whole track, simplified for every zoom level, for drawing on the map.
+ */
+package com.mattheys;
+
+import java.util.Arrays;
+
+/**
+ * TrackOverlay draws the vessel's whole track over the map tiles. A track of
+ * millions of fixes is far more than the map can show at any zoom level, so
+ * it is simplified with Douglas-Peucker down to what makes a difference of
+ * half a pixel at each zoom level, once, when the TrackIndex is built.
+ *
+ * Rather than running Douglas-Peucker for every zoom level, it is run once
+ * and each fix is given the tolerance at which it would be dropped (the
+ * distance that made it the split point, capped by that of the split above
+ * it), in Web Mercator units where the world is 1 across. At zoom z the fixes
+ * to draw are those whose tolerance is more than half a pixel, 0.5 / (256 *
+ * 2^z), and the indexes of those are kept in one array per zoom level. Once a
+ * zoom level keeps most of the fixes there is no point in a list of them, and
+ * every fix is drawn from there on in.
+ *
+ * The track is cut into CHUNK fixes at a time, each with its own bounding
+ * box. Douglas-Peucker runs on each chunk by itself, so the work is bounded
+ * however the track goes, and when drawing, chunks that are off the 3x3 tiles
+ * on show are skipped without looking at their fixes. A redraw touches only
+ * the fixes that end up on the screen, plus a bounding box test per chunk.
+ *
+ */
+public class TrackOverlay {
+
+    static final int CHUNK = 4096;
+    static final int MAX_ZOOM = 20;
+    static final int TILE = 256;
+    static final double PIXEL_TOLERANCE = 0.5;
+
+    /**
+     * Where the points go, so drawing can be done without a Canvas in tests
+     * and benchmarks.
+     */
+    interface Pen {
+
+        void polyline(double[] xs, double[] ys, int n);
+    }
+
+    private final float[] lats;
+    private final float[] lons;
+    private final int size;
+    private final float[] tolerance;
+    private final int chunks;
+    private final float[] south, north, west, east; // per chunk
+    private final int[][] kept = new int[MAX_ZOOM + 1][]; // null: draw them all
+    private final int[][] chunkStart = new int[MAX_ZOOM + 1][];
+    private double[] xs = new double[1024];
+    private double[] ys = new double[1024];
+
+    /**
+     *
+     * @param lats - latitudes of the fixes, in the order they were logged
+     * @param lons - longitudes
+     * @param size - number of fixes
+     */
+    public TrackOverlay(float[] lats, float[] lons, int size) {
+        this.lats = lats;
+        this.lons = lons;
+        this.size = size;
+        tolerance = new float[size];
+        chunks = Math.max(1, (size - 2) / CHUNK + 1);
+        south = new float[chunks];
+        north = new float[chunks];
+        west = new float[chunks];
+        east = new float[chunks];
+        simplify();
+        for (int z = 0; z <= MAX_ZOOM; z++) {
+            keep(z);
+        }
+    }
+
+    /**
+     * @return the number of fixes that would be drawn at this zoom level if
+     * the whole track were on the screen
+     */
+    public int keptAt(int zoom) {
+        int z = Math.max(0, Math.min(MAX_ZOOM, zoom));
+        return (kept[z] == null) ? size : kept[z].length;
+    }
+
+    /**
+     * Chunk k covers fixes k * CHUNK to (k + 1) * CHUNK, both included, so
+     * neighbouring chunks share an end and the line doesn't break between
+     * them.
+     */
+    private int chunkEnd(int k) {
+        return Math.min((k + 1) * CHUNK, size - 1);
+    }
+
+    static double mercatorX(double lon) {
+        return (lon + 180.0d) / 360.0d;
+    }
+
+    static double mercatorY(double lat) {
+        double s = Math.sin(Math.toRadians(Math.max(-85.0511d, Math.min(85.0511d, lat))));
+        return 0.5d - Math.log((1.0d + s) / (1.0d - s)) / (4.0d * Math.PI);
+    }
+
+    /**
+     * Douglas-Peucker over each chunk with an explicit stack, noting for
+     * every fix the tolerance it survives up to.
+     */
+    private void simplify() {
+        double[] mx = new double[CHUNK + 1];
+        double[] my = new double[CHUNK + 1];
+        int[] stackA = new int[CHUNK + 1];
+        int[] stackB = new int[CHUNK + 1];
+        float[] stackCap = new float[CHUNK + 1];
+        for (int k = 0; k < chunks; k++) {
+            int first = k * CHUNK;
+            int last = chunkEnd(k);
+            if (first > last) {
+                break;
+            }
+            float s = 90.0f, nn = -90.0f, w = 180.0f, e = -180.0f;
+            for (int i = first; i <= last; i++) {
+                mx[i - first] = mercatorX(lons[i]);
+                my[i - first] = mercatorY(lats[i]);
+                s = Math.min(s, lats[i]);
+                nn = Math.max(nn, lats[i]);
+                w = Math.min(w, lons[i]);
+                e = Math.max(e, lons[i]);
+            }
+            south[k] = s;
+            north[k] = nn;
+            west[k] = w;
+            east[k] = e;
+            tolerance[first] = Float.MAX_VALUE;
+            tolerance[last] = Float.MAX_VALUE;
+            int top = 0;
+            stackA[top] = 0;
+            stackB[top] = last - first;
+            stackCap[top++] = Float.MAX_VALUE;
+            while (top > 0) {
+                top--;
+                int a = stackA[top], b = stackB[top];
+                float cap = stackCap[top];
+                if (b - a < 2) {
+                    continue;
+                }
+                double best = -1.0d;
+                int split = a + 1;
+                for (int i = a + 1; i < b; i++) {
+                    double d = segmentDistance(mx[i], my[i], mx[a], my[a], mx[b], my[b]);
+                    if (d > best) {
+                        best = d;
+                        split = i;
+                    }
+                }
+                float t = (float) Math.min(best, cap);
+                tolerance[first + split] = t;
+                stackA[top] = a;
+                stackB[top] = split;
+                stackCap[top++] = t;
+                stackA[top] = split;
+                stackB[top] = b;
+                stackCap[top++] = t;
+            }
+        }
+    }
+
+    static double segmentDistance(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double l2 = dx * dx + dy * dy;
+        double t = (l2 == 0.0d) ? 0.0d : Math.max(0.0d, Math.min(1.0d, ((px - ax) * dx + (py - ay) * dy) / l2));
+        double ex = px - (ax + t * dx), ey = py - (ay + t * dy);
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    /**
+     * Lists the fixes to draw at zoom level z, and where each chunk's start.
+     */
+    private void keep(int z) {
+        if (z > 0 && kept[z - 1] == null) {
+            return; // already drawing them all
+        }
+        float t = (float) (PIXEL_TOLERANCE / (TILE * Math.pow(2.0d, z)));
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (tolerance[i] > t) {
+                count++;
+            }
+        }
+        if (count > size / 2) {
+            return; // cheaper to draw the lot
+        }
+        int[] list = new int[count];
+        int[] starts = new int[chunks + 1];
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (tolerance[i] > t) {
+                if (i % CHUNK == 0 && i / CHUNK < chunks) {
+                    starts[i / CHUNK] = j;
+                }
+                list[j++] = i;
+            }
+        }
+        starts[chunks] = j;
+        kept[z] = list;
+        chunkStart[z] = starts;
+    }
+
+    /**
+     *
+     * @param pen - what to draw the lines with
+     * @param zoom - zoom level of the map
+     * @param x0 - tile x of the top left tile on show
+     * @param y0 - tile y of the top left tile on show
+     * @param tiles - tiles across and down, 3 for the GUI
+     * @return number of points drawn
+     *
+     * Draws the parts of the track that are on the tiles, in pixels from the
+     * top left corner of the top left tile.
+     */
+    int draw(Pen pen, int zoom, int x0, int y0, int tiles) {
+        if (size == 0) {
+            return 0;
+        }
+        int z = Math.max(0, Math.min(MAX_ZOOM, zoom));
+        double scale = Math.pow(2.0d, zoom);
+        // what is on show, in degrees, with a pixel to spare all round
+        double margin = 1.0d / TILE;
+        double viewWest = (x0 - margin) / scale * 360.0d - 180.0d;
+        double viewEast = (x0 + tiles + margin) / scale * 360.0d - 180.0d;
+        double viewNorth = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1.0d - 2.0d * (y0 - margin) / scale))));
+        double viewSouth = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1.0d - 2.0d * (y0 + tiles + margin) / scale))));
+        int[] list = kept[z];
+        int[] starts = chunkStart[z];
+        int drawn = 0;
+        int n = 0;
+        for (int k = 0; k < chunks; k++) {
+            if (north[k] < viewSouth || south[k] > viewNorth || east[k] < viewWest || west[k] > viewEast) {
+                if (n > 1) {
+                    pen.polyline(xs, ys, n);
+                }
+                drawn += n;
+                n = 0;
+                continue;
+            }
+            int from, to;
+            if (list == null) {
+                from = k * CHUNK;
+                to = chunkEnd(k);
+            } else {
+                from = starts[k];
+                to = starts[k + 1] < list.length ? starts[k + 1] : list.length - 1;
+            }
+            if (n > 0) {
+                from++; // the last chunk's end is this one's start
+            }
+            for (int j = from; j <= to; j++) {
+                int i = (list == null) ? j : list[j];
+                if (n == xs.length) {
+                    xs = Arrays.copyOf(xs, n * 2);
+                    ys = Arrays.copyOf(ys, n * 2);
+                }
+                xs[n] = (mercatorX(lons[i]) * scale - x0) * TILE;
+                ys[n] = (mercatorY(lats[i]) * scale - y0) * TILE;
+                n++;
+            }
+        }
+        if (n > 1) {
+            pen.polyline(xs, ys, n);
+        }
+        return drawn + n;
+    }
+}